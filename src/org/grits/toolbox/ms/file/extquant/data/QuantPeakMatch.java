@@ -78,6 +78,8 @@ public class QuantPeakMatch implements Comparable<QuantPeakMatch>
 		if( _destPeaks == null ) {
 			return null;
 		}
+		// QuantPeakMatcher returns the same matches by reproducing iStartInx (the first peak within 4 * tol, except
+		// the first peak of the list) and the comparisons below, any change here must be made there as well
 		int iStartInx = 0; // performance helper since we're going through list multiple times
 		Peak closestPeak = null;
 		double dMinDelta = Double.MAX_VALUE;
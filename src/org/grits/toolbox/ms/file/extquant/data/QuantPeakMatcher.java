@@ -0,0 +1,179 @@
+package org.grits.toolbox.ms.file.extquant.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.grits.toolbox.ms.om.data.Peak;
+
+/**
+ * Matches many precursor m/z values against the same peak list, with the same results as
+ * {@link QuantPeakMatch#findQuantPeakMatch(QuantPeak, double, List, double)} called for each of them.
+ *
+ * The m/z and intensities of the peaks are copied once into arrays. Since the peak list of a scan is sorted by m/z,
+ * each stage (closest peak, top peak, intensity sum) is a binary search for the start of its window followed by a
+ * scan of the window only, instead of a pass over the whole list. If the list is not sorted by m/z (or has peaks
+ * without m/z or intensity) every match falls back to {@link QuantPeakMatch#findQuantPeakMatch(QuantPeak, double, List, double)}.
+ */
+public class QuantPeakMatcher
+{
+	private static final double TOP_PEAK_TOLERANCE = 0.05; // same as QuantPeakMatch.findQuantPeakMatch
+
+	private List<Peak> m_peaks = null;
+	private Peak[] m_peakArray = null;
+	private double[] m_mz = null;
+	private double[] m_intensity = null;
+	private boolean m_sorted = false;
+
+	/**
+	 * @param a_peaks the peaks to match against (usually the peak list of an MS1 scan)
+	 */
+	public QuantPeakMatcher(List<Peak> a_peaks)
+	{
+		m_peaks = a_peaks;
+		if ( a_peaks == null )
+			return;
+		int t_size = a_peaks.size();
+		m_peakArray = a_peaks.toArray(new Peak[t_size]);
+		m_mz = new double[t_size];
+		m_intensity = new double[t_size];
+		m_sorted = true;
+		for ( int i = 0; i < t_size && m_sorted; i++ )
+		{
+			Peak t_peak = m_peakArray[i];
+			if ( t_peak == null || t_peak.getMz() == null || t_peak.getIntensity() == null )
+			{
+				m_sorted = false;
+				break;
+			}
+			m_mz[i] = t_peak.getMz();
+			m_intensity[i] = t_peak.getIntensity();
+			if ( i > 0 && !(m_mz[i] >= m_mz[i - 1]) )
+				m_sorted = false;
+		}
+	}
+
+	/**
+	 * @see QuantPeakMatch#findQuantPeakMatch(QuantPeak, double, List, double)
+	 */
+	public QuantPeakMatch findQuantPeakMatch( QuantPeak _quantPeak, double _candidateMz, double dTol ) {
+		if ( m_peaks == null )
+			return null;
+		if ( !m_sorted )
+			return QuantPeakMatch.findQuantPeakMatch(_quantPeak, _candidateMz, m_peaks, dTol);
+
+		// first find the peak closest to the precursor m/z. The peaks within 4 * tol are contiguous.
+		double d4Tol = 4.0 * dTol;
+		int iFirst = lowerBound(_candidateMz, d4Tol, 0);
+		int iEnd = iFirst;
+		while ( iEnd < m_mz.length && Math.abs(m_mz[iEnd] - _candidateMz) < d4Tol )
+			iEnd++;
+		if ( iEnd == iFirst )
+			return null; // no peak within 4 * tol, so none within tol either
+		// performance helper of the linear search (iStartInx in QuantPeakMatch.findQuantPeakMatch): first peak
+		// within 4 * tol, except that the first peak of the list does not count (the helper is only set while still 0)
+		int iStartInx = iFirst > 0 ? iFirst : (iEnd > 1 ? 1 : 0);
+		int iClosest = -1;
+		double dMinDelta = Double.MAX_VALUE;
+		for ( int i = iFirst; i < iEnd; i++ )
+		{
+			double dDelta = Math.abs(m_mz[i] - _candidateMz);
+			if ( dDelta < dTol && dDelta < dMinDelta )
+			{
+				iClosest = i;
+				dMinDelta = dDelta;
+			}
+		}
+		if ( iClosest == -1 )
+			return null;
+
+		// we have closest peak. Now find highest peak w/in tolerance
+		double dClosestMz = m_mz[iClosest];
+		double dMaxInt = Double.MIN_VALUE;
+		int iTop = -1;
+		for ( int i = lowerBound(dClosestMz, TOP_PEAK_TOLERANCE, iStartInx); i < m_mz.length; i++ )
+		{
+			double dDelta = Math.abs(m_mz[i] - dClosestMz);
+			if ( dDelta >= TOP_PEAK_TOLERANCE )
+			{
+				if ( m_mz[i] > dClosestMz )
+					break;
+				continue;
+			}
+			if ( m_intensity[i] > dMaxInt )
+			{
+				dMaxInt = m_intensity[i];
+				iTop = i;
+			}
+		}
+		if ( iTop == -1 )
+			return null;
+
+		// we have the top peak. create the quant peak match and sum intensity
+		double dTopMz = m_mz[iTop];
+		QuantPeakMatch qpm = new QuantPeakMatch(_quantPeak);
+		qpm.setMzMostAbundant(m_peakArray[iTop].getMz());
+		double dSum = 0.0;
+		double dMinMz = Double.MAX_VALUE;
+		double dMaxMz = Double.MIN_VALUE;
+		for ( int i = lowerBound(dTopMz, dTol, iStartInx); i < m_mz.length; i++ )
+		{
+			double dDelta = Math.abs(m_mz[i] - dTopMz);
+			if ( dDelta >= dTol )
+			{
+				if ( m_mz[i] > dTopMz )
+					break;
+				continue;
+			}
+			dSum += m_intensity[i];
+			if ( m_mz[i] < dMinMz )
+				dMinMz = m_mz[i];
+			if ( m_mz[i] > dMaxMz )
+				dMaxMz = m_mz[i];
+		}
+		qpm.getParent().setSumIntensity(dSum);
+		qpm.setIntensitySum(m_peakArray[iTop].getIntensity());
+		qpm.setMaxMz(dMaxMz + dTol);
+		qpm.setMinMz(dMinMz - dTol);
+		qpm.setCharge(-1);
+		return qpm;
+	}
+
+	/**
+	 * matches all the candidates. The candidates are processed in m/z order (so the searches move forward
+	 * through the peak list), the results are in the order of the candidates.
+	 *
+	 * @param a_quantPeaks the quant peak of each candidate
+	 * @param a_candidateMz the m/z of each candidate
+	 * @param a_tolerance the tolerance (in Da) of each candidate
+	 * @return the match of each candidate, null if there is none
+	 */
+	public QuantPeakMatch[] findQuantPeakMatches( QuantPeak[] a_quantPeaks, double[] a_candidateMz, double[] a_tolerance ) {
+		QuantPeakMatch[] t_matches = new QuantPeakMatch[a_quantPeaks.length];
+		Integer[] t_order = new Integer[a_quantPeaks.length];
+		for ( int i = 0; i < t_order.length; i++ )
+			t_order[i] = i;
+		Arrays.sort(t_order, Comparator.comparingDouble(i -> a_candidateMz[i]));
+		for ( Integer i : t_order )
+			t_matches[i] = findQuantPeakMatch(a_quantPeaks[i], a_candidateMz[i], a_tolerance[i]);
+		return t_matches;
+	}
+
+	/**
+	 * @return the first index (not before iFrom) of a peak that is above the m/z or within the tolerance of it.
+	 * The peaks before it are all below the m/z and outside of the tolerance.
+	 */
+	private int lowerBound( double _dMz, double _dTol, int iFrom ) {
+		int iLow = iFrom;
+		int iHigh = m_mz.length;
+		while ( iLow < iHigh )
+		{
+			int iMid = (iLow + iHigh) >>> 1;
+			if ( m_mz[iMid] > _dMz || Math.abs(m_mz[iMid] - _dMz) < _dTol )
+				iHigh = iMid;
+			else
+				iLow = iMid + 1;
+		}
+		return iLow;
+	}
+}
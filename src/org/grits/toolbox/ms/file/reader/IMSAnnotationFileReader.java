@@ -1,10 +1,20 @@
 package org.grits.toolbox.ms.file.reader;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
 
 import org.grits.toolbox.ms.file.MSFile;
+import org.grits.toolbox.ms.file.scan.data.FileSummary;
+import org.grits.toolbox.ms.file.scan.data.PeakArray;
+import org.grits.toolbox.ms.file.scan.data.ScanSelection;
 import org.grits.toolbox.ms.file.scan.data.ScanView;
+import org.grits.toolbox.ms.file.scan.index.PrecursorIndex;
+import org.grits.toolbox.ms.om.data.Peak;
 import org.grits.toolbox.ms.om.data.Scan;
 
 public interface IMSAnnotationFileReader extends IMSFileReader {
@@ -45,6 +55,92 @@ public interface IMSAnnotationFileReader extends IMSFileReader {
 	 * 
 	 */
 	List<Scan> readMSFile(MSFile file, int msLevel, int parentScanNum, int scanNum);
+	
+	/**
+	 * reads the scans matching the selection. The selection is evaluated on the scan headers
+	 * so only the peaks of the selected scans are read. 
+	 * 
+	 * @param file MS file to be read
+	 * @param selection criteria for the scans to be read
+	 * @return List<Scan> the selected scans (ascending scan number) with their peak lists
+	 */
+	default List<Scan> readMSFile(MSFile file, ScanSelection selection) {
+		// without access to the headers, the scans of the file are read and then filtered
+		List<Scan> scans = readMSFile(file);
+		if( scans == null ) {
+			return null;
+		}
+		List<Scan> selected = new ArrayList<>();
+		for( Scan scan : scans ) {
+			if( selection.matches(scan) ) {
+				selected.add(scan);
+			}
+		}
+		selected.sort(Comparator.comparing(Scan::getScanNo, Comparator.nullsFirst(Comparator.naturalOrder())));
+		return selected;
+	}
+	
+	/**
+	 * reads the scans of the request. Does not change the state of the reader, so a reader can serve 
+	 * several requests at the same time (cancelling the reader cancels all of them).
+	 * 
+	 * @param request the file and the scans to be read
+	 * @return List<Scan> the scans read, same as the readMSFile method of the mode of the request
+	 */
+	default List<Scan> readMSFile(ScanReadRequest request) {
+		MSFile file = request.getFile();
+		switch( request.getMode() ) {
+		case EXPERIMENT:
+			return readMSFile(file);
+		case SCAN:
+			return readMSFile(file, request.getScanNum(), request.getSubScanMap());
+		case SCANS:
+			return readMSFile(file, request.getMsLevel(), request.getParentScanNum(), request.getScanNum());
+		case SELECTION:
+			return readMSFile(file, request.getSelection());
+		}
+		return null;
+	}
+	
+	/**
+	 * reads the scans matching the selection one after another, in file order, instead of returning them
+	 * all at once. A parent scan is returned before its sub scans, the precursor peaks of the sub scans 
+	 * are added to its peak list while they are read. An empty selection iterates over the whole file.
+	 * 
+	 * @param file MS file to be read
+	 * @param selection criteria for the scans to be read
+	 * @return iterator over the selected scans, has to be closed by the caller
+	 */
+	default IScanIterator iterateMSFile(MSFile file, ScanSelection selection) {
+		List<Scan> scans = readMSFile(file, selection);
+		return scans == null ? null : new ListScanIterator(scans);
+	}
+	
+	/**
+	 * same as {@link #iterateMSFile(MSFile, ScanSelection)} as a sequential, ordered stream
+	 * 
+	 * @param file MS file to be read
+	 * @param selection criteria for the scans to be read
+	 * @return stream of the selected scans, has to be closed by the caller
+	 */
+	default Stream<Scan> streamMSFile(MSFile file, ScanSelection selection) {
+		List<Scan> scans = readMSFile(file, selection);
+		return scans == null ? null : scans.stream();
+	}
+	
+	/**
+	 * publishes the scans matching the selection, in file order, to subscribers that request them 
+	 * as they can process them (see {@link #iterateMSFile(MSFile, ScanSelection)}). The file is read again 
+	 * for each subscriber, only as far as requested. Cancelling a subscription stops its reading only,
+	 * cancelling this reader stops all of them.
+	 * 
+	 * @param file MS file to be read
+	 * @param selection criteria for the scans to be read
+	 * @return publisher of the selected scans
+	 */
+	default IPublisher<Scan> publishMSFile(MSFile file, ScanSelection selection) {
+		return new IteratorPublisher<Scan>(this::isCanceled, canceled -> iterateMSFile(file, selection), ForkJoinPool.commonPool());
+	}
 		
 	/**
 	 * 
@@ -123,6 +219,23 @@ public interface IMSAnnotationFileReader extends IMSFileReader {
 	 */
 	List<ScanView> readMSFileForView(MSFile file, int msLevel, int parentScanNum, int scanNum);
 	
+	/**
+	 * publishes the result of {@link #readMSFileForView(MSFile, int, int, int)} to subscribers that request 
+	 * the scans as they can process them. Cancelling a subscription stops sending it the scans.
+	 * 
+	 * @param file  MS file to be read
+	 * @param msLevel  the MS level of scans to load from MS file. Use -1 if to be ignored.
+	 * @param parentScanNum  the scan number to be read, along with its sub-scans. Use -1 if to be ignored.
+	 * @param scanNum  the scan number to be read, ignoring all other data.  Use -1 if to be ignored.
+	 * @return publisher of {@link org.grits.toolbox.ms.file.scan.data.ScanView} objects
+	 */
+	default IPublisher<ScanView> publishMSFileForView(MSFile file, int msLevel, int parentScanNum, int scanNum) {
+		return new IteratorPublisher<ScanView>(this::isCanceled, canceled -> {
+			List<ScanView> scans = readMSFileForView(file, msLevel, parentScanNum, scanNum);
+			return scans == null ? null : scans.iterator();
+		}, ForkJoinPool.commonPool());
+	}
+	
 	/**
 	 * return the first MS1 scan in the file, if present
 	 * 
@@ -130,4 +243,270 @@ public interface IMSAnnotationFileReader extends IMSFileReader {
 	 * @return
 	 */
 	public Scan getFirstMS1Scan(MSFile file);
+	
+	/**
+	 * returns the summary of the file (scan counts per MS level, first/last scans, ranges, ...)
+	 * computed with a single header-only pass over the file
+	 * 
+	 * @param file MS file to be read
+	 * @return the summary of the file
+	 */
+	public default FileSummary getFileSummary(MSFile file) {
+		// only the counts and scan numbers known to every reader, the ranges are left unset
+		FileSummary summary = new FileSummary();
+		Integer iMin = getMinScanNumber(file);
+		Integer iMax = getMaxScanNumber(file);
+		Integer iMinMSLevel = getMinMSLevel(file);
+		int iNumMS1 = getNumMS1Scans(file);
+		int iNumMS2 = getNumMS2Scans(file);
+		summary.setFirstScanNumber(iMin != null ? iMin : -1);
+		summary.setLastScanNumber(iMax != null ? iMax : -1);
+		summary.setMaxScanNumber(iMax != null ? iMax : -1);
+		summary.setMinMSLevel(iMinMSLevel != null ? iMinMSLevel : -1);
+		summary.setMaxMSLevel(iNumMS2 > 0 ? 2 : (iNumMS1 > 0 ? 1 : -1));
+		Map<Integer, Integer> counts = new TreeMap<>();
+		if( iNumMS1 > 0 ) {
+			counts.put(1, iNumMS1);
+		}
+		if( iNumMS2 > 0 ) {
+			counts.put(2, iNumMS2);
+		}
+		summary.setScanCountByMSLevel(counts);
+		summary.setNumScans(iNumMS1 + iNumMS2);
+		if( iNumMS1 > 0 && hasMS1Scan(file) ) {
+			Scan firstMS1Scan = getFirstMS1Scan(file);
+			if( firstMS1Scan != null && firstMS1Scan.getScanNo() != null ) {
+				summary.setFirstMS1ScanNumber(firstMS1Scan.getScanNo());
+			}
+		}
+		return summary;
+	}
+	
+	/**
+	 * returns the index of the precursor m/z values of all MSn scans in the file, 
+	 * e.g. to find the MS2 scans that fragmented a precursor close to a given m/z
+	 * 
+	 * @param file MS file to be read
+	 * @return the precursor index
+	 */
+	public PrecursorIndex getPrecursorIndex(MSFile file);
+	
+	/**
+	 * returns the peaks of a scan as primitive arrays, without creating a {@link org.grits.toolbox.ms.om.data.Peak}
+	 * object for each point
+	 * 
+	 * @param file MS file to be read
+	 * @param scanNumber scan number to be read
+	 * @return the peaks of the scan or null if the scan can't be read
+	 */
+	public default PeakArray getPeakArray(MSFile file, int scanNumber) {
+		List<Scan> scans = readMSFile(file, scanNumber);
+		if( scans == null ) {
+			return null;
+		}
+		for( Scan scan : scans ) {
+			if( scan.getScanNo() == null || scan.getScanNo() != scanNumber ) {
+				continue;
+			}
+			List<Peak> lPeaks = scan.getPeaklist() != null ? scan.getPeaklist() : new ArrayList<>();
+			double[] mzs = new double[lPeaks.size()];
+			double[] intensities = new double[lPeaks.size()];
+			for( int i = 0; i < mzs.length; i++ ) {
+				Peak peak = lPeaks.get(i);
+				mzs[i] = peak.getMz() != null ? peak.getMz() : 0.0;
+				intensities[i] = peak.getIntensity() != null ? peak.getIntensity() : 0.0;
+			}
+			return PeakArray.fromMassIntensityList(new double[][] { mzs, intensities });
+		}
+		return null;
+	}
+	
+	/**
+	 * opens a session on the given file. The session keeps the parser and the index of the file
+	 * so that several operations on the same file only parse them once. 
+	 * All operations of this interface have a variant that runs against a session.
+	 * The default session only holds the file, the operations on it read the file as the ones on the file do.
+	 * 
+	 * @param file MS file to be read
+	 * @return a new session, has to be closed by the caller
+	 */
+	default IMSFileSession openSession(MSFile file) {
+		return new MSFileOnlySession(file);
+	}
+	
+	/**
+	 * @see #readMSFile(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default List<Scan> readMSFile (IMSFileSession session) {
+		return readMSFile(session.getFile());
+	}
+	
+	/**
+	 * @see #readMSFile(MSFile, int)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default List<Scan> readMSFile (IMSFileSession session, int scanNumber) {
+		return readMSFile(session.getFile(), scanNumber);
+	}
+	
+	/**
+	 * @see #readMSFile(MSFile, int, Map)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default List<Scan> readMSFile (IMSFileSession session, int scanNumber, Map<Integer, List<Integer>> subScanMap) {
+		return readMSFile(session.getFile(), scanNumber, subScanMap);
+	}
+	
+	/**
+	 * @see #readMSFile(MSFile, int, int, int)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default List<Scan> readMSFile(IMSFileSession session, int msLevel, int parentScanNum, int scanNum) {
+		return readMSFile(session.getFile(), msLevel, parentScanNum, scanNum);
+	}
+	
+	/**
+	 * @see #readMSFile(MSFile, ScanSelection)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default List<Scan> readMSFile(IMSFileSession session, ScanSelection selection) {
+		return readMSFile(session.getFile(), selection);
+	}
+	
+	/**
+	 * @see #iterateMSFile(MSFile, ScanSelection)
+	 * @param session session opened with {@link #openSession(MSFile)}, has to stay open while iterating
+	 */
+	default IScanIterator iterateMSFile(IMSFileSession session, ScanSelection selection) {
+		return iterateMSFile(session.getFile(), selection);
+	}
+	
+	/**
+	 * @see #streamMSFile(MSFile, ScanSelection)
+	 * @param session session opened with {@link #openSession(MSFile)}, has to stay open while streaming
+	 */
+	default Stream<Scan> streamMSFile(IMSFileSession session, ScanSelection selection) {
+		return streamMSFile(session.getFile(), selection);
+	}
+	
+	/**
+	 * @see #publishMSFile(MSFile, ScanSelection)
+	 * @param session session opened with {@link #openSession(MSFile)}, has to stay open until the subscribers are done
+	 */
+	default IPublisher<Scan> publishMSFile(IMSFileSession session, ScanSelection selection) {
+		return publishMSFile(session.getFile(), selection);
+	}
+	
+	/**
+	 * @see #getScanList(MSFile, int)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default List<Integer> getScanList (IMSFileSession session, int scanNumber) {
+		return getScanList(session.getFile(), scanNumber);
+	}
+	
+	/**
+	 * @see #readMSFileForSubscans(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default Map<Integer, List<Integer>> readMSFileForSubscans (IMSFileSession session) {
+		return readMSFileForSubscans(session.getFile());
+	}
+	
+	/**
+	 * @see #getMaxScanNumber(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default Integer getMaxScanNumber (IMSFileSession session) {
+		return getMaxScanNumber(session.getFile());
+	}
+	
+	/**
+	 * @see #getMinScanNumber(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default Integer getMinScanNumber(IMSFileSession session) {
+		return getMinScanNumber(session.getFile());
+	}
+	
+	/**
+	 * @see #getMinMSLevel(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default Integer getMinMSLevel(IMSFileSession session) {
+		return getMinMSLevel(session.getFile());
+	}
+	
+	/**
+	 * @see #hasMS1Scan(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default boolean hasMS1Scan(IMSFileSession session) {
+		return hasMS1Scan(session.getFile());
+	}
+	
+	/**
+	 * @see #getNumMS1Scans(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	public default int getNumMS1Scans(IMSFileSession session) {
+		return getNumMS1Scans(session.getFile());
+	}
+	
+	/**
+	 * @see #getNumMS2Scans(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	public default int getNumMS2Scans(IMSFileSession session) {
+		return getNumMS2Scans(session.getFile());
+	}
+	
+	/**
+	 * @see #readMSFileForView(MSFile, int, int, int)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	default List<ScanView> readMSFileForView(IMSFileSession session, int msLevel, int parentScanNum, int scanNum) {
+		return readMSFileForView(session.getFile(), msLevel, parentScanNum, scanNum);
+	}
+	
+	/**
+	 * @see #publishMSFileForView(MSFile, int, int, int)
+	 * @param session session opened with {@link #openSession(MSFile)}, has to stay open until the subscribers are done
+	 */
+	default IPublisher<ScanView> publishMSFileForView(IMSFileSession session, int msLevel, int parentScanNum, int scanNum) {
+		return publishMSFileForView(session.getFile(), msLevel, parentScanNum, scanNum);
+	}
+	
+	/**
+	 * @see #getFirstMS1Scan(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	public default Scan getFirstMS1Scan(IMSFileSession session) {
+		return getFirstMS1Scan(session.getFile());
+	}
+	
+	/**
+	 * @see #getFileSummary(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	public default FileSummary getFileSummary(IMSFileSession session) {
+		return getFileSummary(session.getFile());
+	}
+	
+	/**
+	 * @see #getPrecursorIndex(MSFile)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	public default PrecursorIndex getPrecursorIndex(IMSFileSession session) {
+		return getPrecursorIndex(session.getFile());
+	}
+	
+	/**
+	 * @see #getPeakArray(MSFile, int)
+	 * @param session session opened with {@link #openSession(MSFile)}
+	 */
+	public default PeakArray getPeakArray(IMSFileSession session, int scanNumber) {
+		return getPeakArray(session.getFile(), scanNumber);
+	}
 }
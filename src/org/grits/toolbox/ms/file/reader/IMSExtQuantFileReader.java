@@ -6,4 +6,18 @@ import org.grits.toolbox.ms.file.extquant.data.QuantPeakData;
 public interface IMSExtQuantFileReader extends IMSFileReader {
 
 	QuantPeakData read(MSFile file, boolean a_ppm, double a_intervalValue);
+	
+	/**
+	 * reads the file of the request. Does not change the state of the reader, so a reader can serve 
+	 * several requests at the same time. The default reads the file with {@link #read(MSFile, boolean, double)},
+	 * the scans and precursor peaks of the request are not used.
+	 * 
+	 * @param request the file and the options of the read
+	 * @return the quantification data, null if the file can't be read
+	 */
+	default QuantPeakData read(QuantReadRequest request) {
+		MSFile file = new MSFile();
+		file.setFileName(request.getFileName());
+		return read(file, request.isPpm(), request.getIntervalValue());
+	}
 }
@@ -0,0 +1,37 @@
+package org.grits.toolbox.ms.file.reader;
+
+import org.grits.toolbox.ms.file.FileCategory;
+
+/**
+ * A file format and the reader for it, identified from the header of the files. The formats are registered in
+ * {@link MSFileFormatRegistry}, the formats of this plugin are loaded with the {@link java.util.ServiceLoader}
+ * (META-INF/services/org.grits.toolbox.ms.file.reader.IMSFileFormat).
+ */
+public interface IMSFileFormat {
+	/**
+	 * @return name of the format
+	 */
+	String getName();
+
+	/**
+	 * @return category of the files read by the reader of this format
+	 */
+	FileCategory getCategory();
+
+	/**
+	 * @param header header of a file
+	 * @return true if the file is of this format
+	 */
+	boolean matches(MSFileHeader header);
+
+	/**
+	 * @param header header of a file of this format
+	 * @return version of the format of the file, null if unknown
+	 */
+	String getVersion(MSFileHeader header);
+
+	/**
+	 * @return a new reader for the files of this format
+	 */
+	IMSFileReader createReader();
+}
@@ -0,0 +1,31 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.io.Closeable;
+
+import org.grits.toolbox.ms.file.MSFile;
+
+/**
+ * An open MS file. A session keeps the parser and the decoded index of the file so that 
+ * several read operations on the same file don't have to parse them again.
+ * 
+ * Sessions are created by {@link IMSAnnotationFileReader#openSession(MSFile)} and have to be closed
+ * once they are no longer needed.
+ */
+public interface IMSFileSession extends Closeable {
+	
+	/**
+	 * @return the MS file this session is bound to
+	 */
+	MSFile getFile();
+	
+	/**
+	 * @return true if the session has not been closed yet
+	 */
+	boolean isOpen();
+	
+	/**
+	 * releases the parser and the index held by this session
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,18 @@
+package org.grits.toolbox.ms.file.reader;
+
+/**
+ * Pushes items to its subscribers as they request them. Same contract as
+ * java.util.concurrent.Flow.Publisher, which is not available with Java 8.
+ *
+ * @param <T> type of the published items
+ */
+public interface IPublisher<T> {
+
+	/**
+	 * adds the subscriber. {@link ISubscriber#onSubscribe(ISubscription)} is called first, items are only sent
+	 * once they have been requested through the subscription
+	 * 
+	 * @param subscriber the subscriber
+	 */
+	void subscribe(ISubscriber<? super T> subscriber);
+}
@@ -0,0 +1,22 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+import org.grits.toolbox.ms.om.data.Scan;
+
+/**
+ * Iterator over the scans of an MS file, in file order. The scans are read while iterating,
+ * so only the scans that are still needed (e.g. a parent scan until all its sub scans are read)
+ * are kept in memory.
+ *
+ * An iterator has to be closed once it is no longer needed, even if it was not iterated to the end.
+ */
+public interface IScanIterator extends Iterator<Scan>, Closeable {
+
+	/**
+	 * releases the resources (read ahead scans, session opened for the iterator) held by this iterator
+	 */
+	@Override
+	void close();
+}
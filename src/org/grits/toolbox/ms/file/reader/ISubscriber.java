@@ -0,0 +1,35 @@
+package org.grits.toolbox.ms.file.reader;
+
+/**
+ * Receives the items of an {@link IPublisher}. Same contract as java.util.concurrent.Flow.Subscriber.
+ *
+ * @param <T> type of the received items
+ */
+public interface ISubscriber<T> {
+
+	/**
+	 * called before any other method of the subscriber
+	 * 
+	 * @param subscription used to request items or to cancel
+	 */
+	void onSubscribe(ISubscription subscription);
+
+	/**
+	 * called for each item, never more often than requested
+	 * 
+	 * @param item the next item
+	 */
+	void onNext(T item);
+
+	/**
+	 * called if the publisher failed, no other method is called afterwards
+	 * 
+	 * @param throwable the error
+	 */
+	void onError(Throwable throwable);
+
+	/**
+	 * called once all items have been sent, no other method is called afterwards
+	 */
+	void onComplete();
+}
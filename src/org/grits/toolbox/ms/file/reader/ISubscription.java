@@ -0,0 +1,20 @@
+package org.grits.toolbox.ms.file.reader;
+
+/**
+ * Link between an {@link IPublisher} and one of its subscribers. Same contract as
+ * java.util.concurrent.Flow.Subscription.
+ */
+public interface ISubscription {
+
+	/**
+	 * adds the given number of items to the demand of the subscriber
+	 * 
+	 * @param n number of items, has to be positive
+	 */
+	void request(long n);
+
+	/**
+	 * stops sending items to the subscriber
+	 */
+	void cancel();
+}
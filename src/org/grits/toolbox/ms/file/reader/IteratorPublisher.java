@@ -0,0 +1,169 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Publishes the items of an iterator opened for each subscriber. Items are read on the executor and only as long as
+ * the subscriber has requested some, so a slow subscriber slows down the reading instead of items being buffered.
+ *
+ * Each subscription has its own cancel flag, passed to the source, so cancelling a subscription stops its reading at
+ * the next scan without cancelling the reader or the other subscriptions. If the reader is cancelled, the subscriber
+ * gets a {@link CancellationException}.
+ *
+ * @param <T> type of the published items
+ */
+public class IteratorPublisher<T> implements IPublisher<T> {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(IteratorPublisher.class);
+
+	private final BooleanSupplier readerCanceled;
+	private final Function<BooleanSupplier, ? extends Iterator<T>> source;
+	private final Executor executor;
+
+	/**
+	 * @param readerCanceled true once the reader used by the source is cancelled
+	 * @param source opens the iterator over the items (null if the file can't be read), closed if it is {@link Closeable}.
+	 *        The iterator stops once the given supplier returns true
+	 * @param executor runs the reading
+	 */
+	public IteratorPublisher(BooleanSupplier readerCanceled, Function<BooleanSupplier, ? extends Iterator<T>> source, Executor executor) {
+		this.readerCanceled = readerCanceled;
+		this.source = source;
+		this.executor = executor;
+	}
+
+	@Override
+	public void subscribe(ISubscriber<? super T> subscriber) {
+		if( subscriber == null ) {
+			throw new NullPointerException("Subscriber is null");
+		}
+		subscriber.onSubscribe(new Subscription(subscriber));
+	}
+
+	private class Subscription implements ISubscription, Runnable {
+		private final ISubscriber<? super T> subscriber;
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger pendingRuns = new AtomicInteger();
+		private volatile boolean canceled = false;
+		private volatile IllegalArgumentException invalidRequest = null;
+		// only used by the run, which is never executed concurrently
+		private Iterator<T> iterator = null;
+		private boolean done = false;
+
+		private Subscription(ISubscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		@Override
+		public void request(long n) {
+			if( n <= 0 ) {
+				invalidRequest = new IllegalArgumentException("Number of requested items must be positive: " + n);
+			} else {
+				requested.accumulateAndGet(n, (lCurrent, lAdded) -> lCurrent + lAdded < 0 ? Long.MAX_VALUE : lCurrent + lAdded);
+			}
+			schedule();
+		}
+
+		@Override
+		public void cancel() {
+			if( ! canceled ) {
+				canceled = true;
+				schedule();
+			}
+		}
+
+		private void schedule() {
+			if( pendingRuns.getAndIncrement() == 0 ) {
+				try {
+					executor.execute(this);
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+					canceled = true;
+					close();
+					subscriber.onError(e);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			int iMissed = 1;
+			do {
+				emit();
+				iMissed = pendingRuns.addAndGet(-iMissed);
+			} while( iMissed != 0 );
+		}
+
+		private void emit() {
+			if( done ) {
+				return;
+			}
+			try {
+				while( ! canceled ) {
+					if( invalidRequest != null ) {
+						close();
+						subscriber.onError(invalidRequest);
+						return;
+					}
+					if( requested.get() == 0 ) {
+						return;
+					}
+					if( iterator == null ) {
+						iterator = source.apply(() -> canceled || readerCanceled.getAsBoolean());
+						if( iterator == null ) {
+							close();
+							subscriber.onError(new IOException("Unable to read the MS file"));
+							return;
+						}
+						continue; // the subscription may have been cancelled while the source was read
+					}
+					if( ! iterator.hasNext() ) {
+						close();
+						if( readerCanceled.getAsBoolean() ) {
+							if( ! canceled ) {
+								subscriber.onError(new CancellationException("Reading of the MS file was canceled"));
+							}
+						} else if( ! canceled ) {
+							subscriber.onComplete();
+						}
+						return;
+					}
+					T item = iterator.next();
+					if( requested.get() != Long.MAX_VALUE ) {
+						requested.decrementAndGet();
+					}
+					subscriber.onNext(item);
+				}
+				close();
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+				close();
+				if( ! canceled ) {
+					subscriber.onError(e);
+				}
+			}
+		}
+
+		private void close() {
+			done = true;
+			if( iterator instanceof Closeable ) {
+				try {
+					((Closeable) iterator).close();
+				} catch (IOException e) {
+					logger.error(e.getMessage(), e);
+				}
+			}
+			iterator = null;
+		}
+	}
+}
@@ -0,0 +1,37 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.List;
+
+import org.grits.toolbox.ms.om.data.Scan;
+
+/**
+ * Iterator over scans that have already been read, used by the default methods of {@link IMSAnnotationFileReader}.
+ * Closing it only releases the list.
+ */
+class ListScanIterator implements IScanIterator {
+	private Iterator<Scan> iterator;
+
+	ListScanIterator(List<Scan> scans) {
+		this.iterator = scans.iterator();
+	}
+
+	@Override
+	public boolean hasNext() {
+		return iterator != null && iterator.hasNext();
+	}
+
+	@Override
+	public Scan next() {
+		if( iterator == null ) {
+			throw new NoSuchElementException();
+		}
+		return iterator.next();
+	}
+
+	@Override
+	public void close() {
+		iterator = null;
+	}
+}
@@ -0,0 +1,136 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Logger;
+import org.grits.toolbox.ms.file.FileCategory;
+import org.grits.toolbox.ms.file.MSFile;
+
+/**
+ * Identifies the format of files from their header ({@link MSFileHeader}) and returns the reader for them, so
+ * checking a file costs one small read instead of parsing it with each reader.
+ *
+ * The formats are checked in the order they were registered. The shared instance has the formats found by the
+ * {@link ServiceLoader} in the class loader of this plugin, other formats can be added with {@link #register(IMSFileFormat)}.
+ */
+public class MSFileFormatRegistry {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MSFileFormatRegistry.class);
+
+	private static MSFileFormatRegistry instance = null;
+
+	private final List<IMSFileFormat> formats = new CopyOnWriteArrayList<>();
+
+	/**
+	 * creates an empty registry
+	 */
+	public MSFileFormatRegistry() {
+	}
+
+	/**
+	 * @return the shared registry, with the formats of the service loader
+	 */
+	public static synchronized MSFileFormatRegistry getInstance() {
+		if( instance == null ) {
+			instance = new MSFileFormatRegistry();
+			instance.load(IMSFileFormat.class.getClassLoader());
+		}
+		return instance;
+	}
+
+	/**
+	 * registers the formats found by the {@link ServiceLoader} in the given class loader
+	 *
+	 * @param classLoader the class loader
+	 */
+	public void load(ClassLoader classLoader) {
+		Iterator<IMSFileFormat> iterator = ServiceLoader.load(IMSFileFormat.class, classLoader).iterator();
+		while( true ) {
+			try {
+				if( ! iterator.hasNext() ) {
+					break;
+				}
+				register(iterator.next());
+			} catch (ServiceConfigurationError e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	/**
+	 * @param format format to check after the registered ones
+	 */
+	public void register(IMSFileFormat format) {
+		formats.add(format);
+	}
+
+	public void unregister(IMSFileFormat format) {
+		formats.remove(format);
+	}
+
+	/**
+	 * @return the registered formats
+	 */
+	public List<IMSFileFormat> getFormats() {
+		return new ArrayList<>(formats);
+	}
+
+	/**
+	 * @param fileName path to the file
+	 * @return the formats matching the file, empty if none or if the file can't be read
+	 */
+	public List<IMSFileFormat> findFormats(String fileName) {
+		List<IMSFileFormat> matches = new ArrayList<>();
+		MSFileHeader header = MSFileHeader.read(fileName);
+		if( header == null ) {
+			return matches;
+		}
+		for( IMSFileFormat format : formats ) {
+			if( matches(format, header) ) {
+				matches.add(format);
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * @param fileName path to the file
+	 * @param category category of the file, null for any
+	 * @return the first format of the category matching the file, null if none
+	 */
+	public IMSFileFormat findFormat(String fileName, FileCategory category) {
+		MSFileHeader header = MSFileHeader.read(fileName);
+		if( header == null ) {
+			return null;
+		}
+		for( IMSFileFormat format : formats ) {
+			if( (category == null || category == format.getCategory()) && matches(format, header) ) {
+				return format;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param file the file, its category is used if set
+	 * @return a new reader for the file, null if no format matches it
+	 */
+	public IMSFileReader getReader(MSFile file) {
+		IMSFileFormat format = findFormat(file.getFileName(), file.getCategory());
+		return format != null ? format.createReader() : null;
+	}
+
+	private boolean matches(IMSFileFormat format, MSFileHeader header) {
+		try {
+			return format.matches(header);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,155 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * The first bytes of a file, used to identify its format without reading the whole file (see
+ * {@link MSFileFormatRegistry}). For XML files the root element, its namespace and attributes are parsed from them;
+ * any text before the XML declaration is skipped.
+ */
+public class MSFileHeader {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MSFileHeader.class);
+
+	public static final int HEADER_SIZE = 4096;
+	private static final byte[] XML_DECLARATION = { '<', '?', 'x', 'm', 'l' };
+
+	private final byte[] bytes;
+	private String rootElement = null;
+	private String namespace = null;
+	private final Map<String, String> rootAttributes = new HashMap<>();
+
+	/**
+	 * @param bytes the first bytes of the file
+	 */
+	public MSFileHeader(byte[] bytes) {
+		this.bytes = bytes;
+		parseRootElement();
+	}
+
+	/**
+	 * reads the header of a file
+	 *
+	 * @param fileName path to the file
+	 * @return the header (the whole file if it is shorter than {@link #HEADER_SIZE}), null if the file can't be read
+	 */
+	public static MSFileHeader read(String fileName) {
+		try (InputStream in = new FileInputStream(fileName)) {
+			byte[] buffer = new byte[HEADER_SIZE];
+			int iLength = 0;
+			int iRead;
+			while( iLength < buffer.length && (iRead = in.read(buffer, iLength, buffer.length - iLength)) != -1 ) {
+				iLength += iRead;
+			}
+			return new MSFileHeader(Arrays.copyOf(buffer, iLength));
+		} catch (IOException e) {
+			logger.debug("Unable to read the header of " + fileName + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	private void parseRootElement() {
+		int iStart = indexOf(XML_DECLARATION);
+		if( iStart == -1 ) {
+			iStart = 0; // no declaration (or not in ASCII), parse from the start
+		}
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+		XMLStreamReader reader = null;
+		try {
+			reader = factory.createXMLStreamReader(new ByteArrayInputStream(bytes, iStart, bytes.length - iStart));
+			while( reader.hasNext() ) {
+				if( reader.next() == XMLStreamConstants.START_ELEMENT ) {
+					rootElement = reader.getLocalName();
+					namespace = reader.getNamespaceURI();
+					for( int i = 0; i < reader.getAttributeCount(); i++ ) {
+						rootAttributes.put(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+					}
+					break;
+				}
+			}
+		} catch (XMLStreamException | RuntimeException e) {
+			// not XML or the root element is not in the header
+		} finally {
+			if( reader != null ) {
+				try {
+					reader.close();
+				} catch (XMLStreamException e) {
+					logger.debug(e.getMessage(), e);
+				}
+			}
+		}
+	}
+
+	private int indexOf(byte[] pattern) {
+		for( int i = 0; i + pattern.length <= bytes.length; i++ ) {
+			int j = 0;
+			while( j < pattern.length && bytes[i + j] == pattern[j] ) {
+				j++;
+			}
+			if( j == pattern.length ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the first bytes of the file
+	 */
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @param magic magic bytes of a format
+	 * @return true if the file starts with the bytes
+	 */
+	public boolean startsWith(byte[] magic) {
+		if( bytes.length < magic.length ) {
+			return false;
+		}
+		for( int i = 0; i < magic.length; i++ ) {
+			if( bytes[i] != magic[i] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return local name of the root element, null if the file is not XML or the root element is not in the header
+	 */
+	public String getRootElement() {
+		return rootElement;
+	}
+
+	/**
+	 * @return namespace URI of the root element, null or empty if it has none
+	 */
+	public String getNamespace() {
+		return namespace;
+	}
+
+	/**
+	 * @param sName local name of an attribute
+	 * @return value of the attribute of the root element, null if it has no such attribute
+	 */
+	public String getRootAttribute(String sName) {
+		return rootAttributes.get(sName);
+	}
+}
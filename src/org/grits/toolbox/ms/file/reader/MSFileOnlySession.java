@@ -0,0 +1,31 @@
+package org.grits.toolbox.ms.file.reader;
+
+import org.grits.toolbox.ms.file.MSFile;
+
+/**
+ * Session of a reader that keeps nothing open between operations (see
+ * {@link IMSAnnotationFileReader#openSession(MSFile)}), it only holds the file.
+ */
+class MSFileOnlySession implements IMSFileSession {
+	private final MSFile file;
+	private volatile boolean open = true;
+
+	MSFileOnlySession(MSFile file) {
+		this.file = file;
+	}
+
+	@Override
+	public MSFile getFile() {
+		return file;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+	}
+}
@@ -0,0 +1,99 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.grits.toolbox.ms.file.MSFile;
+import org.grits.toolbox.ms.om.data.Peak;
+
+/**
+ * Immutable request to an {@link IMSExtQuantFileReader}. All the options of a read are part of the request,
+ * so one reader can serve several requests at the same time.
+ */
+public final class QuantReadRequest
+{
+    private final String m_fileName;
+    private final boolean m_ppm;
+    private final double m_intervalValue;
+    private final int m_msLevel;
+    private final int m_parentScanNum;
+    private final int m_scanNum;
+    private final List<Peak> m_precursorPeaks;
+
+    /**
+     * @param a_file file to be read
+     * @param a_ppm true if the interval is in ppm, false if in Da
+     * @param a_intervalValue interval used to match the peaks
+     */
+    public QuantReadRequest(MSFile a_file, boolean a_ppm, double a_intervalValue)
+    {
+        this(a_file, a_ppm, a_intervalValue, -1, -1, -1, null);
+    }
+
+    /**
+     * request for a quantification based on the peaks of an mzXML file (see 
+     * {@link org.grits.toolbox.ms.file.reader.impl.MSXMLReader})
+     * 
+     * @param a_file file to be read
+     * @param a_ppm true if the interval is in ppm, false if in Da
+     * @param a_intervalValue interval used to match the peaks
+     * @param a_msLevel MS level of the scans to be read, -1 if to be ignored
+     * @param a_parentScanNum parent scan to be read along with its sub scans, -1 if to be ignored
+     * @param a_scanNum scan to be read, -1 if to be ignored
+     * @param a_precursorPeaks peaks to be quantified (copied)
+     */
+    public QuantReadRequest(MSFile a_file, boolean a_ppm, double a_intervalValue, int a_msLevel, int a_parentScanNum,
+            int a_scanNum, List<Peak> a_precursorPeaks)
+    {
+        this.m_fileName = a_file.getFileName();
+        this.m_ppm = a_ppm;
+        this.m_intervalValue = a_intervalValue;
+        this.m_msLevel = a_msLevel;
+        this.m_parentScanNum = a_parentScanNum;
+        this.m_scanNum = a_scanNum;
+        this.m_precursorPeaks = a_precursorPeaks == null ? Collections.<Peak>emptyList()
+                : Collections.unmodifiableList(new ArrayList<Peak>(a_precursorPeaks));
+    }
+
+    /**
+     * @return full path of the file to be read
+     */
+    public String getFileName()
+    {
+        return m_fileName;
+    }
+
+    public boolean isPpm()
+    {
+        return m_ppm;
+    }
+
+    public double getIntervalValue()
+    {
+        return m_intervalValue;
+    }
+
+    public int getMsLevel()
+    {
+        return m_msLevel;
+    }
+
+    public int getParentScanNum()
+    {
+        return m_parentScanNum;
+    }
+
+    public int getScanNum()
+    {
+        return m_scanNum;
+    }
+
+    /**
+     * @return the peaks to be quantified (unmodifiable)
+     */
+    public List<Peak> getPrecursorPeaks()
+    {
+        return m_precursorPeaks;
+    }
+}
@@ -0,0 +1,143 @@
+package org.grits.toolbox.ms.file.reader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.grits.toolbox.ms.file.MSFile;
+import org.grits.toolbox.ms.file.scan.data.ScanSelection;
+
+/**
+ * Immutable request to read scans with an {@link IMSAnnotationFileReader}, one for each of its readMSFile methods.
+ * The request keeps a copy of everything it is given, so it can be shared between threads and one reader can
+ * serve several requests at the same time.
+ */
+public final class ScanReadRequest {
+
+	/**
+	 * the readMSFile method a request corresponds to
+	 */
+	public enum Mode {
+		/** {@link IMSAnnotationFileReader#readMSFile(MSFile)} */
+		EXPERIMENT,
+		/** {@link IMSAnnotationFileReader#readMSFile(MSFile, int, Map)} */
+		SCAN,
+		/** {@link IMSAnnotationFileReader#readMSFile(MSFile, int, int, int)} */
+		SCANS,
+		/** {@link IMSAnnotationFileReader#readMSFile(MSFile, ScanSelection)} */
+		SELECTION
+	}
+
+	private final Mode mode;
+	private final String fileName;
+	private final String experimentType;
+	private final int msLevel;
+	private final int parentScanNum;
+	private final int scanNum;
+	private final Map<Integer, List<Integer>> subScanMap;
+	private final ScanSelection selection;
+
+	private ScanReadRequest(Mode mode, MSFile file, int msLevel, int parentScanNum, int scanNum, 
+			Map<Integer, List<Integer>> subScanMap, ScanSelection selection) {
+		this.mode = mode;
+		this.fileName = file.getFileName();
+		this.experimentType = file.getExperimentType();
+		this.msLevel = msLevel;
+		this.parentScanNum = parentScanNum;
+		this.scanNum = scanNum;
+		if( subScanMap != null ) {
+			Map<Integer, List<Integer>> copy = new HashMap<>();
+			for( Map.Entry<Integer, List<Integer>> entry : subScanMap.entrySet() ) {
+				copy.put(entry.getKey(), entry.getValue() == null ? null : 
+					Collections.unmodifiableList(new ArrayList<>(entry.getValue())));
+			}
+			this.subScanMap = Collections.unmodifiableMap(copy);
+		} else {
+			this.subScanMap = null;
+		}
+		this.selection = selection == null ? null : new ScanSelection(selection);
+	}
+
+	/**
+	 * @param file MS file to be read (direct infusion or TIM experiment)
+	 * @return request for all the scans of the experiment
+	 */
+	public static ScanReadRequest forExperiment(MSFile file) {
+		return new ScanReadRequest(Mode.EXPERIMENT, file, -1, -1, -1, null, null);
+	}
+
+	/**
+	 * @param file MS file to be read
+	 * @param scanNumber scan number to be read
+	 * @param subScanMap list of all scans and their corresponding sub scans, can be null
+	 * @return request for the scan and its sub scans
+	 */
+	public static ScanReadRequest forScan(MSFile file, int scanNumber, Map<Integer, List<Integer>> subScanMap) {
+		return new ScanReadRequest(Mode.SCAN, file, -1, -1, scanNumber, subScanMap, null);
+	}
+
+	/**
+	 * @param file MS file to be read
+	 * @param msLevel the MS level of scans to load from MS file. Use -1 if to be ignored.
+	 * @param parentScanNum the scan number to be read, along with its sub-scans. Use -1 if to be ignored.
+	 * @param scanNum the scan number to be read, ignoring all other data.  Use -1 if to be ignored.
+	 * @return request for the scans
+	 */
+	public static ScanReadRequest forScans(MSFile file, int msLevel, int parentScanNum, int scanNum) {
+		return new ScanReadRequest(Mode.SCANS, file, msLevel, parentScanNum, scanNum, null, null);
+	}
+
+	/**
+	 * @param file MS file to be read
+	 * @param selection criteria for the scans to be read (copied)
+	 * @return request for the selected scans
+	 */
+	public static ScanReadRequest forSelection(MSFile file, ScanSelection selection) {
+		return new ScanReadRequest(Mode.SELECTION, file, -1, -1, -1, null, selection);
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	/**
+	 * @return a new MS file object with the file name and the experiment type of the request
+	 */
+	public MSFile getFile() {
+		MSFile file = new MSFile();
+		file.setFileName(fileName);
+		file.setExperimentType(experimentType);
+		return file;
+	}
+
+	public int getMsLevel() {
+		return msLevel;
+	}
+
+	public int getParentScanNum() {
+		return parentScanNum;
+	}
+
+	/**
+	 * @return the scan to be read (mode SCAN and SCANS)
+	 */
+	public int getScanNum() {
+		return scanNum;
+	}
+
+	/**
+	 * @return the sub scans of each scan (unmodifiable), null if not given
+	 */
+	public Map<Integer, List<Integer>> getSubScanMap() {
+		return subScanMap;
+	}
+
+	/**
+	 * @return a copy of the selection, null if not a selection request
+	 */
+	public ScanSelection getSelection() {
+		return selection == null ? null : new ScanSelection(selection);
+	}
+}
@@ -0,0 +1,278 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.apache.log4j.Logger;
+import org.grits.toolbox.ms.file.MSFile;
+import org.grits.toolbox.ms.file.reader.IMSAnnotationFileReader;
+import org.grits.toolbox.ms.file.reader.ScanReadRequest;
+import org.grits.toolbox.ms.file.scan.data.ScanSelection;
+import org.grits.toolbox.ms.file.scan.data.ScanView;
+import org.grits.toolbox.ms.om.data.Scan;
+import org.grits.toolbox.widgets.progress.IProgressListener;
+import org.grits.toolbox.widgets.tools.NotifyingProcess;
+
+/**
+ * Asynchronous variants of the {@link IMSAnnotationFileReader} operations. Each call runs on the executor with its
+ * own reader (created by the reader factory, with the listeners of this object) and returns a
+ * {@link CompletableFuture}, so the caller does not block a thread while the file is read.
+ *
+ * The default executor uses virtual threads if the runtime supports them (Java 21+), otherwise a shared pool of
+ * daemon threads. Cancelling a future (or its timeout) cancels its reader, so the read stops at the next scan.
+ * Cancelling this object cancels all the calls that are running.
+ */
+public class AsyncAnnotationFileReader extends NotifyingProcess {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(AsyncAnnotationFileReader.class);
+
+	private final Supplier<? extends IMSAnnotationFileReader> readerFactory;
+	private final Set<CompletableFuture<?>> running = ConcurrentHashMap.newKeySet();
+	private Executor executor = null;
+	private long defaultTimeout = 0;
+
+	private static class DefaultExecutor {
+		private static final ExecutorService instance = createDefaultExecutor();
+	}
+
+	private static class Timer {
+		private static final ScheduledThreadPoolExecutor instance = createTimer();
+	}
+
+	/**
+	 * reads mzXML files with a new {@link MzXmlReader} for each call
+	 */
+	public AsyncAnnotationFileReader() {
+		this(MzXmlReader::new);
+	}
+
+	/**
+	 * @param readerFactory creates the reader of each call
+	 */
+	public AsyncAnnotationFileReader(Supplier<? extends IMSAnnotationFileReader> readerFactory) {
+		this.readerFactory = readerFactory;
+	}
+
+	private static ExecutorService createDefaultExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			logger.debug("Virtual threads are not available, reading on a pool of platform threads");
+		}
+		AtomicInteger threadCount = new AtomicInteger();
+		return Executors.newFixedThreadPool(Math.max(4, 2 * Runtime.getRuntime().availableProcessors()), runnable -> {
+			Thread thread = new Thread(runnable, "MS file async reader " + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	private static ScheduledThreadPoolExecutor createTimer() {
+		ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, runnable -> {
+			Thread thread = new Thread(runnable, "MS file async reader timeouts");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.setRemoveOnCancelPolicy(true);
+		return timer;
+	}
+
+	/**
+	 * @return the executor running the calls, null if the default executor is used
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor the executor running the calls, null to use the default executor
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * @return timeout in milliseconds of the calls without an explicit timeout, 0 for none (the default)
+	 */
+	public long getDefaultTimeout() {
+		return defaultTimeout;
+	}
+
+	public void setDefaultTimeout(long defaultTimeout) {
+		this.defaultTimeout = defaultTimeout;
+	}
+
+	/**
+	 * cancelling this object cancels all the calls that are running. {@link #isCanceled()} stays true until the
+	 * next call is submitted, later calls are not affected.
+	 */
+	@Override
+	public void setCanceled(boolean isCanceled) {
+		super.setCanceled(isCanceled);
+		if( isCanceled ) {
+			for( CompletableFuture<?> future : running ) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * runs an operation of a new reader on the executor
+	 *
+	 * @param operation the operation, the reader is not used by anything else
+	 * @param timeout time after which the future fails with a {@link TimeoutException}, 0 for none
+	 * @param unit unit of the timeout
+	 * @return the future result of the operation. Cancelling it (or the timeout) cancels the reader.
+	 */
+	public <T> CompletableFuture<T> submit(Function<IMSAnnotationFileReader, T> operation, long timeout, TimeUnit unit) {
+		if( isCanceled() ) {
+			super.setCanceled(false); // an earlier cancel only applies to the calls that were running
+		}
+		IMSAnnotationFileReader reader = readerFactory.get();
+		for( IProgressListener listener : getProgressListeners() ) {
+			reader.addProgressListeners(listener);
+		}
+		CompletableFuture<T> future = new CompletableFuture<>();
+		running.add(future);
+		future.whenComplete((result, throwable) -> {
+			running.remove(future);
+			if( throwable != null ) { // cancelled, timed out or failed: stop the reading if still running
+				reader.setCanceled(true);
+			}
+		});
+		try {
+			(executor != null ? executor : DefaultExecutor.instance).execute(() -> {
+				if( future.isDone() ) {
+					return; // cancelled before it started
+				}
+				try {
+					future.complete(operation.apply(reader));
+				} catch (Throwable t) {
+					logger.error(t.getMessage(), t);
+					future.completeExceptionally(t);
+				}
+			});
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			future.completeExceptionally(e);
+		}
+		if( timeout > 0 && ! future.isDone() ) {
+			ScheduledFuture<?> timer = Timer.instance.schedule(() -> future.completeExceptionally(
+					new TimeoutException("Reading did not complete within " + timeout + " " + unit)), timeout, unit);
+			future.whenComplete((result, throwable) -> timer.cancel(false));
+		}
+		return future;
+	}
+
+	private <T> CompletableFuture<T> submit(Function<IMSAnnotationFileReader, T> operation) {
+		return submit(operation, defaultTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFile(ScanReadRequest)
+	 */
+	public CompletableFuture<List<Scan>> readMSFile(ScanReadRequest request, long timeout, TimeUnit unit) {
+		return submit(reader -> reader.readMSFile(request), timeout, unit);
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFile(ScanReadRequest)
+	 */
+	public CompletableFuture<List<Scan>> readMSFile(ScanReadRequest request) {
+		return submit(reader -> reader.readMSFile(request));
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFile(MSFile)
+	 */
+	public CompletableFuture<List<Scan>> readMSFile(MSFile file) {
+		return readMSFile(ScanReadRequest.forExperiment(file));
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFile(MSFile, int)
+	 */
+	public CompletableFuture<List<Scan>> readMSFile(MSFile file, int scanNumber) {
+		return readMSFile(ScanReadRequest.forScan(file, scanNumber, null));
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFile(MSFile, int, Map)
+	 */
+	public CompletableFuture<List<Scan>> readMSFile(MSFile file, int scanNumber, Map<Integer, List<Integer>> subScanMap) {
+		return readMSFile(ScanReadRequest.forScan(file, scanNumber, subScanMap));
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFile(MSFile, int, int, int)
+	 */
+	public CompletableFuture<List<Scan>> readMSFile(MSFile file, int msLevel, int parentScanNum, int scanNum) {
+		return readMSFile(ScanReadRequest.forScans(file, msLevel, parentScanNum, scanNum));
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFile(MSFile, ScanSelection)
+	 */
+	public CompletableFuture<List<Scan>> readMSFile(MSFile file, ScanSelection selection) {
+		return readMSFile(ScanReadRequest.forSelection(file, selection));
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#getScanList(MSFile, int)
+	 */
+	public CompletableFuture<List<Integer>> getScanList(MSFile file, int scanNumber, long timeout, TimeUnit unit) {
+		MSFile copy = copy(file);
+		return submit(reader -> reader.getScanList(copy, scanNumber), timeout, unit);
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#getScanList(MSFile, int)
+	 */
+	public CompletableFuture<List<Integer>> getScanList(MSFile file, int scanNumber) {
+		return getScanList(file, scanNumber, defaultTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFileForView(MSFile, int, int, int)
+	 */
+	public CompletableFuture<List<ScanView>> readMSFileForView(MSFile file, int msLevel, int parentScanNum, int scanNum,
+			long timeout, TimeUnit unit) {
+		MSFile copy = copy(file);
+		return submit(reader -> reader.readMSFileForView(copy, msLevel, parentScanNum, scanNum), timeout, unit);
+	}
+
+	/**
+	 * @see IMSAnnotationFileReader#readMSFileForView(MSFile, int, int, int)
+	 */
+	public CompletableFuture<List<ScanView>> readMSFileForView(MSFile file, int msLevel, int parentScanNum, int scanNum) {
+		return readMSFileForView(file, msLevel, parentScanNum, scanNum, defaultTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * the call runs later, so it gets its own copy of the (mutable) file object
+	 */
+	private static MSFile copy(MSFile file) {
+		MSFile copy = new MSFile();
+		copy.setFileName(file.getFileName());
+		copy.setExperimentType(file.getExperimentType());
+		copy.setVersion(file.getVersion());
+		copy.setCategory(file.getCategory());
+		copy.setReader(file.getReader());
+		return copy;
+	}
+}
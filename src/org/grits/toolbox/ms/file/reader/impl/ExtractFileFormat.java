@@ -0,0 +1,38 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import org.grits.toolbox.ms.file.FileCategory;
+import org.grits.toolbox.ms.file.reader.IMSFileFormat;
+import org.grits.toolbox.ms.file.reader.IMSFileReader;
+import org.grits.toolbox.ms.file.reader.MSFileHeader;
+
+/**
+ * Thermo Xtract files, read by {@link ExtractReader}. The root element is Xtract.
+ */
+public class ExtractFileFormat implements IMSFileFormat {
+
+	@Override
+	public String getName() {
+		return "Xtract";
+	}
+
+	@Override
+	public FileCategory getCategory() {
+		return FileCategory.EXTERNAL_QUANTIFICATION_CATEGORY;
+	}
+
+	@Override
+	public boolean matches(MSFileHeader header) {
+		return header != null && "Xtract".equals(header.getRootElement());
+	}
+
+	@Override
+	public String getVersion(MSFileHeader header) {
+		String sVersion = header.getRootAttribute("Version");
+		return sVersion != null ? sVersion : header.getRootAttribute("version");
+	}
+
+	@Override
+	public IMSFileReader createReader() {
+		return new ExtractReader();
+	}
+}
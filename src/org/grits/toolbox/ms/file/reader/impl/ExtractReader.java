@@ -4,84 +4,175 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.StringReader;
-import java.util.List;
+import java.io.PushbackReader;
+import java.io.Reader;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import org.apache.log4j.Logger;
 import org.grits.toolbox.ms.file.MSFile;
 import org.grits.toolbox.ms.file.extquant.data.QuantPeak;
 import org.grits.toolbox.ms.file.extquant.data.QuantPeakData;
 import org.grits.toolbox.ms.file.extquant.data.QuantPeakMatch;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.input.SAXBuilder;
+import org.grits.toolbox.ms.file.reader.MSFileHeader;
+import org.grits.toolbox.ms.file.reader.QuantReadRequest;
 
+/**
+ * Reads Thermo Xtract files. The file is parsed with a StAX reader while it is read, the text before the XML
+ * declaration is skipped, so the memory used does not depend on the size of the file (apart from the result).
+ */
 public class ExtractReader extends ExternalQuantFileReader
 {
 	private static final Logger logger = Logger.getLogger(ExtractReader.class);
+	private static final char[] XML_DECLARATION = "<?xml".toCharArray();
 	
 	public ExtractReader() {
 		super();
 	}
 	
-	@SuppressWarnings("unchecked")
 	@Override
 	public QuantPeakData read(String a_file, boolean a_ppm, double a_intervalValue) {
 		this.m_ppm = a_ppm;
 		this.m_intervalValue = a_intervalValue;
-		String t_content;
-		try {
-			File t_file = new File(a_file);
-			t_content = this.cleanTermoMess(t_file);
-			SAXBuilder builder = new SAXBuilder();
-			Document t_document = builder.build(new StringReader(t_content));
-			Element t_root = t_document.getRootElement();
-			if ( !t_root.getName().equals("Xtract") )
-			{
-				throw new InvalidFileFormatException("Invalid file format: missing Xtract tag");
-			}
-			this.m_data = new QuantPeakData();
-			List<Element> t_headList = t_root.getChildren("Head");
-			for (Element t_head : t_headList)
-			{
-				this.readHead(t_head);
-			}        
-			List<Element> t_list = t_root.getChildren("Mono");
-			for (Element t_mono : t_list)
+		this.m_data = this.readFile(a_file, a_ppm, a_intervalValue);
+		return this.m_data;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public QuantPeakData read(QuantReadRequest a_request) {
+		return this.readFile(a_request.getFileName(), a_request.isPpm(), a_request.getIntervalValue());
+	}
+
+	private QuantPeakData readFile(String a_file, boolean a_ppm, double a_intervalValue) {
+		XMLStreamReader t_xml = null;
+		try (Reader t_reader = this.openXml(new File(a_file))) {
+			t_xml = this.createXmlReader(t_reader);
+			QuantPeakData t_data = new QuantPeakData();
+			// the peaks and matches are created as their elements are read: Head and Mono are children of the
+			// root, Charged children of Mono and Match children of Charged, any other element is skipped
+			int t_depth = 0;
+			QuantPeak t_peak = null;
+			boolean t_charged = false;
+			QuantPeakMatch t_match = null;
+			while (t_xml.hasNext())
 			{
-				this.readMono(t_mono);
+				int t_event = t_xml.next();
+				if ( t_event == XMLStreamConstants.START_ELEMENT )
+				{
+					t_depth++;
+					String t_name = t_xml.getLocalName();
+					if ( t_depth == 1 && !t_name.equals("Xtract") )
+					{
+						throw new InvalidFileFormatException("Invalid file format: missing Xtract tag");
+					}
+					else if ( t_depth == 2 && t_name.equals("Head") )
+					{
+						this.readHead(t_xml, t_data);
+					}
+					else if ( t_depth == 2 && t_name.equals("Mono") )
+					{
+						t_peak = this.readMono(t_xml);
+					}
+					else if ( t_depth == 3 && t_peak != null && t_name.equals("Charged") )
+					{
+						t_charged = true;
+					}
+					else if ( t_depth == 4 && t_charged && t_name.equals("Match") )
+					{
+						t_match = this.readMatch(t_xml, t_peak, a_ppm, a_intervalValue);
+					}
+				}
+				else if ( t_event == XMLStreamConstants.END_ELEMENT )
+				{
+					if ( t_depth == 4 && t_match != null )
+					{
+						t_peak.add(t_match);
+						t_match = null;
+					}
+					else if ( t_depth == 3 )
+					{
+						t_charged = false;
+					}
+					else if ( t_depth == 2 && t_peak != null )
+					{
+						t_data.add(t_peak);
+						t_peak = null;
+					}
+					t_depth--;
+				}
 			}
-			return this.m_data;
+			return t_data;
 		} catch (IOException e) {
 			logger.error("Could not read extract file", e);
-		} catch (JDOMException e) {
+		} catch (XMLStreamException e) {
 			logger.error("Could not read extract file", e);
 		} catch (InvalidFileFormatException e) {
 			logger.error(e.getMessage(), e);
+		} finally {
+			this.close(t_xml);
 		}
 		return null;
 	}
 
-    private String cleanTermoMess(File a_file) throws IOException 
+    /**
+     * opens the file for reading from its XML declaration, Xtract writes some text before it
+     */
+    private Reader openXml(File a_file) throws IOException, InvalidFileFormatException
+    {
+        PushbackReader t_reader = new PushbackReader(new BufferedReader(new FileReader(a_file)), XML_DECLARATION.length);
+        int t_matched = 0;
+        int t_char;
+        while ( t_matched < XML_DECLARATION.length && (t_char = t_reader.read()) != -1 )
+        {
+            if ( t_char == XML_DECLARATION[t_matched] )
+            {
+                t_matched++;
+            }
+            else
+            {
+                t_matched = t_char == XML_DECLARATION[0] ? 1 : 0;
+            }
+        }
+        if ( t_matched < XML_DECLARATION.length )
+        {
+            t_reader.close();
+            throw new InvalidFileFormatException("Invalid file format: missing XML declaration");
+        }
+        t_reader.unread(XML_DECLARATION);
+        return t_reader;
+    }
+
+    private XMLStreamReader createXmlReader(Reader a_reader) throws XMLStreamException
     {
-        StringBuffer t_buffer = new StringBuffer("");
-        BufferedReader t_reader = null;
-        t_reader = new BufferedReader(new FileReader(a_file));
-        String t_line = null;
-        while ((t_line = t_reader.readLine()) != null)
+        XMLInputFactory t_factory = XMLInputFactory.newInstance();
+        t_factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        return t_factory.createXMLStreamReader(a_reader);
+    }
+
+    private void close(XMLStreamReader a_xml)
+    {
+        if ( a_xml != null )
         {
-            t_buffer.append(t_line.trim() + "\n");
+            try
+            {
+                a_xml.close();
+            }
+            catch (XMLStreamException e)
+            {
+                logger.debug(e.getMessage(), e);
+            }
         }
-        t_reader.close();
-        String t_content = t_buffer.toString();
-        
-        return t_content.substring(t_content.indexOf("<?xml"));
     }
     
-    private void readHead(Element a_head) throws InvalidFileFormatException
+    private void readHead(XMLStreamReader a_head, QuantPeakData a_data) throws InvalidFileFormatException
     {
-        String t_value = a_head.getAttributeValue("Scan");
+        String t_value = a_head.getAttributeValue(null, "Scan");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("Scan is missing for Head tag");
@@ -89,13 +180,13 @@ public class ExtractReader extends ExternalQuantFileReader
         t_value = t_value.trim();
         try
         {
-        	this.m_data.setScanNo(Integer.parseInt(t_value));
+        	a_data.setScanNo(Integer.parseInt(t_value));
         }
         catch (Exception e)
         {
             throw new InvalidFileFormatException("Scan is not a integer value: " + t_value);
         }
-        t_value = a_head.getAttributeValue("RT");
+        t_value = a_head.getAttributeValue(null, "RT");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("RT is missing for Head tag");
@@ -103,7 +194,7 @@ public class ExtractReader extends ExternalQuantFileReader
         t_value = t_value.trim();
         try
         {
-        	this.m_data.setRetentionTime(Double.parseDouble(t_value));
+        	a_data.setRetentionTime(Double.parseDouble(t_value));
         }
         catch (Exception e)
         {
@@ -111,11 +202,10 @@ public class ExtractReader extends ExternalQuantFileReader
         }
     }    
 
-    @SuppressWarnings("unchecked")
-    private void readMono(Element a_mono) throws InvalidFileFormatException
+    private QuantPeak readMono(XMLStreamReader a_mono) throws InvalidFileFormatException
     {
         QuantPeak t_peak = new QuantPeak();
-        String t_value = a_mono.getAttributeValue("MonoisoMass");
+        String t_value = a_mono.getAttributeValue(null, "MonoisoMass");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("MonoisoMass is missing for Mono tag");
@@ -129,7 +219,7 @@ public class ExtractReader extends ExternalQuantFileReader
         {
             throw new InvalidFileFormatException("MonoisoMass is not a double value: " + t_value);
         }
-        t_value = a_mono.getAttributeValue("AveragineMass");
+        t_value = a_mono.getAttributeValue(null, "AveragineMass");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("AveragineMass is missing for Mono tag");
@@ -143,7 +233,7 @@ public class ExtractReader extends ExternalQuantFileReader
         {
             throw new InvalidFileFormatException("AveragineMass is not a double value: " + t_value);
         }
-        t_value = a_mono.getAttributeValue("SumIntensity");
+        t_value = a_mono.getAttributeValue(null, "SumIntensity");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("SumIntensity is missing for Mono tag");
@@ -157,28 +247,13 @@ public class ExtractReader extends ExternalQuantFileReader
         {
             throw new InvalidFileFormatException("SumIntensity is not a double value: " + t_value);
         }
-        List<Element> t_list = a_mono.getChildren("Charged");
-        for (Element t_charged : t_list)
-        {
-            this.readCharged(t_charged,t_peak);
-        }
-        this.m_data.add(t_peak);
-    }
-
-    @SuppressWarnings("unchecked")
-    private void readCharged(Element a_charged, QuantPeak a_peak) throws InvalidFileFormatException
-    {
-        List<Element> t_list = a_charged.getChildren("Match");
-        for (Element t_match : t_list)
-        {
-            this.readMatch(t_match,a_peak);
-        }
+        return t_peak;
     }
 
-    private void readMatch(Element a_match, QuantPeak a_peak) throws InvalidFileFormatException
+    private QuantPeakMatch readMatch(XMLStreamReader a_match, QuantPeak a_peak, boolean a_ppm, double a_intervalValue) throws InvalidFileFormatException
     {
         QuantPeakMatch t_match = new QuantPeakMatch(a_peak);
-        String t_value = a_match.getAttributeValue("Chg");
+        String t_value = a_match.getAttributeValue(null, "Chg");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("Chg is missing for Match tag");
@@ -192,7 +267,7 @@ public class ExtractReader extends ExternalQuantFileReader
         {
             throw new InvalidFileFormatException("Chg is not a number: " + t_value);
         }
-        t_value = a_match.getAttributeValue("SumInt");
+        t_value = a_match.getAttributeValue(null, "SumInt");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("SumInt is missing for Match tag");
@@ -206,7 +281,7 @@ public class ExtractReader extends ExternalQuantFileReader
         {
             throw new InvalidFileFormatException("SumInt is not a double value: " + t_value);
         }
-        t_value = a_match.getAttributeValue("MoiMz");
+        t_value = a_match.getAttributeValue(null, "MoiMz");
         if ( t_value == null )
         {
             throw new InvalidFileFormatException("MoiMz is missing for Match tag");
@@ -215,43 +290,35 @@ public class ExtractReader extends ExternalQuantFileReader
         try
         {
             t_match.setMzMostAbundant(Double.parseDouble(t_value));
-            this.setMinMax(t_match,t_match.getMzMostAbundant());
+            this.setMinMax(t_match,t_match.getMzMostAbundant(), a_ppm, a_intervalValue);
         }
         catch (Exception e)
         {
             throw new InvalidFileFormatException("MoiMz is not a double value: " + t_value);
         }
-        a_peak.add(t_match);
+        return t_match;
     }
 
-    private void setMinMax(QuantPeakMatch a_match, Double a_mzMostAbundant)
+    private void setMinMax(QuantPeakMatch a_match, Double a_mzMostAbundant, boolean a_ppm, double a_intervalValue)
     {
-        if ( this.m_ppm )
+        if ( a_ppm )
         {
-            double t_value = a_mzMostAbundant * this.m_intervalValue / 1000000D;
+            double t_value = a_mzMostAbundant * a_intervalValue / 1000000D;
             a_match.setMinMz( a_mzMostAbundant - t_value );
             a_match.setMaxMz( a_mzMostAbundant + t_value );
         }
         else
         {
-            a_match.setMinMz( a_mzMostAbundant - this.m_intervalValue );
-            a_match.setMaxMz( a_mzMostAbundant + this.m_intervalValue );
+            a_match.setMinMz( a_mzMostAbundant - a_intervalValue );
+            a_match.setMaxMz( a_mzMostAbundant + a_intervalValue );
         }
     }
 
+	/**
+	 * checks the root element in the header of the file only, see {@link ExtractFileFormat}
+	 */
 	@Override
 	public boolean isValid(MSFile file) {
-		try {
-			File t_file = new File(file.getFileName());
-			String t_content = this.cleanTermoMess(t_file);
-			SAXBuilder builder = new SAXBuilder();
-			Document t_document = builder.build(new StringReader(t_content));
-			Element t_root = t_document.getRootElement();
-			if (t_root.getName().equals("Xtract")) 
-				return true;
-		} catch (IOException | JDOMException e) {
-			return false;
-		} 
-		return false;
+		return new ExtractFileFormat().matches(MSFileHeader.read(file.getFileName()));
 	}
 }
@@ -0,0 +1,21 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import org.systemsbiology.jrap.grits.stax.Scan;
+
+/**
+ * Source of decoded scans for the read modes of {@link MzXmlReader}. The scans are requested one after another
+ * (usually in ascending scan number order), the source may read them ahead.
+ */
+interface IMzXmlScanSource extends AutoCloseable {
+	/**
+	 * @param iScanNumber scan number
+	 * @return the scan or null if it can't be read
+	 */
+	Scan get(int iScanNumber);
+
+	/**
+	 * stops reading ahead and releases the resources of the source
+	 */
+	@Override
+	void close();
+}
@@ -0,0 +1,472 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+import org.grits.toolbox.ms.file.MSFile;
+import org.grits.toolbox.ms.file.reader.IMSAnnotationFileReader;
+import org.grits.toolbox.ms.file.reader.IMSExtQuantFileReader;
+import org.grits.toolbox.ms.file.reader.IMSFileReader;
+import org.grits.toolbox.widgets.progress.IProgressListener;
+import org.grits.toolbox.widgets.tools.NotifyingProcess;
+
+/**
+ * Reads a batch of MS files concurrently. Each file is read with its own reader ({@link MSFile#getReader()}),
+ * files sharing the same reader instance are read one after another.
+ *
+ * The files are scheduled on a shared executor in the order they are given, limited by:
+ * <ul>
+ * <li>the number of files read at the same time from one device (file store), so a disk is not thrashed by
+ * concurrent reads</li>
+ * <li>a global heap budget: each file reserves an estimate of its memory footprint (its size times
+ * {@link #getHeapPerFileByte()}) until its result has been handed to the caller</li>
+ * </ul>
+ *
+ * Results (or failures) are handed back on the calling thread as each file completes. The progress of the batch
+ * (number of files read) and the messages of the readers (prefixed with the file name) are sent to the listeners
+ * of the batch reader.
+ */
+public class MSFileBatchReader extends NotifyingProcess {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MSFileBatchReader.class);
+
+	private static final long MB = 1024L * 1024;
+
+	private ExecutorService executor = null;
+	private int numThreads = Runtime.getRuntime().availableProcessors();
+	private int maxReadsPerDevice = 2;
+	private long heapBudget = Runtime.getRuntime().maxMemory() / 2;
+	private double heapPerFileByte = 2.0;
+	private IFileTask fileTask = new DefaultFileTask();
+	private boolean ppm = false;
+	private double intervalValue = 500D;
+
+	/**
+	 * reads one file of the batch
+	 */
+	public interface IFileTask {
+		/**
+		 * @param file the MS file
+		 * @param reader the reader of the file
+		 * @param batchReader the batch reader (settings of the batch)
+		 * @return the data read from the file, null if the file couldn't be read
+		 * @throws Exception if the file couldn't be read
+		 */
+		Object read(MSFile file, IMSFileReader reader, MSFileBatchReader batchReader) throws Exception;
+	}
+
+	/**
+	 * default task: {@link IMSAnnotationFileReader#readMSFile(MSFile)} for annotation readers (scans of direct
+	 * infusion and TIM files), {@link IMSExtQuantFileReader#read(MSFile, boolean, double)} with the quantification
+	 * settings of the batch for external quantification readers (e.g. {@link ExtractReader})
+	 */
+	public static class DefaultFileTask implements IFileTask {
+		@Override
+		public Object read(MSFile file, IMSFileReader reader, MSFileBatchReader batchReader) throws Exception {
+			if( reader instanceof IMSAnnotationFileReader ) {
+				return ((IMSAnnotationFileReader) reader).readMSFile(file);
+			}
+			if( reader instanceof IMSExtQuantFileReader ) {
+				return ((IMSExtQuantFileReader) reader).read(file, batchReader.isPpm(), batchReader.getIntervalValue());
+			}
+			throw new IllegalArgumentException("Unsupported reader for file " + file.getFileName() + ": " + reader);
+		}
+	}
+
+	/**
+	 * result of reading one file of the batch
+	 */
+	public static class Result {
+		private final MSFile file;
+		private final Object data;
+		private final Throwable error;
+		private final long readTime;
+
+		private Result(MSFile file, Object data, Throwable error, long readTime) {
+			this.file = file;
+			this.data = data;
+			this.error = error;
+			this.readTime = readTime;
+		}
+
+		public MSFile getFile() {
+			return file;
+		}
+
+		/**
+		 * @return the data read from the file (e.g. the list of scans or the quantification data), null if failed
+		 */
+		public Object getData() {
+			return data;
+		}
+
+		/**
+		 * @return the reason of the failure, null if the file was read
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		/**
+		 * @return true if the file was read
+		 */
+		public boolean isSuccessful() {
+			return error == null;
+		}
+
+		/**
+		 * @return time spent reading the file in milliseconds, 0 if not read
+		 */
+		public long getReadTime() {
+			return readTime;
+		}
+	}
+
+	/**
+	 * reads all the files and returns the results in the order the files completed
+	 *
+	 * @param files the files to be read
+	 * @return a result for each file
+	 */
+	public List<Result> read(Collection<MSFile> files) {
+		List<Result> results = new ArrayList<>();
+		read(files, results::add);
+		return results;
+	}
+
+	/**
+	 * reads all the files. Returns once all the files have been read (or skipped because the batch was cancelled).
+	 *
+	 * @param files the files to be read
+	 * @param resultConsumer gets the result of each file as soon as it completes, always on the calling thread
+	 */
+	public void read(Collection<MSFile> files, Consumer<Result> resultConsumer) {
+		ExecutorService pool = executor;
+		if( pool == null ) {
+			pool = Executors.newFixedThreadPool(Math.max(1, numThreads), runnable -> {
+				Thread thread = new Thread(runnable, "MS file batch reader");
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		try {
+			new Batch(files, resultConsumer, pool).run();
+		} finally {
+			if( pool != executor ) {
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * scheduling state of one call to {@link MSFileBatchReader#read(Collection, Consumer)}, only used by the calling thread
+	 */
+	private class Batch {
+		private final Consumer<Result> resultConsumer;
+		private final ExecutorService pool;
+		private final LinkedList<MSFile> pending;
+		private final LinkedBlockingQueue<Result> completed = new LinkedBlockingQueue<>();
+		private final Map<Object, Integer> readsPerDevice = new HashMap<>();
+		private final Map<MSFile, Object> devices = new HashMap<>();
+		private final Map<MSFile, Long> reservations = new HashMap<>();
+		private final Map<IMSFileReader, MSFile> busyReaders = new IdentityHashMap<>();
+		private final int numFiles;
+		private long reservedHeap = 0;
+		private int numRead = 0;
+
+		private Batch(Collection<MSFile> files, Consumer<Result> resultConsumer, ExecutorService pool) {
+			this.resultConsumer = resultConsumer;
+			this.pool = pool;
+			this.pending = new LinkedList<>(files);
+			this.numFiles = files.size();
+		}
+
+		private void run() {
+			setMaxValue(numFiles);
+			updateListeners("Reading " + numFiles + " files", 0);
+			while( ! pending.isEmpty() || ! busyReaders.isEmpty() ) {
+				if( isCanceled() ) {
+					cancel();
+				} else {
+					schedule();
+				}
+				if( busyReaders.isEmpty() ) {
+					continue;
+				}
+				Result result = null;
+				try {
+					result = completed.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					setCanceled(true);
+				}
+				if( result != null ) {
+					release(result.getFile());
+					deliver(result);
+				}
+			}
+		}
+
+		private void schedule() {
+			Iterator<MSFile> itr = pending.iterator();
+			while( itr.hasNext() ) {
+				MSFile file = itr.next();
+				IMSFileReader reader = file.getReader();
+				if( reader == null ) {
+					itr.remove();
+					deliver(new Result(file, null, new IllegalArgumentException("No reader for file " + file.getFileName()), 0));
+					continue;
+				}
+				if( busyReaders.containsKey(reader) ) {
+					continue;
+				}
+				Object device = getDevice(file);
+				int iReads = readsPerDevice.getOrDefault(device, 0);
+				if( iReads >= maxReadsPerDevice ) {
+					continue;
+				}
+				long lHeap = Math.min(estimateHeap(file), heapBudget);
+				if( reservedHeap + lHeap > heapBudget ) {
+					break; // the next files wait as well, so a large file is not overtaken forever
+				}
+				itr.remove();
+				readsPerDevice.put(device, iReads + 1);
+				devices.put(file, device);
+				reservedHeap += lHeap;
+				reservations.put(file, lHeap);
+				busyReaders.put(reader, file);
+				pool.execute(() -> completed.add(readFile(file, reader)));
+			}
+		}
+
+		private void release(MSFile file) {
+			Object device = devices.remove(file);
+			readsPerDevice.put(device, readsPerDevice.get(device) - 1);
+			reservedHeap -= reservations.remove(file);
+			busyReaders.remove(file.getReader());
+		}
+
+		private void cancel() {
+			for( MSFile file : pending ) {
+				deliver(new Result(file, null, new CancellationException("Reading of the batch was canceled"), 0));
+			}
+			pending.clear();
+			for( IMSFileReader reader : busyReaders.keySet() ) {
+				reader.setCanceled(true);
+			}
+		}
+
+		private void deliver(Result result) {
+			numRead++;
+			if( ! result.isSuccessful() && ! (result.getError() instanceof CancellationException) ) {
+				updateErrorListener("Unable to read " + result.getFile().getFileName(), result.getError());
+			}
+			updateListeners("Read " + numRead + " of " + numFiles + " files", numRead);
+			try {
+				resultConsumer.accept(result);
+			} catch (Exception e) {
+				logger.error(e.getMessage(), e);
+			}
+		}
+	}
+
+	private Result readFile(MSFile file, IMSFileReader reader) {
+		FileProgressListener listener = new FileProgressListener(file);
+		reader.addProgressListeners(listener);
+		long lStart = System.currentTimeMillis();
+		try {
+			Object data = fileTask.read(file, reader, this);
+			long lTime = System.currentTimeMillis() - lStart;
+			if( reader.isCanceled() ) {
+				return new Result(file, null, new CancellationException("Reading of " + file.getFileName() + " was canceled"), lTime);
+			}
+			if( data == null ) {
+				return new Result(file, null, new IOException("Unable to read " + file.getFileName()), lTime);
+			}
+			return new Result(file, data, null, lTime);
+		} catch (Throwable t) {
+			logger.error(t.getMessage(), t);
+			return new Result(file, null, t, System.currentTimeMillis() - lStart);
+		} finally {
+			if( reader.getProgressListeners() != null ) {
+				reader.getProgressListeners().remove(listener);
+			}
+		}
+	}
+
+	/**
+	 * @param file an MS file
+	 * @return the file store of the file, or the file itself if it can't be determined
+	 */
+	private Object getDevice(MSFile file) {
+		try {
+			return Files.getFileStore(Paths.get(file.getFileName()));
+		} catch (Exception e) {
+			logger.debug("Unable to determine the file store of " + file.getFileName() + ": " + e.getMessage());
+			return file.getFileName();
+		}
+	}
+
+	private long estimateHeap(MSFile file) {
+		long lLength = new File(file.getFileName()).length();
+		return Math.max(MB, (long) (lLength * heapPerFileByte));
+	}
+
+	/**
+	 * forwards the messages of the reader of a file to the listeners of the batch
+	 */
+	private class FileProgressListener implements IProgressListener {
+		private final String fileName;
+
+		private FileProgressListener(MSFile file) {
+			this.fileName = new File(file.getFileName()).getName();
+		}
+
+		@Override
+		public void setProgressMessage(String message) {
+			for( IProgressListener listener : getProgressListeners() ) {
+				listener.setProgressMessage(fileName + ": " + message);
+			}
+		}
+
+		@Override
+		public void setProgressValue(int value) {
+			// the progress of the batch is the number of files read
+		}
+
+		@Override
+		public void setMaxValue(int value) {
+		}
+
+		@Override
+		public void setMinValue(int value) {
+		}
+
+		@Override
+		public void setError(String message) {
+			for( IProgressListener listener : getProgressListeners() ) {
+				listener.setError(fileName + ": " + message);
+			}
+		}
+
+		@Override
+		public void setError(String message, Throwable t) {
+			for( IProgressListener listener : getProgressListeners() ) {
+				listener.setError(fileName + ": " + message, t);
+			}
+		}
+
+		@Override
+		public void setProgressType(ProgressType progressType) {
+		}
+	}
+
+	/**
+	 * @return the executor reading the files, null if each batch uses its own pool of {@link #getNumThreads()} threads
+	 */
+	public ExecutorService getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @param executor shared executor reading the files (not shut down by the batch reader), null for a pool per batch
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	public int getNumThreads() {
+		return numThreads;
+	}
+
+	/**
+	 * @param numThreads number of threads of the pool used if no executor is set
+	 */
+	public void setNumThreads(int numThreads) {
+		this.numThreads = numThreads;
+	}
+
+	public int getMaxReadsPerDevice() {
+		return maxReadsPerDevice;
+	}
+
+	/**
+	 * @param maxReadsPerDevice maximum number of files read at the same time from one device (at least 1)
+	 */
+	public void setMaxReadsPerDevice(int maxReadsPerDevice) {
+		this.maxReadsPerDevice = Math.max(1, maxReadsPerDevice);
+	}
+
+	public long getHeapBudget() {
+		return heapBudget;
+	}
+
+	/**
+	 * @param heapBudget bytes of heap the files read at the same time may use. A file larger than the budget
+	 * is read alone.
+	 */
+	public void setHeapBudget(long heapBudget) {
+		this.heapBudget = heapBudget;
+	}
+
+	public double getHeapPerFileByte() {
+		return heapPerFileByte;
+	}
+
+	/**
+	 * @param heapPerFileByte estimated heap used per byte of a file while it is read and until its result is handed back
+	 */
+	public void setHeapPerFileByte(double heapPerFileByte) {
+		this.heapPerFileByte = heapPerFileByte;
+	}
+
+	public IFileTask getFileTask() {
+		return fileTask;
+	}
+
+	/**
+	 * @param fileTask reads each file, {@link DefaultFileTask} by default
+	 */
+	public void setFileTask(IFileTask fileTask) {
+		this.fileTask = fileTask;
+	}
+
+	/**
+	 * @return true if the interval of the external quantification readers is in ppm
+	 */
+	public boolean isPpm() {
+		return ppm;
+	}
+
+	public void setPpm(boolean ppm) {
+		this.ppm = ppm;
+	}
+
+	/**
+	 * @return interval (Da or ppm) used by the external quantification readers
+	 */
+	public double getIntervalValue() {
+		return intervalValue;
+	}
+
+	public void setIntervalValue(double intervalValue) {
+		this.intervalValue = intervalValue;
+	}
+}
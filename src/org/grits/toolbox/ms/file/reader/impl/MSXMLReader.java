@@ -1,5 +1,6 @@
 package org.grits.toolbox.ms.file.reader.impl;
 
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -9,6 +10,9 @@ import org.grits.toolbox.ms.file.MSFile;
 import org.grits.toolbox.ms.file.extquant.data.QuantPeak;
 import org.grits.toolbox.ms.file.extquant.data.QuantPeakData;
 import org.grits.toolbox.ms.file.extquant.data.QuantPeakMatch;
+import org.grits.toolbox.ms.file.extquant.data.QuantPeakMatcher;
+import org.grits.toolbox.ms.file.reader.MSFileHeader;
+import org.grits.toolbox.ms.file.reader.QuantReadRequest;
 import org.grits.toolbox.ms.om.data.Peak;
 import org.grits.toolbox.ms.om.data.Scan;
 
@@ -59,28 +63,54 @@ public class MSXMLReader extends ExternalQuantFileReader
 	
 	/**
 	 * {@inheritDoc}
+	 * uses the MS level, scan numbers and precursor peaks set on this reader
 	 */
 	@Override
 	public QuantPeakData read(String a_file, boolean a_ppm, double a_intervalValue) {
 		this.m_ppm = a_ppm;
 		this.m_intervalValue = a_intervalValue;
+		MSFile t_file = new MSFile();
+		t_file.setFileName(a_file);
+		this.m_data = read(new QuantReadRequest(t_file, a_ppm, a_intervalValue, 
+				msLevel == null ? -1 : msLevel, parentScanNum == null ? -1 : parentScanNum, 
+				scanNum == null ? -1 : scanNum, precursorPeaks));
+		return this.m_data;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public QuantPeakData read(QuantReadRequest a_request) {
+		QuantPeakData t_quantData = null;
 		try {
 			MzXmlReader t_reader = new MzXmlReader();
-			List<Scan> scans = t_reader.readMzXmlFile(a_file, getMsLevel(), getParentScanNum(), getScanNum() ); // assuming just grap Scan 1
+			List<Scan> scans = t_reader.readMzXmlFile(a_request.getFileName(), a_request.getMsLevel(), 
+					a_request.getParentScanNum(), a_request.getScanNum() ); // assuming just grap Scan 1
 			Map<Integer,Scan> t_data = FileReaderUtils.listToHashMap(scans);
 			Scan t_scan = t_data.get(1);
-			this.m_data = new QuantPeakData();
-			this.m_data.setMaxIntensity(t_scan.getMostAbundantPeak());
-			setHeaderData(t_scan);
-			for( Peak peak : precursorPeaks ) {
-				if( ! peak.getIsPrecursor() ) 
-					continue;
-				QuantPeak qp = QuantPeak.getQuantPeakData(peak.getMz());		
-				double dTol = QuantPeakMatch.getDaTolerance(peak.getMz(), this.m_intervalValue, this.m_ppm);
-				QuantPeakMatch qpm = QuantPeakMatch.findQuantPeakMatch(qp, peak.getMz(), t_scan.getPeaklist(), dTol );
-				if( qpm != null ) {
-					qp.add(qpm);
-					this.m_data.add(qp);
+			t_quantData = new QuantPeakData();
+			t_quantData.setMaxIntensity(t_scan.getMostAbundantPeak());
+			setHeaderData(t_quantData, t_scan);
+			List<Peak> t_precursorPeaks = new ArrayList<Peak>();
+			for( Peak peak : a_request.getPrecursorPeaks() ) {
+				if( peak.getIsPrecursor() ) 
+					t_precursorPeaks.add(peak);
+			}
+			// all the precursors are matched at once against the peaks of the scan
+			QuantPeak[] t_quantPeaks = new QuantPeak[t_precursorPeaks.size()];
+			double[] t_mz = new double[t_quantPeaks.length];
+			double[] t_tolerance = new double[t_quantPeaks.length];
+			for( int i = 0; i < t_quantPeaks.length; i++ ) {
+				t_mz[i] = t_precursorPeaks.get(i).getMz();
+				t_quantPeaks[i] = QuantPeak.getQuantPeakData(t_mz[i]);
+				t_tolerance[i] = QuantPeakMatch.getDaTolerance(t_mz[i], a_request.getIntervalValue(), a_request.isPpm());
+			}
+			QuantPeakMatch[] t_matches = new QuantPeakMatcher(t_scan.getPeaklist()).findQuantPeakMatches(t_quantPeaks, t_mz, t_tolerance);
+			for( int i = 0; i < t_quantPeaks.length; i++ ) {
+				if( t_matches[i] != null ) {
+					t_quantPeaks[i].add(t_matches[i]);
+					t_quantData.add(t_quantPeaks[i]);
 				}
 			}
 		} catch( InvalidFileFormatException e ) {
@@ -92,14 +122,14 @@ public class MSXMLReader extends ExternalQuantFileReader
 
 		}
 
-		return this.m_data;
+		return t_quantData;
 	}
 
-	private void setHeaderData(Scan a_scan) throws InvalidFileFormatException
+	private void setHeaderData(QuantPeakData a_data, Scan a_scan) throws InvalidFileFormatException
 	{
 		try
 		{
-			this.m_data.setScanNo(a_scan.getScanNo());
+			a_data.setScanNo(a_scan.getScanNo());
 		}
 		catch (Exception e)
 		{
@@ -107,7 +137,7 @@ public class MSXMLReader extends ExternalQuantFileReader
 		}
 		try
 		{
-			this.m_data.setRetentionTime(a_scan.getRetentionTime());
+			a_data.setRetentionTime(a_scan.getRetentionTime());
 		}
 		catch (Exception e)
 		{
@@ -120,6 +150,8 @@ public class MSXMLReader extends ExternalQuantFileReader
 	 */
 	@Override
 	public boolean isValid(MSFile file) {
+		if ( !MzXmlFileFormat.isMzXml(MSFileHeader.read(file.getFileName())) )
+			return false;
 		MzXmlReader t_reader = new MzXmlReader();
 		return t_reader.hasMS1Scan(file);
 	}
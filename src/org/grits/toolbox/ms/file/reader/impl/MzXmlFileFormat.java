@@ -0,0 +1,56 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.grits.toolbox.ms.file.FileCategory;
+import org.grits.toolbox.ms.file.reader.IMSFileFormat;
+import org.grits.toolbox.ms.file.reader.IMSFileReader;
+import org.grits.toolbox.ms.file.reader.MSFileHeader;
+
+/**
+ * mzXML files for annotation, read by {@link MzXmlReader}. The root element is mzXML (msRun for the oldest
+ * versions), the version is the schema revision in the namespace (e.g. .../schema_revision/mzXML_3.2).
+ */
+public class MzXmlFileFormat implements IMSFileFormat {
+	private static final Pattern VERSION_PATTERN = Pattern.compile("mzXML_([0-9][0-9.]*)");
+
+	/**
+	 * @param header header of a file
+	 * @return true if the file is an mzXML file
+	 */
+	public static boolean isMzXml(MSFileHeader header) {
+		return header != null && ("mzXML".equals(header.getRootElement()) || "msRun".equals(header.getRootElement()));
+	}
+
+	@Override
+	public String getName() {
+		return "mzXML";
+	}
+
+	@Override
+	public FileCategory getCategory() {
+		return FileCategory.ANNOTATION_CATEGORY;
+	}
+
+	@Override
+	public boolean matches(MSFileHeader header) {
+		return isMzXml(header);
+	}
+
+	@Override
+	public String getVersion(MSFileHeader header) {
+		if( header.getNamespace() != null ) {
+			Matcher matcher = VERSION_PATTERN.matcher(header.getNamespace());
+			if( matcher.find() ) {
+				return matcher.group(1);
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public IMSFileReader createReader() {
+		return new MzXmlReader();
+	}
+}
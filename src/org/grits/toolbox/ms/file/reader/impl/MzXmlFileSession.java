@@ -0,0 +1,397 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BooleanSupplier;
+
+import org.grits.toolbox.ms.file.MSFile;
+import org.grits.toolbox.ms.file.reader.IMSFileSession;
+import org.grits.toolbox.ms.file.scan.cache.SpectrumCache;
+import org.grits.toolbox.ms.file.scan.data.FileSummary;
+import org.grits.toolbox.ms.file.scan.index.PrecursorIndex;
+import org.grits.toolbox.ms.file.scan.index.ScanHeaderIndex;
+import org.grits.toolbox.ms.file.scan.index.ScanTree;
+import org.systemsbiology.jrap.grits.stax.MSXMLParser;
+import org.systemsbiology.jrap.grits.stax.Scan;
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Session on an mzXML file. Owns a single {@link MSXMLParser} (so the mzXML index is only parsed once)
+ * the {@link ScanHeaderIndex} and the {@link ScanTree} of the file. All are created lazily on first use.
+ *
+ * A session is not thread-safe, it is meant to be used by one reader at a time. Only {@link #rap(int[], BooleanSupplier)}
+ * decodes scans on several threads (fork-join), each with its own {@link MzXmlScanDecoder}.
+ */
+public class MzXmlFileSession implements IMSFileSession {
+	private MSFile file = null;
+	private MSXMLParser parser = null;
+	private ScanHeaderIndex index = null;
+	private ScanTree tree = null;
+	private PrecursorIndex precursorIndex = null;
+	private SpectrumCache.FileKey cacheKey = null;
+	private final ConcurrentLinkedQueue<MzXmlScanDecoder> decoders = new ConcurrentLinkedQueue<>(); // idle decoders
+	private boolean memoryMapped = false;
+	private volatile boolean open = true; // checked by the threads giving back decoders
+
+	/**
+	 * @param file the mzXML file
+	 */
+	public MzXmlFileSession(MSFile file) {
+		this.file = file;
+	}
+
+	/**
+	 * creates a session for an already created parser. The header index of such a session
+	 * is only kept in memory since the file is not known.
+	 *
+	 * @param parser parser of the mzXML file
+	 */
+	public MzXmlFileSession(MSXMLParser parser) {
+		this.parser = parser;
+	}
+
+	@Override
+	public MSFile getFile() {
+		return file;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() {
+		open = false;
+		parser = null;
+		index = null;
+		tree = null;
+		precursorIndex = null;
+		MzXmlScanDecoder decoder;
+		while( (decoder = decoders.poll()) != null ) {
+			decoder.close();
+		}
+	}
+
+	/**
+	 * @return true if the scans are read from the memory mapped file, see {@link MzXmlMappedFile}
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * @param memoryMapped true to read the scans from the memory mapped file instead of a {@link java.io.RandomAccessFile}.
+	 * Has to be set before the first scan is read.
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	private void checkOpen() {
+		if( ! open ) {
+			throw new IllegalStateException("Session is closed");
+		}
+	}
+
+	/**
+	 * @return the parser of the file (created on first call)
+	 */
+	public synchronized MSXMLParser getParser() {
+		checkOpen();
+		if( parser == null ) {
+			parser = new MSXMLParser(new File(file.getFileName()).getAbsolutePath());
+		}
+		return parser;
+	}
+
+	/**
+	 * @return the header index of the file (read from the sidecar or built on first call)
+	 */
+	public ScanHeaderIndex getIndex() {
+		checkOpen();
+		if( index == null ) {
+			if( file != null ) {
+				index = MzXmlIndexBuilder.getIndex(file.getFileName());
+			} else {
+				index = ScanHeaderIndex.build(parser);
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * @return the last scan number of the file from the header index (also for files without an mzXML index,
+	 * which the parser can't open), -1 if the file has no scans
+	 */
+	public int getMaxScanNumber() {
+		return getSummary().getMaxScanNumber();
+	}
+
+	/**
+	 * @return the parent-children tree of the scans (read from the sidecar or built on first call)
+	 */
+	public ScanTree getScanTree() {
+		checkOpen();
+		if( tree == null ) {
+			if( file != null ) {
+				tree = MzXmlIndexBuilder.getTree(file.getFileName());
+			} else {
+				tree = ScanTree.build(getIndex());
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * @return the precursor m/z index of the MSn scans (built on first call)
+	 */
+	public PrecursorIndex getPrecursorIndex() {
+		checkOpen();
+		if( precursorIndex == null ) {
+			precursorIndex = PrecursorIndex.build(getIndex(), getScanTree());
+		}
+		return precursorIndex;
+	}
+
+	/**
+	 * @return the summary of the file (computed from the header index on first call)
+	 */
+	public FileSummary getSummary() {
+		return getIndex().getSummary();
+	}
+
+	/**
+	 * @return the first scan number that can be read from the file, -1 if there is none
+	 */
+	public int getFirstScanNumber() {
+		return getSummary().getFirstScanNumber();
+	}
+
+	/**
+	 * returns the MS level of the scan from the header index, without reading the scan
+	 *
+	 * @param iScanNumber scan number
+	 * @return the MS level of the scan
+	 */
+	public int getMSLevel(int iScanNumber) {
+		ScanHeaderIndex index = getIndex();
+		int iRow = index.getRow(iScanNumber);
+		if( iRow != -1 ) {
+			return index.getMsLevel(iRow);
+		}
+		return rapHeader(iScanNumber).getMsLevel();
+	}
+
+	/**
+	 * reads the scan (header and peaks). The scan is decoded directly from its offset in the file
+	 * (see {@link MzXmlScanDecoder}), jrap is only used if that fails. Decoded scans are shared with other
+	 * sessions through the {@link SpectrumCache}.
+	 *
+	 * @param iScanNumber scan number
+	 * @return the scan or null if it can't be read
+	 */
+	public Scan rap(int iScanNumber) {
+		if( file == null ) { // file identity unknown, can't use the cache
+			return rapWithParser(iScanNumber);
+		}
+		checkOpen();
+		SpectrumCache.FileKey key = getCacheKey();
+		SpectrumCache cache = SpectrumCache.getInstance();
+		Scan scan = cache.get(key, iScanNumber);
+		if( scan == null ) {
+			scan = decode(iScanNumber);
+			if( scan == null ) {
+				scan = rapWithParser(iScanNumber);
+			}
+			if( scan != null ) {
+				cache.put(key, iScanNumber, scan);
+			}
+		}
+		return scan;
+	}
+
+	private synchronized SpectrumCache.FileKey getCacheKey() {
+		if( cacheKey == null ) {
+			cacheKey = SpectrumCache.FileKey.forFile(file.getFileName());
+		}
+		return cacheKey;
+	}
+
+	private Scan decode(int iScanNumber) {
+		ScanHeaderIndex index = getIndex();
+		int iRow = index.getRow(iScanNumber);
+		if( iRow == -1 ) {
+			return null;
+		}
+		MzXmlScanDecoder decoder = getDecoder();
+		try {
+			Scan scan = decoder.decode(index.getOffset(iRow));
+			if( scan != null && scan.getHeader().getNum() != iScanNumber ) {
+				return null; // the index doesn't match the file
+			}
+			return scan;
+		} finally {
+			releaseDecoder(decoder);
+		}
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return the scan if it is in the spectrum cache, null otherwise
+	 */
+	Scan getCachedScan(int iScanNumber) {
+		if( file == null ) {
+			return null;
+		}
+		return SpectrumCache.getInstance().get(getCacheKey(), iScanNumber);
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return offset of the scan in the file, -1 if not in the index
+	 */
+	long getOffset(int iScanNumber) {
+		ScanHeaderIndex index = getIndex();
+		int iRow = index.getRow(iScanNumber);
+		return iRow == -1 ? -1 : index.getOffset(iRow);
+	}
+
+	/**
+	 * @return an idle decoder of the file, to be used by a single thread and given back with
+	 * {@link #releaseDecoder(MzXmlScanDecoder)}
+	 */
+	MzXmlScanDecoder getDecoder() {
+		MzXmlScanDecoder decoder = decoders.poll();
+		return decoder != null ? decoder : newDecoder();
+	}
+
+	/**
+	 * @param decoder a decoder from {@link #getDecoder()} that is no longer used
+	 */
+	void releaseDecoder(MzXmlScanDecoder decoder) {
+		decoders.offer(decoder);
+		// closed while the decoder was in use: close() may not have seen it, whoever removes it closes it
+		if( ! open && decoders.remove(decoder) ) {
+			decoder.close();
+		}
+	}
+
+	/**
+	 * @return a new decoder for the file, to be used by a single thread
+	 */
+	private MzXmlScanDecoder newDecoder() {
+		String sPath = new File(file.getFileName()).getAbsolutePath();
+		MzXmlMappedFile mapped = memoryMapped ? MzXmlMappedFile.getInstance(sPath) : null; // if it can't be mapped, it is read
+		return new MzXmlScanDecoder(sPath, mapped);
+	}
+
+	/**
+	 * decodes a raw scan record (see {@link MzXmlScanDecoder#readRecord(long)}) and adds the scan to the cache.
+	 * jrap is used if the record can't be decoded.
+	 *
+	 * @param iScanNumber scan number
+	 * @param record raw record of the scan, may be null
+	 * @return the scan or null if it can't be read
+	 */
+	Scan decodeRecord(int iScanNumber, byte[] record) {
+		Scan scan = null;
+		if( record != null ) {
+			MzXmlScanDecoder decoder = getDecoder();
+			try {
+				scan = decoder.decode(record);
+			} finally {
+				releaseDecoder(decoder);
+			}
+		}
+		if( scan == null || scan.getHeader().getNum() != iScanNumber ) {
+			return rap(iScanNumber);
+		}
+		SpectrumCache.getInstance().put(getCacheKey(), iScanNumber, scan);
+		return scan;
+	}
+
+	/**
+	 * reads many scans at once. The scans are decoded in parallel on the common fork-join pool, the result
+	 * is in the same order as the scan numbers.
+	 *
+	 * @param iScanNumbers scan numbers
+	 * @param canceled tells if the reading was canceled, the remaining scans are not read then (may be null)
+	 * @return the scans (null for the scans that can't be read or were not read because of the cancellation)
+	 */
+	public Scan[] rap(int[] iScanNumbers, BooleanSupplier canceled) {
+		Scan[] scans = new Scan[iScanNumbers.length];
+		if( file == null || iScanNumbers.length < 2 ) { // parser only, jrap is not known to be thread-safe
+			for( int i = 0; i < iScanNumbers.length && (canceled == null || ! canceled.getAsBoolean()); i++ ) {
+				scans[i] = rap(iScanNumbers[i]);
+			}
+			return scans;
+		}
+		// shared state is created before forking
+		checkOpen();
+		getIndex();
+		getCacheKey();
+		ForkJoinPool.commonPool().invoke(new RapTask(iScanNumbers, scans, 0, iScanNumbers.length, canceled));
+		return scans;
+	}
+
+	private class RapTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private static final int THRESHOLD = 4;
+
+		private final int[] scanNumbers;
+		private final Scan[] scans;
+		private final int from;
+		private final int to;
+		private final BooleanSupplier canceled;
+
+		private RapTask(int[] scanNumbers, Scan[] scans, int from, int to, BooleanSupplier canceled) {
+			this.scanNumbers = scanNumbers;
+			this.scans = scans;
+			this.from = from;
+			this.to = to;
+			this.canceled = canceled;
+		}
+
+		@Override
+		protected void compute() {
+			if( to - from <= THRESHOLD ) {
+				for( int i = from; i < to; i++ ) {
+					if( canceled != null && canceled.getAsBoolean() ) {
+						return;
+					}
+					scans[i] = rap(scanNumbers[i]);
+				}
+				return;
+			}
+			int iMid = (from + to) >>> 1;
+			invokeAll(new RapTask(scanNumbers, scans, from, iMid, canceled), new RapTask(scanNumbers, scans, iMid, to, canceled));
+		}
+	}
+
+	/**
+	 * reads the header of the scan
+	 *
+	 * @param iScanNumber scan number
+	 * @return the header or null if it can't be read
+	 */
+	public ScanHeader rapHeader(int iScanNumber) {
+		MSXMLParser jrapParser = getParser();
+		synchronized (jrapParser) {
+			return jrapParser.rapHeader(iScanNumber);
+		}
+	}
+
+	/**
+	 * reads the scan with the jrap parser, which is shared by the threads of the session and is not known to be
+	 * thread-safe, so the reads are serialized
+	 */
+	private Scan rapWithParser(int iScanNumber) {
+		MSXMLParser jrapParser = getParser();
+		synchronized (jrapParser) {
+			return jrapParser.rap(iScanNumber);
+		}
+	}
+}
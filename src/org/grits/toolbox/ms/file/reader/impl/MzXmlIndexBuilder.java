@@ -0,0 +1,300 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.log4j.Logger;
+import org.grits.toolbox.ms.file.scan.index.ScanHeaderIndex;
+import org.grits.toolbox.ms.file.scan.index.ScanTree;
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Finds the scans of an mzXML file without its &lt;index&gt;, for files where the index is missing or does not match
+ * the scans. The file is read once, sequentially, and only searched for the &lt;scan&gt; elements: the header of each
+ * scan is decoded by {@link MzXmlScanDecoder#decodeHeader(byte[], int)}, the peaks are skipped.
+ *
+ * The result is a {@link ScanHeaderIndex} (the fallback passed to {@link ScanHeaderIndex#getIndex(String, java.util.function.Function)}
+ * by {@link #getIndex(String)}, used and written to the sidecar when the mzXML index can't be used) and, optionally,
+ * a copy of the file with a correct index.
+ */
+public class MzXmlIndexBuilder {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MzXmlIndexBuilder.class);
+
+	private static final int READ_SIZE = 1 << 20;
+	private static final byte[] SCAN_START = "<scan".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] PEAKS_END = "</peaks>".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] MSRUN_END = "</msRun>".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] MZXML_START = "<mzXML".getBytes(StandardCharsets.ISO_8859_1);
+
+	private final File dataFile;
+	private ScanHeader[] headers = new ScanHeader[0];
+	private long[] offsets = new long[0];
+	private int size = 0;
+	private long msRunEnd = -1; // offset right after </msRun>
+	private boolean mzXmlRoot = false; // true if the root element is <mzXML>, false if it is <msRun>
+
+	// record (bytes from the start of the current scan) while reading the file
+	private byte[] record = new byte[READ_SIZE];
+	private int recordLength = 0;
+
+	/**
+	 * @param dataFile the mzXML file
+	 */
+	public MzXmlIndexBuilder(File dataFile) {
+		this.dataFile = dataFile;
+	}
+
+	/**
+	 * returns the header index of an mzXML file, scanning the file if its mzXML index can't be used
+	 *
+	 * @param fileName full path to mzXML file
+	 * @return the scan header index (empty if the file could not be parsed)
+	 */
+	public static ScanHeaderIndex getIndex(String fileName) {
+		return ScanHeaderIndex.getIndex(fileName, MzXmlIndexBuilder::buildIndex);
+	}
+
+	/**
+	 * returns the scan tree of an mzXML file, built from the index returned by {@link #getIndex(String)}
+	 *
+	 * @param fileName full path to mzXML file
+	 * @return the scan tree (empty if the file could not be parsed)
+	 */
+	public static ScanTree getTree(String fileName) {
+		return ScanTree.getTree(fileName, MzXmlIndexBuilder::buildIndex);
+	}
+
+	/**
+	 * finds the scans of the file and builds its header index
+	 *
+	 * @param dataFile the mzXML file
+	 * @return the index or null if the file could not be read
+	 */
+	public static ScanHeaderIndex buildIndex(File dataFile) {
+		MzXmlIndexBuilder builder = new MzXmlIndexBuilder(dataFile);
+		if( ! builder.build() ) {
+			return null;
+		}
+		return builder.getIndex();
+	}
+
+	/**
+	 * reads the file and finds its scans
+	 *
+	 * @return true if the file was read, false otherwise
+	 */
+	public boolean build() {
+		size = 0;
+		msRunEnd = -1;
+		mzXmlRoot = false;
+		MzXmlScanDecoder decoder = new MzXmlScanDecoder(dataFile.getAbsolutePath());
+		byte[] buffer = new byte[READ_SIZE];
+		long lPos = 0; // offset of the buffer in the file
+		long lRecordStart = -1; // offset of the current scan, -1 if not in a scan
+		int iScanMatch = 0;
+		int iPeaksMatch = 0;
+		int iMsRunMatch = 0;
+		int iRootMatch = 0;
+		try (InputStream in = new FileInputStream(dataFile)) {
+			int iRead;
+			while( msRunEnd == -1 && (iRead = in.read(buffer)) != -1 ) {
+				int iCopyFrom = 0; // first byte of the buffer not yet copied to the record
+				for( int i = 0; i < iRead; i++ ) {
+					byte b = buffer[i];
+					if( iRootMatch == MZXML_START.length ) {
+						iRootMatch = 0;
+						mzXmlRoot = b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '>';
+					}
+					if( ! mzXmlRoot && size == 0 && lRecordStart == -1 ) { // the root comes before the first scan
+						iRootMatch = match(MZXML_START, iRootMatch, b);
+					}
+					if( iScanMatch == SCAN_START.length ) {
+						iScanMatch = 0;
+						if( b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '>' ) {
+							long lScanStart = lPos + i - SCAN_START.length;
+							if( lRecordStart != -1 ) { // scan without peaks or followed by its sub scans
+								append(buffer, iCopyFrom, Math.max(iCopyFrom, i - SCAN_START.length));
+								addScan(decoder, lRecordStart, (int) (lScanStart - lRecordStart));
+							}
+							lRecordStart = lScanStart;
+							recordLength = 0;
+							append(SCAN_START, 0, SCAN_START.length);
+							iCopyFrom = i;
+							iPeaksMatch = 0;
+						}
+					}
+					iScanMatch = match(SCAN_START, iScanMatch, b);
+					if( lRecordStart != -1 ) {
+						iPeaksMatch = match(PEAKS_END, iPeaksMatch, b);
+						if( iPeaksMatch == PEAKS_END.length ) {
+							append(buffer, iCopyFrom, i + 1);
+							addScan(decoder, lRecordStart, recordLength);
+							lRecordStart = -1;
+							iPeaksMatch = 0;
+						}
+					}
+					iMsRunMatch = match(MSRUN_END, iMsRunMatch, b);
+					if( iMsRunMatch == MSRUN_END.length ) {
+						msRunEnd = lPos + i + 1;
+						if( lRecordStart != -1 ) {
+							append(buffer, iCopyFrom, i + 1);
+							addScan(decoder, lRecordStart, (int) (msRunEnd - MSRUN_END.length - lRecordStart));
+							lRecordStart = -1;
+						}
+						break;
+					}
+				}
+				if( lRecordStart != -1 ) {
+					append(buffer, iCopyFrom, iRead);
+				}
+				lPos += iRead;
+			}
+			if( lRecordStart != -1 ) { // truncated file
+				addScan(decoder, lRecordStart, recordLength);
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			return false;
+		} finally {
+			decoder.close();
+			record = new byte[READ_SIZE];
+		}
+		sort();
+		return true;
+	}
+
+	private static int match(byte[] pattern, int iMatched, byte b) {
+		if( b == pattern[iMatched] ) {
+			return iMatched + 1;
+		}
+		return b == pattern[0] ? 1 : 0; // '<' only starts the patterns
+	}
+
+	private void append(byte[] bytes, int iFrom, int iTo) {
+		int iCount = iTo - iFrom;
+		if( iCount <= 0 ) {
+			return;
+		}
+		if( recordLength + iCount > record.length ) {
+			record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + iCount));
+		}
+		System.arraycopy(bytes, iFrom, record, recordLength, iCount);
+		recordLength += iCount;
+	}
+
+	private void addScan(MzXmlScanDecoder decoder, long lOffset, int iLength) {
+		ScanHeader header = decoder.decodeHeader(record, Math.min(iLength, recordLength));
+		if( header == null || header.getNum() < 0 ) {
+			logger.debug("Unable to read the header of the scan at " + lOffset + " in " + dataFile.getName());
+			return;
+		}
+		if( size == headers.length ) {
+			headers = Arrays.copyOf(headers, Math.max(16, size * 2));
+			offsets = Arrays.copyOf(offsets, headers.length);
+		}
+		headers[size] = header;
+		offsets[size] = lOffset;
+		size++;
+	}
+
+	/**
+	 * sorts the scans by scan number (sub scans may come before the next scans of their parent), only the first
+	 * scan is kept if a scan number is used more than once
+	 */
+	private void sort() {
+		Integer[] order = new Integer[size];
+		for( int i = 0; i < size; i++ ) {
+			order[i] = i;
+		}
+		Arrays.sort(order, Comparator.comparingInt(i -> headers[i].getNum())); // stable
+		ScanHeader[] sortedHeaders = new ScanHeader[size];
+		long[] sortedOffsets = new long[size];
+		int iNum = 0;
+		for( Integer i : order ) {
+			if( iNum > 0 && sortedHeaders[iNum - 1].getNum() == headers[i].getNum() ) {
+				logger.debug("Scan " + headers[i].getNum() + " is more than once in " + dataFile.getName());
+				continue;
+			}
+			sortedHeaders[iNum] = headers[i];
+			sortedOffsets[iNum] = offsets[i];
+			iNum++;
+		}
+		headers = sortedHeaders;
+		offsets = sortedOffsets;
+		size = iNum;
+	}
+
+	/**
+	 * @return number of scans found by {@link #build()}
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the header index of the scans found by {@link #build()}
+	 */
+	public ScanHeaderIndex getIndex() {
+		return ScanHeaderIndex.build(headers, offsets, size);
+	}
+
+	/**
+	 * writes a copy of the file with an index of the scans found by {@link #build()}. The copy has the same
+	 * content up to the end of the &lt;msRun&gt; element, followed by the new index (any old index is dropped) and
+	 * the end of the &lt;mzXML&gt; element. Files whose root element is &lt;msRun&gt; can't have an index.
+	 *
+	 * @param target the file to write, must not be the mzXML file
+	 * @return true if the copy was written, false otherwise
+	 */
+	public boolean writeIndexedCopy(File target) {
+		if( msRunEnd == -1 ) {
+			logger.error("No </msRun> found in " + dataFile.getName() + ", unable to write an indexed copy");
+			return false;
+		}
+		if( ! mzXmlRoot ) {
+			logger.error("The root element of " + dataFile.getName() + " is not <mzXML>, unable to write an indexed copy");
+			return false;
+		}
+		if( target.getAbsoluteFile().equals(dataFile.getAbsoluteFile()) ) {
+			logger.error("The indexed copy of " + dataFile.getName() + " can't replace the file");
+			return false;
+		}
+		try (InputStream in = new FileInputStream(dataFile);
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(target), READ_SIZE)) {
+			byte[] buffer = new byte[READ_SIZE];
+			long lRemaining = msRunEnd;
+			while( lRemaining > 0 ) {
+				int iRead = in.read(buffer, 0, (int) Math.min(buffer.length, lRemaining));
+				if( iRead == -1 ) {
+					throw new IOException(dataFile.getName() + " changed while writing its indexed copy");
+				}
+				out.write(buffer, 0, iRead);
+				lRemaining -= iRead;
+			}
+			StringBuilder sb = new StringBuilder("\n ");
+			long lIndexOffset = msRunEnd + sb.length();
+			sb.append("<index name=\"scan\">\n");
+			for( int i = 0; i < size; i++ ) {
+				sb.append("  <offset id=\"").append(headers[i].getNum()).append("\">").append(offsets[i]).append("</offset>\n");
+			}
+			sb.append(" </index>\n");
+			sb.append(" <indexOffset>").append(lIndexOffset).append("</indexOffset>\n");
+			sb.append("</mzXML>\n");
+			out.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+			return true;
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+		}
+		target.delete();
+		return false;
+	}
+}
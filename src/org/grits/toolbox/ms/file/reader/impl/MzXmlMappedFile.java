@@ -0,0 +1,119 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Read-only memory mapping of an mzXML file, used by {@link MzXmlScanDecoder} instead of a {@link java.io.RandomAccessFile}
+ * so that reading a scan at its indexed offset is a memory copy instead of a seek and a read system call.
+ *
+ * The file is mapped in segments of {@link #SEGMENT_SIZE} bytes, so files larger than 2 GB can be mapped; reads
+ * crossing the end of a segment continue in the next one. A mapped file is immutable and thread-safe, the mappings
+ * of the most recently used files are shared by all the sessions.
+ *
+ * The mapping is only released when it is garbage collected. On Windows the file can't be deleted or replaced as
+ * long as it is mapped.
+ */
+public class MzXmlMappedFile {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MzXmlMappedFile.class);
+
+	public static final int SEGMENT_SIZE = 1 << 30;
+
+	// most recently used mappings
+	private static final int CACHE_SIZE = 8;
+	private static final Map<String, MzXmlMappedFile> cache = new LinkedHashMap<String, MzXmlMappedFile>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MzXmlMappedFile> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final long length;
+	private final long lastModified;
+	private final MappedByteBuffer[] segments;
+
+	private MzXmlMappedFile(File file) throws IOException {
+		this.lastModified = file.lastModified();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			this.length = channel.size();
+			segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+			for( int i = 0; i < segments.length; i++ ) {
+				long lStart = (long) i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, lStart, Math.min(SEGMENT_SIZE, length - lStart));
+			}
+		} // the mappings stay valid after the channel is closed
+	}
+
+	/**
+	 * returns the mapping of the given file, shared with the other users of the file as long as the file does not change
+	 *
+	 * @param fileName path to the mzXML file
+	 * @return the mapping or null if the file can't be mapped
+	 */
+	public static MzXmlMappedFile getInstance(String fileName) {
+		File file = new File(fileName).getAbsoluteFile();
+		String sKey = file.getPath();
+		synchronized (cache) {
+			MzXmlMappedFile cached = cache.get(sKey);
+			if( cached != null && cached.length == file.length() && cached.lastModified == file.lastModified() ) {
+				return cached;
+			}
+		}
+		try {
+			MzXmlMappedFile mapped = new MzXmlMappedFile(file);
+			synchronized (cache) {
+				cache.put(sKey, mapped);
+			}
+			return mapped;
+		} catch (IOException | RuntimeException e) {
+			logger.debug("Unable to map " + fileName + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * @return the length of the file when it was mapped
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * copies bytes of the file into the given array
+	 *
+	 * @param lPosition position in the file of the first byte to read
+	 * @param dst destination array
+	 * @param iOffset offset in the destination array
+	 * @param iLength maximum number of bytes to read
+	 * @return the number of bytes read, -1 if the position is at or after the end of the file
+	 */
+	public int read(long lPosition, byte[] dst, int iOffset, int iLength) {
+		if( lPosition >= length ) {
+			return -1;
+		}
+		int iTotal = (int) Math.min(iLength, length - lPosition);
+		int iDone = 0;
+		while( iDone < iTotal ) {
+			long lPos = lPosition + iDone;
+			// own position for concurrent readers, the casts keep the calls linkable on Java 8
+			ByteBuffer segment = ((ByteBuffer) segments[(int) (lPos / SEGMENT_SIZE)]).duplicate();
+			((Buffer) segment).position((int) (lPos % SEGMENT_SIZE));
+			int iCount = Math.min(iTotal - iDone, segment.remaining());
+			segment.get(dst, iOffset + iDone, iCount);
+			iDone += iCount;
+		}
+		return iTotal;
+	}
+}
@@ -0,0 +1,25 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import org.grits.toolbox.ms.file.FileCategory;
+import org.grits.toolbox.ms.file.reader.IMSFileReader;
+
+/**
+ * mzXML files for external quantification (full MS), read by {@link MSXMLReader}
+ */
+public class MzXmlQuantFileFormat extends MzXmlFileFormat {
+
+	@Override
+	public String getName() {
+		return "mzXML (full MS)";
+	}
+
+	@Override
+	public FileCategory getCategory() {
+		return FileCategory.EXTERNAL_QUANTIFICATION_CATEGORY;
+	}
+
+	@Override
+	public IMSFileReader createReader() {
+		return new MSXMLReader();
+	}
+}
@@ -1,17 +1,37 @@
 package org.grits.toolbox.ms.file.reader.impl;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import org.apache.log4j.Logger;
 import org.grits.toolbox.ms.file.MSFile;
 import org.grits.toolbox.ms.file.reader.IMSAnnotationFileReader;
+import org.grits.toolbox.ms.file.reader.IMSFileSession;
+import org.grits.toolbox.ms.file.reader.IPublisher;
+import org.grits.toolbox.ms.file.reader.IScanIterator;
+import org.grits.toolbox.ms.file.reader.IteratorPublisher;
+import org.grits.toolbox.ms.file.reader.MSFileHeader;
+import org.grits.toolbox.ms.file.scan.data.FileSummary;
+import org.grits.toolbox.ms.file.scan.data.PeakArray;
+import org.grits.toolbox.ms.file.scan.data.ScanSelection;
 import org.grits.toolbox.ms.file.scan.data.ScanView;
+import org.grits.toolbox.ms.file.scan.index.PrecursorIndex;
+import org.grits.toolbox.ms.file.scan.index.ScanHeaderIndex;
+import org.grits.toolbox.ms.file.scan.index.ScanTree;
 import org.grits.toolbox.ms.om.data.Method;
 import org.grits.toolbox.ms.om.data.Peak;
 import org.grits.toolbox.ms.om.data.Scan;
@@ -23,16 +43,235 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	// log4J Logger
 	private static final Logger logger = Logger.getLogger(MzXmlReader.class);
 
+	private volatile boolean canceled = false; // set from other threads (asynchronous and batch reads)
+	private boolean parallelDecoding = true;
+	private MzXmlScanPipeline.Settings pipelineSettings = null;
+	private Executor publisherExecutor = null;
+	private boolean memoryMapped = false;
+	private double precursorTolerance = 0.5;
+	private boolean precursorTolerancePpm = false;
+	private double precursorClusterTolerance = 0.0;
+	private boolean precursorClusterTolerancePpm = false;
+
+	@Override
+	public boolean isCanceled() {
+		return canceled;
+	}
+
+	@Override
+	public void setCanceled(boolean isCanceled) {
+		super.setCanceled(isCanceled);
+		canceled = isCanceled;
+	}
+
+	/**
+	 * @return true if the scans are decoded in parallel (the default), see {@link MzXmlScanPrefetcher}
+	 */
+	public boolean isParallelDecoding() {
+		return parallelDecoding;
+	}
+
+	/**
+	 * @param parallelDecoding false to decode all the scans on the calling thread
+	 */
+	public void setParallelDecoding(boolean parallelDecoding) {
+		this.parallelDecoding = parallelDecoding;
+	}
+
+	/**
+	 * @return the settings of the pipelined read mode, null if not used (the default)
+	 */
+	public MzXmlScanPipeline.Settings getPipelineSettings() {
+		return pipelineSettings;
+	}
+
+	/**
+	 * enables the pipelined read mode (see {@link MzXmlScanPipeline}): an I/O task reads the scans while
+	 * other tasks decode them on the executor of the settings. Takes precedence over {@link #setParallelDecoding(boolean)}.
+	 * The counters of each pipeline are given to {@link MzXmlScanPipeline.Settings#setStatisticsListener(java.util.function.Consumer)}.
+	 *
+	 * @param pipelineSettings the settings of the pipeline, null to disable the pipelined read mode
+	 */
+	public void setPipelineSettings(MzXmlScanPipeline.Settings pipelineSettings) {
+		this.pipelineSettings = pipelineSettings;
+	}
+
+	/**
+	 * @return the executor running the reading for the publishers, null if the common fork-join pool is used (the default)
+	 */
+	public Executor getPublisherExecutor() {
+		return publisherExecutor;
+	}
+
+	/**
+	 * @param publisherExecutor the executor running the reading for the publishers, null to use the common fork-join pool
+	 */
+	public void setPublisherExecutor(Executor publisherExecutor) {
+		this.publisherExecutor = publisherExecutor;
+	}
+
+	/**
+	 * @return true if the sessions read the scans from the memory mapped files, see {@link MzXmlMappedFile}
+	 */
+	public boolean isMemoryMapped() {
+		return memoryMapped;
+	}
+
+	/**
+	 * memory mapped files make reading single scans (e.g. to view them) much faster, but on Windows a file
+	 * can't be deleted or replaced as long as it is mapped. Not used by default.
+	 *
+	 * @param memoryMapped true to read the scans from the memory mapped files
+	 */
+	public void setMemoryMapped(boolean memoryMapped) {
+		this.memoryMapped = memoryMapped;
+	}
+
+	/**
+	 * @return the tolerance used to find the peak of the parent scan matching the precursor m/z of a scan
+	 */
+	public double getPrecursorTolerance() {
+		return precursorTolerance;
+	}
+
+	/**
+	 * @return true if the precursor tolerance is in ppm, false if in Da (the default)
+	 */
+	public boolean isPrecursorTolerancePpm() {
+		return precursorTolerancePpm;
+	}
+
+	/**
+	 * the peak of the parent scan closest to the precursor m/z of a scan is its precursor peak if it is within the
+	 * tolerance, otherwise a new peak is added to the parent scan. The default is 0.5 Da.
+	 *
+	 * @param precursorTolerance the tolerance
+	 * @param precursorTolerancePpm true if the tolerance is in ppm, false if in Da
+	 */
+	public void setPrecursorTolerance(double precursorTolerance, boolean precursorTolerancePpm) {
+		this.precursorTolerance = precursorTolerance;
+		this.precursorTolerancePpm = precursorTolerancePpm;
+	}
+
+	/**
+	 * @return the tolerance used to group the precursors of the MS/MS scans into the peaks of the MS1 scan
+	 * in the TIM and direct infusion modes
+	 */
+	public double getPrecursorClusterTolerance() {
+		return precursorClusterTolerance;
+	}
+
+	/**
+	 * @return true if the precursor cluster tolerance is in ppm, false if in Da (the default)
+	 */
+	public boolean isPrecursorClusterTolerancePpm() {
+		return precursorClusterTolerancePpm;
+	}
+
+	/**
+	 * in the TIM and direct infusion modes the MS1 scan has a peak for each precursor m/z of the MS/MS scans. Precursor
+	 * m/z values within the tolerance of each other share a peak. The default is 0, a peak for each distinct m/z value.
+	 * In the direct infusion mode the shared peak is the precursor peak of the first MS/MS scan of the cluster, in the
+	 * TIM mode it is a new peak.
+	 *
+	 * @param precursorClusterTolerance the tolerance
+	 * @param precursorClusterTolerancePpm true if the tolerance is in ppm, false if in Da
+	 */
+	public void setPrecursorClusterTolerance(double precursorClusterTolerance, boolean precursorClusterTolerancePpm) {
+		this.precursorClusterTolerance = precursorClusterTolerance;
+		this.precursorClusterTolerancePpm = precursorClusterTolerancePpm;
+	}
+
+	private <T> IPublisher<T> getPublisher(Function<BooleanSupplier, ? extends Iterator<T>> source) {
+		Executor executor = publisherExecutor != null ? publisherExecutor : ForkJoinPool.commonPool();
+		return new IteratorPublisher<T>(this::isCanceled, source, executor);
+	}
+
+	private IMzXmlScanSource getScanSource(MzXmlFileSession session, int[] iScanNumbers) {
+		return getScanSource(session, iScanNumbers, this::isCanceled);
+	}
+
+	private IMzXmlScanSource getScanSource(MzXmlFileSession session, int[] iScanNumbers, BooleanSupplier canceled) {
+		if( pipelineSettings != null && session.getFile() != null && iScanNumbers.length > 1 ) {
+			return new MzXmlScanPipeline(session, iScanNumbers, canceled, pipelineSettings);
+		}
+		return new MzXmlScanPrefetcher(session, iScanNumbers, canceled, parallelDecoding);
+	}
+
+	/**
+	 * @return the scan numbers of the index in the given range
+	 */
+	private int[] getScanNumbers(ScanHeaderIndex index, int iFromScan, int iToScan) {
+		int[] iScans = new int[index.size()];
+		int iNum = 0;
+		for( int iRow = 0; iRow < index.size(); iRow++ ) {
+			int iScanNumber = index.getScanNumber(iRow);
+			if( iScanNumber >= iFromScan && iScanNumber <= iToScan ) {
+				iScans[iNum++] = iScanNumber;
+			}
+		}
+		return Arrays.copyOf(iScans, iNum);
+	}
+
+	private void addSubScans(int iScanNumber, Map<Integer, List<Integer>> subScanMap, List<Integer> lScans) {
+		List<Integer> subScans = subScanMap.get(iScanNumber);
+		if( subScans == null ) {
+			return;
+		}
+		for( Integer subScanNo : subScans ) {
+			if( lScans.size() > subScanMap.size() ) { // circular sub scan map
+				return;
+			}
+			lScans.add(subScanNo);
+			addSubScans(subScanNo, subScanMap, lScans);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public MzXmlFileSession openSession(MSFile file) {
+		MzXmlFileSession session = new MzXmlFileSession(file);
+		session.setMemoryMapped(memoryMapped);
+		return session;
+	}
+
+	private MzXmlFileSession openSession(String fileName) {
+		MSFile file = new MSFile();
+		file.setFileName(fileName);
+		return openSession(file);
+	}
+
+	private MzXmlFileSession getSession(IMSFileSession session) {
+		if( ! (session instanceof MzXmlFileSession) ) {
+			throw new IllegalArgumentException("Session is not an mzXML session: " + session);
+		}
+		return (MzXmlFileSession) session;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * used for Direct infusion and TIM experiments, will return null for other types (LC, MS Profile)
 	 */
 	@Override
 	public List<Scan> readMSFile(MSFile file) {
+		try (MzXmlFileSession session = openSession(file)) {
+			return readMSFile(session);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * used for Direct infusion and TIM experiments, will return null for other types (LC, MS Profile)
+	 */
+	@Override
+	public List<Scan> readMSFile(IMSFileSession session) {
+		MSFile file = session.getFile();
 		if( file.getExperimentType().equals(Method.MS_TYPE_INFUSION) ) {
-			return readMzXmlFileForDirectInfusion(file.getFileName());
+			return readMzXmlFileForDirectInfusion(getSession(session));
 		} else if ( file.getExperimentType().equals(Method.MS_TYPE_TIM) ) {
-			return readMzXmlFileForTIM(file.getFileName());
+			return readMzXmlFileForTIM(getSession(session));
 		} 
 		return null;
 	}
@@ -45,21 +284,42 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	public List<Scan> readMSFile(MSFile file, int scanNumber) {
 		return readMSFile(file, scanNumber, null);
 	}
-	
+
+	/**
+	 * {@inheritDoc}
+	 * used for LC/MS and MSPRofile experiments, will return null for other types (direct infusion, TIM)
+	 */
+	@Override
+	public List<Scan> readMSFile(IMSFileSession session, int scanNumber) {
+		return readMSFile(session, scanNumber, null);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * used for LC/MS and MSPRofile experiments, will return null for other types (direct infusion, TIM)
 	 */
 	@Override
 	public List<Scan> readMSFile(MSFile file, int scanNumber, Map<Integer, List<Integer>> subScanMap) {
+		try (MzXmlFileSession session = openSession(file)) {
+			return readMSFile(session, scanNumber, subScanMap);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * used for LC/MS and MSPRofile experiments, will return null for other types (direct infusion, TIM)
+	 */
+	@Override
+	public List<Scan> readMSFile(IMSFileSession session, int scanNumber, Map<Integer, List<Integer>> subScanMap) {
+		MSFile file = session.getFile();
 		if( file.getExperimentType().equals(Method.MS_TYPE_LC) ) {
-			return readMzXmlFileForLCMSMS(file.getFileName(), scanNumber, subScanMap);
+			return readMzXmlFileForLCMSMS(getSession(session), scanNumber, subScanMap);
 		} else if (file.getExperimentType().equals(Method.MS_TYPE_MSPROFILE)) {
-			return readMzXmlFileForMSProfile(file.getFileName(), scanNumber);
+			return readMzXmlFileForMSProfile(getSession(session), scanNumber);
 		} else if( file.getExperimentType().equals(Method.MS_TYPE_INFUSION) ) {
-			return readMzXmlFileForDirectInfusion(file.getFileName());
+			return readMzXmlFileForDirectInfusion(getSession(session));
 		} else if ( file.getExperimentType().equals(Method.MS_TYPE_TIM) ) {
-			return readMzXmlFileForTIM(file.getFileName());
+			return readMzXmlFileForTIM(getSession(session));
 		} 
 		return null;
 	}
@@ -72,6 +332,14 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		return getScanList(file.getFileName(), scanNumber);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Integer> getScanList(IMSFileSession session, int scanNumber) {
+		return getScanList(getSession(session).getIndex(), scanNumber);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 */
@@ -80,25 +348,42 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		return MzXmlReader.getMaxScanNumber(file.getFileName());
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Integer getMaxScanNumber(IMSFileSession session) {
+		try {
+			return getSession(session).getSummary().getMaxScanNumber();
+		} catch (Exception ex) {
+			logger.error(ex.getMessage(), ex);
+		}
+		return -1;
+	}
+
 	@Override
 	public Scan getFirstMS1Scan(MSFile file) {
+		try (MzXmlFileSession session = openSession(file)) {
+			return getFirstMS1Scan(session);
+		}
+	}
+
+	@Override
+	public Scan getFirstMS1Scan(IMSFileSession session) {
 		Scan firstScan = null;
-		File mzXMLFile = new File(file.getFileName());
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
-			if ( parser != null ) {
-				for( int i = 1; firstScan == null && i < parser.getMaxScanNumber() + 1; i++ ) {
-					ScanHeader header = parser.rapHeader(i);
-					if ( header != null && header.getMsLevel() == 1 ) {
-						org.systemsbiology.jrap.grits.stax.Scan s = parser.rap(i);
-						if( s.getMassIntensityList() != null && s.getMassIntensityList()[0].length > 0 ) {
-							firstScan = getScan(s, -1);
-							return firstScan;
-						}
+			MzXmlFileSession mzXmlSession = getSession(session);
+			// locate the scan using the header index, only the returned scan is decoded
+			ScanHeaderIndex index = mzXmlSession.getIndex();
+			for( int iRow = 0; firstScan == null && iRow < index.size(); iRow++ ) {
+				if ( index.getMsLevel(iRow) == 1 && index.getPeaksCount(iRow) > 0 ) {
+					org.systemsbiology.jrap.grits.stax.Scan s = mzXmlSession.rap(index.getScanNumber(iRow));
+					if( s != null && s.getMassIntensityList() != null && s.getMassIntensityList()[0].length > 0 ) {
+						firstScan = getScan(s, -1);
+						return firstScan;
 					}
 				}
 			}
-
 		} catch (Exception ex) {
 			logger.error(ex.getMessage(), ex);
 		}
@@ -114,11 +399,8 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	 * 
 	 */
 	public static int getMaxScanNumber( String fileName ) {
-		File mzXMLFile = new File(fileName);
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
-			return parser.getMaxScanNumber();
-
+			return MzXmlIndexBuilder.getIndex(fileName).getSummary().getMaxScanNumber();
 		} catch (Exception ex) {
 			logger.error(ex.getMessage(), ex);
 		}
@@ -140,11 +422,15 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	 */
 
 	public List<Scan> readMzXmlFile(String fileName, int msLevel, int parentScanNum, int scanNum) {
-		File mzXMLFile = new File(fileName);
+		try (MzXmlFileSession session = openSession(fileName)) {
+			return readMzXmlFile(session, msLevel, parentScanNum, scanNum);
+		}
+	}
+
+	public List<Scan> readMzXmlFile(MzXmlFileSession session, int msLevel, int parentScanNum, int scanNum) {
 		try {			
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
 			updateListeners("Reading XML file", -1);
-			List<Scan> scans = getScanData(parser, msLevel, parentScanNum, scanNum);
+			List<Scan> scans = getScanData(session, msLevel, parentScanNum, scanNum);
 			if( scans != null ) {
 				Collections.sort(scans);
 			}
@@ -170,11 +456,15 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	 * 
 	 */	
 	public List<Scan> readMzXmlFileForTIM(String fileName) {
-		File mzXMLFile = new File(fileName);
+		try (MzXmlFileSession session = openSession(fileName)) {
+			return readMzXmlFileForTIM(session);
+		}
+	}
+
+	public List<Scan> readMzXmlFileForTIM(MzXmlFileSession session) {
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
 			updateListeners("Reading XML file", -1);
-			List<Scan> scans = addAllScansTIM(parser);
+			List<Scan> scans = addAllScansTIM(session);
 			if( scans != null ) {
 				Collections.sort(scans);
 			}
@@ -200,11 +490,15 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	 * 
 	 */		
 	public List<Scan> readMzXmlFileForDirectInfusion(String fileName) {
-		File mzXMLFile = new File(fileName);
+		try (MzXmlFileSession session = openSession(fileName)) {
+			return readMzXmlFileForDirectInfusion(session);
+		}
+	}
+
+	public List<Scan> readMzXmlFileForDirectInfusion(MzXmlFileSession session) {
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
 			updateListeners("Reading XML file", -1);
-			List<Scan> scans = addAllScansDirectInfusion(parser);
+			List<Scan> scans = addAllScansDirectInfusion(session);
 			if( scans != null ) {
 				Collections.sort(scans);
 			}
@@ -234,11 +528,15 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	}
 	
 	public List<Scan> readMzXmlFileForLCMSMS(String fileName, int scanNumber, Map<Integer, List<Integer>> subScanMap) {
-		File mzXMLFile = new File(fileName);
+		try (MzXmlFileSession session = openSession(fileName)) {
+			return readMzXmlFileForLCMSMS(session, scanNumber, subScanMap);
+		}
+	}
+
+	public List<Scan> readMzXmlFileForLCMSMS(MzXmlFileSession session, int scanNumber, Map<Integer, List<Integer>> subScanMap) {
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
 			updateListeners("Reading XML file", -1);
-			List<Scan> scans = addAllScansLCMSMS(parser, scanNumber, subScanMap);
+			List<Scan> scans = addAllScansLCMSMS(session, scanNumber, subScanMap);
 			if( scans != null ) {
 				Collections.sort(scans);
 			}
@@ -264,11 +562,15 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	 * 
 	 */			
 	public List<Scan> readMzXmlFileForMSProfile(String fileName, int parentScanNum) {
-		File mzXMLFile = new File(fileName);
+		try (MzXmlFileSession session = openSession(fileName)) {
+			return readMzXmlFileForMSProfile(session, parentScanNum);
+		}
+	}
+
+	public List<Scan> readMzXmlFileForMSProfile(MzXmlFileSession session, int parentScanNum) {
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
 			updateListeners("Reading XML file", -1);
-			List<Scan> scans = addAllScansMSProfile(parser,  parentScanNum);
+			List<Scan> scans = addAllScansMSProfile(session,  parentScanNum);
 			if( scans != null ) {
 				Collections.sort(scans);
 			}
@@ -284,15 +586,15 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	}
 
 	public boolean isValidMzXmlFile(String fileName) {
+		if( ! MzXmlFileFormat.isMzXml(MSFileHeader.read(fileName)) ) {
+			return false;
+		}
 		try {
 			MSXMLParser parser = new MSXMLParser(fileName, false);
 			int t_info = parser.getScanCount();
 			if ( t_info == 0) {
-				// try sequential
-				parser = new MSXMLParser(fileName, true);
-				t_info = parser.getScanCount();
-				if ( t_info == 0)
-					return false;
+				// missing or broken index: the scans can still be found in the file
+				return ! MzXmlIndexBuilder.getIndex(fileName).isEmpty();
 			}
 			return true;
 		} catch (Exception ex) {
@@ -321,19 +623,11 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		return peak;
 	}
 
-	private Peak findPeakInPeakList( List<Peak> _alPeaks, double _dPrecursorMz ) {
-		double dMinDelta = Double.MAX_VALUE;
-		Peak matchedPeak = null;
-		for( Peak peak : _alPeaks ) {
-			double delta = Math.abs(peak.getMz() - _dPrecursorMz);
-			// find closest peak by mz 
-			//			if( delta < dMinDelta ) {
-			if( delta < 0.5 && delta < dMinDelta ) {
-				dMinDelta = delta;
-				matchedPeak = peak;
-			}
-		}
-		return matchedPeak;		
+	/**
+	 * @return a finder of precursor peaks with the current precursor tolerance, for one read
+	 */
+	PrecursorPeakFinder newPrecursorPeakFinder() {
+		return new PrecursorPeakFinder(precursorTolerance, precursorTolerancePpm);
 	}
 
 	private double getMostAbundantPeak( org.systemsbiology.jrap.grits.stax.Scan _scan) {
@@ -351,25 +645,27 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	}
 
 
-	private List<Scan> addAllScansTIM(MSXMLParser parser) {
-		int iStartScan = getFirstScanNumber(parser);
+	private List<Scan> addAllScansTIM(MzXmlFileSession session) {
+		int iStartScan = session.getFirstScanNumber();
 		if( iStartScan == -1 ) {
 			return new ArrayList<>();
 		}
-		int iEndScan = parser.getMaxScanNumber();
-		int iMinMSLevel = parser.rapHeader(iStartScan).getMsLevel(); // can't assume we have MS1 scans. Keep track of possible precursors
+		int iEndScan = session.getMaxScanNumber();
+		int iMinMSLevel = session.getMSLevel(iStartScan); // can't assume we have MS1 scans. Keep track of possible precursors
 		if( iMinMSLevel == 1 ) { // TIM is direct infusion. If the first scan is MS1, then just run like DI
-			return addAllScansDirectInfusion(parser);
+			return addAllScansDirectInfusion(session);
 		}
 		Scan fullMSScan = null;
 		Scan msScan = null;
+		IMzXmlScanSource scanSource = null;
 		try {
 			boolean flag = true;
 			int precursorScanNum = 0;
 			List<Scan> scans = new ArrayList<>();
 			HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
 			HashMap<Integer, Scan> msScanMap = new HashMap<Integer, Scan>();
-			HashMap<Double, Peak> ms1 = new HashMap<Double, Peak>();
+			PrecursorPeakFinder precursorPeaks = newPrecursorPeakFinder();
+			PrecursorClusterMap ms1 = new PrecursorClusterMap(precursorClusterTolerance, precursorClusterTolerancePpm);
 
 			List<Peak> ms1Peaks = new ArrayList<>();
 			// if no full MS1 scan is present, then we create one
@@ -388,6 +684,7 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 			lastParentOfEachLevel.put(1, 0);
 			double dLowMz = Double.MAX_VALUE;
 			double dHighMz = Double.MIN_VALUE;
+			scanSource = getScanSource(session, getScanNumbers(session.getIndex(), iStartScan, iEndScan));
 
 			for (int i = iStartScan; i <= iEndScan; i++) {
 				if( isCanceled() ) {
@@ -397,7 +694,7 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 					if (!isCanceled())
 						updateListeners("Reading XML file. Scan: " + i + " of " + iEndScan, i);
 				}
-				org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(i);
+				org.systemsbiology.jrap.grits.stax.Scan jrapScan = scanSource.get(i);
 				if( jrapScan == null ) {
 					//if (!isCanceled())
 					//	updateErrorListener("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
@@ -450,9 +747,8 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 				Peak peak = null;
 				if( msScan.getMsLevel() == 2 ) { // precursor peak is built on fly
 					double dMz = (double) jrapScanHeader.getPrecursorMz();
-					if( ms1.containsKey(dMz) ) {
-						peak = ms1.get(dMz);
-					} else {
+					peak = ms1.get(dMz);
+					if( peak == null ) {
 						peak = getNewPrecursorPeak(jrapScanHeader, true);
 						ms1.put(dMz, peak);
 					}
@@ -463,14 +759,14 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 				} else {
 					Scan parentScan = msScanMap.get(msScan.getParentScan());
 					List<Peak> lPeaks = parentScan.getPeaklist();
-					peak = findPeakInPeakList(lPeaks, (double) jrapScanHeader.getPrecursorMz());
+					peak = precursorPeaks.find(lPeaks, (double) jrapScanHeader.getPrecursorMz());
 					if( peak == null ) {
 						peak = new Peak();
 						peak.setId(parentScan.getPeaklist().size()+1);
 						peak.setMz((double) jrapScanHeader.getPrecursorMz());
 						peak.setIntensity(0.0);
 						peak.setCharge(jrapScanHeader.getPrecursorCharge());
-						parentScan.getPeaklist().add(peak); // adding it if it doesn't exist!
+						precursorPeaks.add(parentScan.getPeaklist(), peak); // adding it if it doesn't exist!
 					}
 
 					peak.setIsPrecursor(true);
@@ -552,20 +848,29 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 			return null;
+		} finally {
+			if( scanSource != null ) {
+				scanSource.close();
+			}
 		}
 	}	
 
 	public List<Scan> addAllScansDirectInfusion(MSXMLParser parser) {
+		return addAllScansDirectInfusion(new MzXmlFileSession(parser));
+	}
+
+	public List<Scan> addAllScansDirectInfusion(MzXmlFileSession session) {
 		Scan msScan = new Scan();
+		IMzXmlScanSource scanSource = null;
 		try {
-			int iStartScan = getFirstScanNumber(parser);
+			int iStartScan = session.getFirstScanNumber();
 			if( iStartScan == -1 ) {
 				return new ArrayList<>();
 			}
-			int iEndScan = parser.getMaxScanNumber();
-		/*	int iMinMSLevel = parser.rapHeader(iStartScan).getMsLevel(); // can't assume we have MS1 scans. 
+			int iEndScan = session.getMaxScanNumber();
+		/*	int iMinMSLevel = session.getMSLevel(iStartScan); // can't assume we have MS1 scans. 
 			if( iMinMSLevel != 1 ) { // No MS1 scan? Treat as TIM then. 
-				return addAllScansTIM(parser);
+				return addAllScansTIM(session);
 			}*/ //don't try to read as TIM, this can still be a direct infusion
 			boolean flag = true;
 			int precursorScanNum = 0;
@@ -573,11 +878,13 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 			HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
 			HashMap<Integer, org.systemsbiology.jrap.grits.stax.Scan> originalScanMap = new HashMap<Integer, org.systemsbiology.jrap.grits.stax.Scan>();
 			HashMap<Integer, Scan> msScanMap = new HashMap<Integer, Scan>();
-			HashMap<Double, Peak> ms1 = new HashMap<Double, Peak>();
+			PrecursorPeakFinder precursorPeaks = newPrecursorPeakFinder();
+			PrecursorClusterMap ms1 = new PrecursorClusterMap(precursorClusterTolerance, precursorClusterTolerancePpm);
 			List<String> scanErrorList = new ArrayList<>();
 
 			Scan prevParentScan = null;
 			List<Peak> ms1Peaks = new ArrayList<>();
+			scanSource = getScanSource(session, getScanNumbers(session.getIndex(), iStartScan, iEndScan));
 
 			for (int i = iStartScan; i <= iEndScan; i++) {
 				if( isCanceled() ) {
@@ -587,7 +894,7 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 					if (!isCanceled())
 						updateListeners("Reading XML file. Scan: " + i + " of " + iEndScan, i);
 				}
-				org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(i);
+				org.systemsbiology.jrap.grits.stax.Scan jrapScan = scanSource.get(i);
 				if( jrapScan == null ) {
 					//	if (!isCanceled())
 					//		updateErrorListener("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
@@ -667,17 +974,17 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 					msScan.setMsLevel(parentScan.getMsLevel()+1);
 					Peak peak = null;
 					List<Peak> lPeaks = parentScan.getPeaklist();
-					peak = findPeakInPeakList(lPeaks, (double) jrapScanHeader.getPrecursorMz());
+					peak = precursorPeaks.find(lPeaks, (double) jrapScanHeader.getPrecursorMz());
 					if( peak == null ) {
 						peak = new Peak();
 						peak.setId(parentScan.getPeaklist().size()+1);
 						peak.setMz((double) jrapScanHeader.getPrecursorMz());
 						peak.setIntensity(0.0);
 						peak.setCharge(jrapScanHeader.getPrecursorCharge());
-						parentScan.getPeaklist().add(peak); // adding it if it doesn't exist!
+						precursorPeaks.add(parentScan.getPeaklist(), peak); // adding it if it doesn't exist!
 					} 
 					if( jrapScanHeader.getMsLevel() == 2 ) { // the MS2s will be the peaks for the MS1 (added below)
-						ms1.put((double) jrapScanHeader.getPrecursorMz(), peak);
+						ms1.putIfAbsent((double) jrapScanHeader.getPrecursorMz(), peak);
 					}
 					peak.setIsPrecursor(true);
 					peak.setPrecursorIntensity((double) jrapScanHeader.getPrecursorIntensity());
@@ -686,51 +993,18 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 					msScan.setPrecursor(peak);
 					parentScan.getSubScans().add(msScan.getScanNo());
 				}
-				double[][] scanPeaks = jrapScan.getMassIntensityList();
-				if( scanPeaks != null ) {
-					double dLowMz = Double.MAX_VALUE;
-					double dHighMz = Double.MIN_VALUE;
-					double dTotalIntensity = 0.0;
-					for (int j = 0; j < scanPeaks[0].length; j++) {
-						// ignore peaks w/ intensity = 0?
-						if( scanPeaks[1][j] <= 0.0 ) {
-							continue;
-						}
-						Peak peak = new Peak();
-						peak.setId(j + 1);
-						peak.setMz((double) scanPeaks[0][j]);
-						if( dLowMz > peak.getMz() ) {
-							dLowMz = peak.getMz();
-						}
-						if( dHighMz < peak.getMz() ) {
-							dHighMz = peak.getMz();
-						}
-						peak.setIntensity((double) scanPeaks[1][j]);
-						dTotalIntensity+=peak.getIntensity();
-						double dRelInt = peak.getIntensity() / msScan.getMostAbundantPeak();
-						peak.setRelativeIntensity(dRelInt);
-						msScan.getPeaklist().add(peak);
-					}// for j
-					if( msScan.getScanStart() <= 0 ) {
-						msScan.setScanStart(dLowMz);
-					}
-					if( msScan.getScanEnd() <= 0 ) {
-						msScan.setScanEnd(dHighMz);
-					}
-					msScan.setTotalNumPeaks(scanPeaks[0].length);
-					msScan.setTotalIntensity(dTotalIntensity);
-				}
+				// get all the peaks of this scan
+				setPeakList(jrapScan.getMassIntensityList(), msScan, true);
 			}// for i
 
 			// get the peaks of MS1 and add them to all the MS1 scans
 			// to save on memory, peaks in MS1 scans are ONLY precursors, so we don't add the peak list here
 			// it is built as the ms2 subscans are found
 			int ms1PeakIndex = 1;
-			for( Double dMz : ms1.keySet() ){
+			for( Peak peak : ms1.values() ){
 				if( isCanceled() ) {
 					return new ArrayList<>();
 				}
-				Peak peak = ms1.get(dMz);
 				if( ! peak.getIsPrecursor() || peak.getPrecursorIntensity() == null )
 					continue;
 				peak.setId(ms1PeakIndex++);
@@ -753,17 +1027,25 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 			return null;
+		} finally {
+			if( scanSource != null ) {
+				scanSource.close();
+			}
 		}
 
 	}
 
 	public List<Scan> addAllScansMSProfile(MSXMLParser parser, int parentScanNum ) {
+		return addAllScansMSProfile(new MzXmlFileSession(parser), parentScanNum);
+	}
+
+	public List<Scan> addAllScansMSProfile(MzXmlFileSession session, int parentScanNum ) {
 		Scan msScan = new Scan();
 		try {
 			boolean flag = true;
 			List<Scan> scans = new ArrayList<>();
 
-			org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(parentScanNum);
+			org.systemsbiology.jrap.grits.stax.Scan jrapScan = session.rap(parentScanNum);
 			if( jrapScan == null ) {
 				if (!isCanceled())
 					updateErrorListener("Call to parser.rap for scan number " + parentScanNum + " returned null. Returning empty list.");
@@ -801,43 +1083,9 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 			}
 
 			// get all the peaks of this scan
-			double[][] scanPeaks = jrapScan.getMassIntensityList();
-			if( scanPeaks != null ) {
-				double dLowMz = Double.MAX_VALUE;
-				double dHighMz = Double.MIN_VALUE;
-				double dTotalIntensity = 0.0;
-				for (int j = 0; j < scanPeaks[0].length; j++) {
-					if( isCanceled() ) {
-						return new ArrayList<>();
-					}
-					// ignore peaks w/ intensity = 0?
-					if( scanPeaks[1][j] <= 0.0 ) {
-						continue;
-					}
-					Peak peak = new Peak();
-					peak.setId(j + 1);
-					peak.setMz((double) scanPeaks[0][j]);
-					if( dLowMz > peak.getMz() ) {
-						dLowMz = peak.getMz();
-					}
-					if( dHighMz < peak.getMz() ) {
-						dHighMz = peak.getMz();
-					}
-					peak.setIntensity((double) scanPeaks[1][j]);
-					dTotalIntensity+=peak.getIntensity();
-					double dRelInt = peak.getIntensity() / msScan.getMostAbundantPeak();
-					peak.setRelativeIntensity(dRelInt);
-					msScan.getPeaklist().add(peak);
-				}// for j
-
-				if( msScan.getScanStart() <= 0 ) {
-					msScan.setScanStart(dLowMz);
-				}
-				if( msScan.getScanEnd() <= 0 ) {
-					msScan.setScanEnd(dHighMz);
-				}
-				msScan.setTotalNumPeaks(scanPeaks[0].length);
-				msScan.setTotalIntensity(dTotalIntensity);
+			setPeakList(jrapScan.getMassIntensityList(), msScan, true);
+			if( isCanceled() ) {
+				return new ArrayList<>();
 			}
 			scans.add(msScan);
 			return scans;
@@ -849,20 +1097,26 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	}
 	
 	public List<Scan> addAllScansLCMSMS(MSXMLParser parser, int parentScanNum, Map<Integer, List<Integer>> subScanMap) {
+		return addAllScansLCMSMS(new MzXmlFileSession(parser), parentScanNum, subScanMap);
+	}
+
+	public List<Scan> addAllScansLCMSMS(MzXmlFileSession session, int parentScanNum, Map<Integer, List<Integer>> subScanMap) {
 		if (subScanMap == null || subScanMap.isEmpty()) 
-			return addAllScansLCMSMS(parser, parentScanNum);
+			return addAllScansLCMSMS(session, parentScanNum);
 		
 		Scan msScan = new Scan();
+		IMzXmlScanSource scanSource = null;
 		try {
 			boolean flag = true;
 			List<Scan> scans = new ArrayList<>();
 			HashMap<Integer, Scan> msScanMap = new HashMap<Integer, Scan>();
+			PrecursorPeakFinder precursorPeaks = newPrecursorPeakFinder();
 			HashMap<Double, Peak> ms1 = new HashMap<Double, Peak>();
 
 			List<Peak> ms1Peaks = new ArrayList<>();
 			
 			// System.out.println("scan No " + i);
-			org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(parentScanNum);
+			org.systemsbiology.jrap.grits.stax.Scan jrapScan = session.rap(parentScanNum);
 			if( jrapScan == null ) {
 				//if (!isCanceled())
 				//	updateErrorListener("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
@@ -906,47 +1160,17 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 			
 			msScanMap.put(msScan.getScanNo(), msScan);
 			// get all the peaks of this scan
-			double[][] scanPeaks = jrapScan.getMassIntensityList();
-			if( scanPeaks != null ) {
-				double dLowMz = Double.MAX_VALUE;
-				double dHighMz = Double.MIN_VALUE;
-				double dTotalIntensity = 0.0;
-				for (int j = 0; j < scanPeaks[0].length; j++) {
-					if( isCanceled() ) {
-						return new ArrayList<>();
-					}
-					// ignore peaks w/ intensity = 0?
-					if( scanPeaks[1][j] <= 0.0 ) {
-						continue;
-					}
-					Peak peak = new Peak();
-					peak.setId(j + 1);
-					peak.setMz((double) scanPeaks[0][j]);
-					if( dLowMz > peak.getMz() ) {
-						dLowMz = peak.getMz();
-					}
-					if( dHighMz < peak.getMz() ) {
-						dHighMz = peak.getMz();
-					}
-					peak.setIntensity((double) scanPeaks[1][j]);
-					dTotalIntensity += peak.getIntensity();
-					double dRelInt = peak.getIntensity() / msScan.getMostAbundantPeak();
-					peak.setRelativeIntensity(dRelInt);
-					msScan.getPeaklist().add(peak);
-				}// for j
-				if( msScan.getScanStart() <= 0 ) {
-					msScan.setScanStart(dLowMz);
-				}
-				if( msScan.getScanEnd() <= 0 ) {
-					msScan.setScanEnd(dHighMz);
-				}
-				msScan.setTotalNumPeaks(scanPeaks[0].length);
-				msScan.setTotalIntensity(dTotalIntensity);
+			setPeakList(jrapScan.getMassIntensityList(), msScan, true);
+			if( isCanceled() ) {
+				return new ArrayList<>();
 			}
 
+			List<Integer> lScansToRead = new ArrayList<>();
+			addSubScans(parentScanNum, subScanMap, lScansToRead);
+			scanSource = getScanSource(session, lScansToRead.stream().mapToInt(Integer::intValue).toArray());
 			List<Integer> subScans = subScanMap.get(parentScanNum);
 			for (Integer scanNo: subScans) {
-				Scan subScan = processSubScan(parser, msScan, scanNo, ms1, subScanMap, msScanMap);
+				Scan subScan = processSubScan(scanSource, msScan, scanNo, ms1, subScanMap, msScanMap, precursorPeaks);
 				msScanMap.put(scanNo, subScan);
 			}
 			
@@ -973,15 +1197,19 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 			return null;
+		} finally {
+			if( scanSource != null ) {
+				scanSource.close();
+			}
 		}
 		
 	}
 	
-	Scan processSubScan (MSXMLParser parser, 
+	Scan processSubScan (IMzXmlScanSource scanSource, 
 			Scan parentScan, Integer scanNo, HashMap<Double, Peak> ms1, 
 			Map<Integer, List<Integer>> subScanMap, 
-			HashMap<Integer, Scan> msScanMap) {
-		org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(scanNo);
+			HashMap<Integer, Scan> msScanMap, PrecursorPeakFinder precursorPeaks) {
+		org.systemsbiology.jrap.grits.stax.Scan jrapScan = scanSource.get(scanNo);
 		ScanHeader jrapScanHeader = jrapScan.getHeader();
 		if( jrapScanHeader == null ) {
 			//if (!isCanceled())
@@ -1022,14 +1250,14 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		msScan.setMsLevel(parentScan.getMsLevel()+1);
 		Peak peak = null;
 		List<Peak> lPeaks = parentScan.getPeaklist();
-		peak = findPeakInPeakList(lPeaks, (double) jrapScanHeader.getPrecursorMz());
+		peak = precursorPeaks.find(lPeaks, (double) jrapScanHeader.getPrecursorMz());
 		if( peak == null ) {
 			peak = new Peak();
 			peak.setId(parentScan.getPeaklist().size()+1);
 			peak.setMz((double) jrapScanHeader.getPrecursorMz());
 			peak.setIntensity(0.0);
 			peak.setCharge(jrapScanHeader.getPrecursorCharge());
-			parentScan.getPeaklist().add(peak); // adding it if it doesn't exist!
+			precursorPeaks.add(parentScan.getPeaklist(), peak); // adding it if it doesn't exist!
 		} 
 		if( jrapScanHeader.getMsLevel() == 2 )
 			ms1.put((double) jrapScanHeader.getPrecursorMz(), peak);						
@@ -1043,44 +1271,11 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		
 		
 		// get all the peaks of this scan
-		double[][] scanPeaks = jrapScan.getMassIntensityList();
-		if( scanPeaks != null ) {
-			double dLowMz = Double.MAX_VALUE;
-			double dHighMz = Double.MIN_VALUE;
-			double dTotalIntensity = 0.0;
-			for (int j = 0; j < scanPeaks[0].length; j++) {
-				// ignore peaks w/ intensity = 0?
-				if( scanPeaks[1][j] <= 0.0 ) {
-					continue;
-				}
-				peak = new Peak();
-				peak.setId(j + 1);
-				peak.setMz((double) scanPeaks[0][j]);
-				if( dLowMz > peak.getMz() ) {
-					dLowMz = peak.getMz();
-				}
-				if( dHighMz < peak.getMz() ) {
-					dHighMz = peak.getMz();
-				}
-				peak.setIntensity((double) scanPeaks[1][j]);
-				dTotalIntensity += peak.getIntensity();
-				double dRelInt = peak.getIntensity() / msScan.getMostAbundantPeak();
-				peak.setRelativeIntensity(dRelInt);
-				msScan.getPeaklist().add(peak);
-			}// for j
-			if( msScan.getScanStart() <= 0 ) {
-				msScan.setScanStart(dLowMz);
-			}
-			if( msScan.getScanEnd() <= 0 ) {
-				msScan.setScanEnd(dHighMz);
-			}
-			msScan.setTotalNumPeaks(scanPeaks[0].length);
-			msScan.setTotalIntensity(dTotalIntensity);
-		}
+		setPeakList(jrapScan.getMassIntensityList(), msScan, true);
 		
 		List<Integer> subScans = subScanMap.get(scanNo);
 		for (Integer subScanNo: subScans) {
-			Scan subScan = processSubScan(parser, msScan, subScanNo, ms1, subScanMap, msScanMap);
+			Scan subScan = processSubScan(scanSource, msScan, subScanNo, ms1, subScanMap, msScanMap, precursorPeaks);
 			msScanMap.put(subScanNo, subScan);
 		}
 		
@@ -1089,7 +1284,12 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	}
 
 	public List<Scan> addAllScansLCMSMS(MSXMLParser parser, int parentScanNum ) {
+		return addAllScansLCMSMS(new MzXmlFileSession(parser), parentScanNum);
+	}
+
+	public List<Scan> addAllScansLCMSMS(MzXmlFileSession session, int parentScanNum ) {
 		Scan msScan = new Scan();
+		IMzXmlScanSource scanSource = null;
 		try {
 			boolean flag = true;
 			int precursorScanNum = 0;
@@ -1097,33 +1297,35 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 			HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
 			HashMap<Integer, org.systemsbiology.jrap.grits.stax.Scan> originalScanMap = new HashMap<Integer, org.systemsbiology.jrap.grits.stax.Scan>();
 			HashMap<Integer, Scan> msScanMap = new HashMap<Integer, Scan>();
+			PrecursorPeakFinder precursorPeaks = newPrecursorPeakFinder();
 			HashMap<Double, Peak> ms1 = new HashMap<Double, Peak>();
 
 			List<Peak> ms1Peaks = new ArrayList<>();
-			int iParentMSLevel = parser.rapHeader(parentScanNum).getMsLevel(); // can't assume we have MS1 scans. Keep track of possible precursors
-			boolean bFoundParent = false;
-			int iStartScan = getFirstScanNumber(parser);
+			int iParentMSLevel = session.getMSLevel(parentScanNum); // can't assume we have MS1 scans. Keep track of possible precursors
+			int iStartScan = session.getFirstScanNumber();
 			if( iStartScan == -1 ) {
 				return new ArrayList<>();
 			}
-			int iEndScan = parser.getMaxScanNumber();
-
-			for (int i = iStartScan; i <= iEndScan; i++) {
+			int iEndScan = session.getMaxScanNumber();
+			// only the parent scan and the scans under it (from the scan tree) are read
+			int[] iDescendants = session.getScanTree().getDescendants(parentScanNum);
+			int[] iScansToRead = new int[iDescendants.length + 1];
+			iScansToRead[0] = parentScanNum;
+			System.arraycopy(iDescendants, 0, iScansToRead, 1, iDescendants.length);
+			scanSource = getScanSource(session, iScansToRead);
+
+			for (int iInx = 0; iInx < iScansToRead.length; iInx++) {
+				int i = iScansToRead[iInx];
 				if( isCanceled() ) {
 					return new ArrayList<>();
 				}
-				if( (i%10) == 0 ) { // speed things up!
+				if( (iInx%10) == 0 ) { // speed things up!
 					if (!isCanceled())
 						updateListeners("Reading XML file. Scan: " + i + " of " + iEndScan, i);
 				}
-				if( i == parentScanNum ) {
-					bFoundParent = true;					
-				}
-				if( ! bFoundParent ) 
-					continue;
 
 				// System.out.println("scan No " + i);
-				org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(i);
+				org.systemsbiology.jrap.grits.stax.Scan jrapScan = scanSource.get(i);
 				if( jrapScan == null ) {
 					//if (!isCanceled())
 					//	updateErrorListener("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
@@ -1190,14 +1392,14 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 					msScan.setMsLevel(parentScan.getMsLevel()+1);
 					Peak peak = null;
 					List<Peak> lPeaks = parentScan.getPeaklist();
-					peak = findPeakInPeakList(lPeaks, (double) jrapScanHeader.getPrecursorMz());
+					peak = precursorPeaks.find(lPeaks, (double) jrapScanHeader.getPrecursorMz());
 					if( peak == null ) {
 						peak = new Peak();
 						peak.setId(parentScan.getPeaklist().size()+1);
 						peak.setMz((double) jrapScanHeader.getPrecursorMz());
 						peak.setIntensity(0.0);
 						peak.setCharge(jrapScanHeader.getPrecursorCharge());
-						parentScan.getPeaklist().add(peak); // adding it if it doesn't exist!
+						precursorPeaks.add(parentScan.getPeaklist(), peak); // adding it if it doesn't exist!
 					} 
 					if( jrapScanHeader.getMsLevel() == 2 )
 						ms1.put((double) jrapScanHeader.getPrecursorMz(), peak);						
@@ -1216,42 +1418,9 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 				}*/
 				msScanMap.put(msScan.getScanNo(), msScan);
 				// get all the peaks of this scan
-				double[][] scanPeaks = jrapScan.getMassIntensityList();
-				if( scanPeaks != null ) {
-					double dLowMz = Double.MAX_VALUE;
-					double dHighMz = Double.MIN_VALUE;
-					double dTotalIntensity = 0.0;
-					for (int j = 0; j < scanPeaks[0].length; j++) {
-						if( isCanceled() ) {
-							return new ArrayList<>();
-						}
-						// ignore peaks w/ intensity = 0?
-						if( scanPeaks[1][j] <= 0.0 ) {
-							continue;
-						}
-						Peak peak = new Peak();
-						peak.setId(j + 1);
-						peak.setMz((double) scanPeaks[0][j]);
-						if( dLowMz > peak.getMz() ) {
-							dLowMz = peak.getMz();
-						}
-						if( dHighMz < peak.getMz() ) {
-							dHighMz = peak.getMz();
-						}
-						peak.setIntensity((double) scanPeaks[1][j]);
-						dTotalIntensity += peak.getIntensity();
-						double dRelInt = peak.getIntensity() / msScan.getMostAbundantPeak();
-						peak.setRelativeIntensity(dRelInt);
-						msScan.getPeaklist().add(peak);
-					}// for j
-					if( msScan.getScanStart() <= 0 ) {
-						msScan.setScanStart(dLowMz);
-					}
-					if( msScan.getScanEnd() <= 0 ) {
-						msScan.setScanEnd(dHighMz);
-					}
-					msScan.setTotalNumPeaks(scanPeaks[0].length);
-					msScan.setTotalIntensity(dTotalIntensity);
+				setPeakList(jrapScan.getMassIntensityList(), msScan, true);
+				if( isCanceled() ) {
+					return new ArrayList<>();
 				}
 
 			} // for i
@@ -1281,55 +1450,39 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 			return null;
+		} finally {
+			if( scanSource != null ) {
+				scanSource.close();
+			}
 		}
 
 	}
 
 	public List<Integer> getScanList( String fileName, int parentScanNum ) {
-		File mzXMLFile = new File(fileName);	
+		return getScanList(MzXmlIndexBuilder.getIndex(fileName), parentScanNum);
+	}
+
+	private List<Integer> getScanList( ScanHeaderIndex index, int parentScanNum ) {
 		List<Integer> lScans = new ArrayList<>();
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
-			int iMinMSLevel = getMinMSLevel(parser);
-			int iStartScan = getFirstScanNumber(parser);
-			if( iStartScan == -1 ) {
-				return new ArrayList<Integer>();
+			if( parentScanNum < 0 ) {
+				return index.getScanNumbers(index.getMinMSLevel());
 			}
-			int iEndScan = parser.getMaxScanNumber();
-			boolean bFoundParent = false;
-			int iParentMSLevel = -1;
-			for (int i = iStartScan; i <= iEndScan; i++) {
+			// only the scans between the parent and the next scan of the same level are looked at
+			int iParentRow = index.getRow(parentScanNum);
+			if( iParentRow == -1 ) {
+				return lScans;
+			}
+			int iParentMSLevel = index.getMsLevel(iParentRow);
+			for (int iRow = iParentRow + 1; iRow < index.size(); iRow++) {
 				if( isCanceled() ) {
 					return new ArrayList<Integer>();
 				}
-				if( (i%10) == 0 ) { // speed things up!
-					if (!isCanceled())
-						updateListeners("Reading XML file. Scan: " + i + " of " + iEndScan, i);
-				}
-				ScanHeader jrapScanHeader = parser.rapHeader(i);
-				if( jrapScanHeader == null ) {
-					//if (!isCanceled())
-					//	updateErrorListener("Call to parser.rapHeader() for scan number " + i + " returned null. Skipping.");
-					logger.debug("Call to parser.rapHeader() for scan number " + i + " returned null. Skipping.");
-					continue;
-				}
-				if( parentScanNum < 0 ) {
-					if( jrapScanHeader.getMsLevel() == iMinMSLevel ) {
-						lScans.add(i);
-					}
-				} else {
-					if( ! bFoundParent ) {
-						if( jrapScanHeader.getNum() == parentScanNum ) {
-							bFoundParent = true;
-							iParentMSLevel = jrapScanHeader.getMsLevel();							
-						}
-					} else {
-						if( jrapScanHeader.getMsLevel() == (iParentMSLevel - 1) ) {
-							lScans.add(i);					
-						} else if ( jrapScanHeader.getMsLevel() == iParentMSLevel ) {
-							bFoundParent = false;
-						}
-					}					
+				int iMSLevel = index.getMsLevel(iRow);
+				if( iMSLevel == (iParentMSLevel - 1) ) {
+					lScans.add(index.getScanNumber(iRow));					
+				} else if ( iMSLevel == iParentMSLevel ) {
+					break;
 				}
 			}
 		} catch (Exception ex) {
@@ -1344,124 +1497,127 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	public Integer getMinMSLevel(MSFile file) {
 		return getMinMSLevel(file.getFileName());
 	}
+
+	@Override
+	public Integer getMinMSLevel(IMSFileSession session) {
+		return getSession(session).getSummary().getMinMSLevel();
+	}
 	
 	public static int getMinMSLevel(String fileName) {
-		File mzXMLFile = new File(fileName);
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
-			return getMinMSLevel(parser);
+			return MzXmlIndexBuilder.getIndex(fileName).getSummary().getMinMSLevel();
 		} catch (Exception ex) {
 			logger.error(ex.getMessage(), ex);
 		}
 		return -1;
 	}
 
-	private static int getMinMSLevel(MSXMLParser parser) {
+	@Override
+	public int getNumMS1Scans(MSFile file) {
 		try {
-			int iStartScan = getFirstScanNumber(parser);
-			if( iStartScan == -1 ) {
-				return -1;
-			}
-			int iEndScan = parser.getMaxScanNumber();
-			int iMinMSLevel = Integer.MAX_VALUE;
-			for (int i = iStartScan; i <= iEndScan; i++) {
-				try {
-					ScanHeader jrapScanHeader = parser.rapHeader(i);
-					if( jrapScanHeader == null ) {
-						continue;
-					}
-					if( jrapScanHeader.getMsLevel() < iMinMSLevel ) {
-						iMinMSLevel = jrapScanHeader.getMsLevel();
-					}
-				} catch( Exception ex ) {
-					logger.debug("Error parsing scan: i");
-					logger.error(ex.getMessage(), ex);
-				}
-			}
-			return iMinMSLevel;
-		} catch (Exception e) {
-			logger.error(e.getMessage(), e);
+			return countScansByMSLevel(MzXmlIndexBuilder.getIndex(file.getFileName()).getSummary(), 1);
+		} catch (Exception ex) {
+			logger.error(ex.getMessage(), ex);
 		}
-		return -1;
+		return 0;
+	}
+
+	@Override
+	public int getNumMS1Scans(IMSFileSession session) {
+		return countScansByMSLevel(getSession(session).getSummary(), 1);
 	}
 
-	private int countScansByMSLevel(MSXMLParser parser, int iMSLevel ) {
+	@Override
+	public int getNumMS2Scans(MSFile file) {
 		try {
-			int iStartScan = getFirstScanNumber(parser);
-			if( iStartScan == -1 ) {
-				return -1;
-			}
-			int iEndScan = parser.getMaxScanNumber();
-			int iNumScans = 0;
-			for (int i = iStartScan; i <= iEndScan; i++) {
-				try {
-					ScanHeader jrapScanHeader = parser.rapHeader(i);
-					if( jrapScanHeader == null ) {
-						continue;
-					}
-					if (jrapScanHeader.getNum() > 0 && jrapScanHeader.getMsLevel() == iMSLevel ) {
-						iNumScans++;
-					}
-				} catch( Exception ex ) {
-					logger.debug("Error parsing scan: i");
-					logger.error(ex.getMessage(), ex);
-				}
-			}
-			return iNumScans;
-		} catch (Exception e) {
-			logger.error(e.getMessage(), e);
+			return countScansByMSLevel(MzXmlIndexBuilder.getIndex(file.getFileName()).getSummary(), 2);
+		} catch (Exception ex) {
+			logger.error(ex.getMessage(), ex);
 		}
 		return 0;
 	}
 
 	@Override
-	public int getNumMS1Scans(MSFile file) {
-		File mzXMLFile = new File(file.getFileName());
+	public int getNumMS2Scans(IMSFileSession session) {
+		return countScansByMSLevel(getSession(session).getSummary(), 2);
+	}
+
+	private int countScansByMSLevel(FileSummary summary, int iMSLevel) {
+		// -1 if the file doesn't have any scans
+		if( summary.getNumScans() == 0 ) {
+			return -1;
+		}
+		return summary.getScanCount(iMSLevel);
+	}
+
+	@Override
+	public FileSummary getFileSummary(MSFile file) {
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
-			return countScansByMSLevel(parser, 1);
+			return MzXmlIndexBuilder.getIndex(file.getFileName()).getSummary();
 		} catch (Exception ex) {
 			logger.error(ex.getMessage(), ex);
 		}
-		return 0;
+		return null;
 	}
 
 	@Override
-	public int getNumMS2Scans(MSFile file) {
-		File mzXMLFile = new File(file.getFileName());
-		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
-			return countScansByMSLevel(parser, 2);
+	public FileSummary getFileSummary(IMSFileSession session) {
+		return getSession(session).getSummary();
+	}
+
+	@Override
+	public PrecursorIndex getPrecursorIndex(MSFile file) {
+		try (MzXmlFileSession session = openSession(file)) {
+			return getPrecursorIndex(session);
 		} catch (Exception ex) {
 			logger.error(ex.getMessage(), ex);
 		}
-		return 0;
+		return null;
 	}
-	
-	private static int getFirstScanNumber(MSXMLParser parser) {
-		int count = parser.getMaxScanNumber();
-		for (int i = 1; i <= count; i++) {
-			org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(i);
-			if( jrapScan != null ) {
-				return i;
-			}
+
+	@Override
+	public PrecursorIndex getPrecursorIndex(IMSFileSession session) {
+		return getSession(session).getPrecursorIndex();
+	}
+
+	@Override
+	public PeakArray getPeakArray(MSFile file, int scanNumber) {
+		try (MzXmlFileSession session = openSession(file)) {
+			return getPeakArray(session, scanNumber);
 		}
-		return -1;
 	}
 
-	private List<Scan> getScanData(MSXMLParser parser, int msLevel, int parentScanNum, int scanNum) {
+	@Override
+	public PeakArray getPeakArray(IMSFileSession session, int scanNumber) {
+		try {
+			org.systemsbiology.jrap.grits.stax.Scan jrapScan = getJrapScan(getSession(session), scanNumber);
+			if( jrapScan == null ) {
+				logger.debug("Call to getJrapScan for scan number " + scanNumber + " returned null.");
+				return null;
+			}
+			return PeakArray.fromMassIntensityList(jrapScan.getMassIntensityList());
+		} catch (Exception ex) {
+			logger.error(ex.getMessage(), ex);
+		}
+		return null;
+	}
+	
+	private List<Scan> getScanData(MzXmlFileSession session, int msLevel, int parentScanNum, int scanNum) {
+		IMzXmlScanSource scanSource = null;
 		try {
 			int precursorScanNum = 0;
 			List<Scan> scans = new ArrayList<>();
 			HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
 			HashMap<Integer, Scan> msScanMap = new HashMap<Integer, Scan>();
-			int iStartScan = getFirstScanNumber(parser);
+			PrecursorPeakFinder precursorPeaks = newPrecursorPeakFinder();
+			int iStartScan = session.getFirstScanNumber();
 			if( iStartScan == -1 ) {
 				return new ArrayList<>();
 			}
-			int iEndScan = parser.getMaxScanNumber();
+			int iEndScan = session.getMaxScanNumber();
+			ScanHeaderIndex index = session.getIndex();
 
-			int iLastPossiblePrecursorMSLevel = parser.rapHeader(iStartScan).getMsLevel(); // can't assume we have MS1 scans. Keep track of possible precursors
+			int iLastPossiblePrecursorMSLevel = session.getMSLevel(iStartScan); // can't assume we have MS1 scans. Keep track of possible precursors
 			int iMinMSLevel = iLastPossiblePrecursorMSLevel; // can't assume we have MS1 scans. Keep track of possible precursors
 			Scan firstParentScan = null;
 			double dMinMz = Double.MAX_VALUE;
@@ -1481,6 +1637,19 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 			Scan msScan = null;
 			Scan parentScan = null;
 			List<Integer> skippedScans = new ArrayList<>();
+			// read ahead the scans that will most likely be returned (the others are read when needed)
+			int[] iScansToRead;
+			if( scanNum != -1 ) {
+				iScansToRead = new int[] { scanNum };
+			} else if( parentScanNum != -1 ) {
+				int[] iChildren = session.getScanTree().getChildren(parentScanNum);
+				iScansToRead = new int[iChildren.length + 1];
+				iScansToRead[0] = parentScanNum;
+				System.arraycopy(iChildren, 0, iScansToRead, 1, iChildren.length);
+			} else {
+				iScansToRead = index.getScanNumbers(msLevel).stream().mapToInt(Integer::intValue).toArray();
+			}
+			scanSource = getScanSource(session, iScansToRead);
 			for (int i = iStartScan; i <= iEndScan; i++) {
 				try {
 					if( isCanceled() ) {
@@ -1499,14 +1668,13 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 					if( parentScanNum != -1 && (i < parentScanNum || i > (parentScanNum+1000) ) ) {
 						continue;
 					}
-					org.systemsbiology.jrap.grits.stax.Scan jrapScan = getJrapScan(parser, i);
-					if( jrapScan == null ) {
+					// decide from the header index first, peaks are only read for the scans that are returned
+					int iRow = index.getRow(i);
+					if( iRow == -1 ) {
 						skippedScans.add(i);
-						//if (!isCanceled())
-						//	updateErrorListener("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
 						continue;
 					}
-					org.systemsbiology.jrap.grits.stax.ScanHeader jrapScanHeader = jrapScan.getHeader();
+					org.systemsbiology.jrap.grits.stax.ScanHeader jrapScanHeader = index.getScanHeader(iRow);
 
 					// Create a peak for the precursor to be added to MS1 scan
 					int iCurMSLevel = jrapScanHeader.getMsLevel();
@@ -1525,14 +1693,30 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 						precursorScanNum = parentScanNum; // what else can we do??
 					}
 
-					msScan = getScan(jrapScan, precursorScanNum);
+					boolean bReturnScan = i == scanNum || i == parentScanNum ||
+							(precursorScanNum != -1 && (precursorScanNum == parentScanNum)) ||
+							(scanNum == -1 && parentScanNum == -1 && iCurMSLevel == msLevel);
+					org.systemsbiology.jrap.grits.stax.Scan jrapScan = null;
+					if( bReturnScan ) {
+						jrapScan = scanSource.get(i);
+						if( jrapScan == null ) {
+							skippedScans.add(i);
+							//if (!isCanceled())
+							//	updateErrorListener("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
+							continue;
+						}
+						jrapScanHeader = jrapScan.getHeader();
+						msScan = getScan(jrapScan, precursorScanNum);
+					} else {
+						msScan = getScan(jrapScanHeader, precursorScanNum);
+					}
 					int iParentScanNum = msScan.getParentScan();
 					if( iParentScanNum != -1 ) {
 						if( msScanMap.containsKey(iParentScanNum) ) {
 							parentScan = msScanMap.get(iParentScanNum);
 						} else {
-							org.systemsbiology.jrap.grits.stax.Scan jrapParentScan = getJrapScan(parser, iParentScanNum);
-							parentScan = getScan(jrapParentScan, -1);
+							int iParentRow = index.getRow(iParentScanNum);
+							parentScan = iParentRow == -1 ? null : getScan(index.getScanHeader(iParentRow), -1);
 							if( parentScan == null ) {
 								parentScan = firstParentScan;
 								iLastPossiblePrecursorMSLevel = firstParentScan.getMsLevel();								
@@ -1545,7 +1729,7 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 
 					Peak peak = null;
 					if( msScan.getMsLevel() > iLastPossiblePrecursorMSLevel && parentScan != null) { // precursor peak is built on fly
-						peak = getPrecursorPeak(parentScan, jrapScanHeader);				
+						peak = getPrecursorPeak(parentScan, jrapScanHeader, precursorPeaks);				
 						msScan.setPrecursor(peak);
 						parentScan.getSubScans().add(i);
 						if( peak.getMz() > dMaxMz ) {
@@ -1559,10 +1743,7 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 						}
 					}
 
-					if( i == scanNum || i == parentScanNum ||
-							(precursorScanNum != -1 && (precursorScanNum == parentScanNum)) ||
-							(scanNum == -1 && parentScanNum == -1 && iCurMSLevel == msLevel) ) {
-
+					if( bReturnScan ) {
 						setPeakList(jrapScan.getMassIntensityList(), msScan, (scanNum != -1 || parentScanNum != -1));
 						scans.add(msScan);
 					}
@@ -1581,7 +1762,7 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 				firstParentScan.setScanEnd(dMaxMz);
 			}
 
-			if (!isCanceled) {
+			if (!isCanceled()) {
 				if (!skippedScans.isEmpty()) {
 					updateErrorListener("Several scans are skipped due to being null. Check the log for details");
 					logger.info("The following scans are skipped: " + skippedScans.toString());
@@ -1591,27 +1772,39 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 			return null;
+		} finally {
+			if( scanSource != null ) {
+				scanSource.close();
+			}
 		}
 	}
 
-	private org.systemsbiology.jrap.grits.stax.Scan getJrapScan( MSXMLParser parser, int iScanNumber) {
+	private org.systemsbiology.jrap.grits.stax.Scan getJrapScan( MzXmlFileSession session, int iScanNumber) {
 
-		org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(iScanNumber);
+		org.systemsbiology.jrap.grits.stax.Scan jrapScan = session.rap(iScanNumber);
 		if( jrapScan == null ) {
 			return null;
 		}
 		return jrapScan;
 	}
 
-	private Scan getScan( org.systemsbiology.jrap.grits.stax.Scan jrapScan, int iLastPrecursorScanNum) {
+	Scan getScan( org.systemsbiology.jrap.grits.stax.Scan jrapScan, int iLastPrecursorScanNum) {
 
 		if( jrapScan == null ) {
 			return null;
 		}
-		ScanHeader jrapScanHeader = jrapScan.getHeader();
+		Scan msScan = getScan(jrapScan.getHeader(), iLastPrecursorScanNum);
 		double maxIntensity = getMostAbundantPeak(jrapScan);
-		Scan msScan = new Scan();
 		msScan.setMostAbundantPeak(maxIntensity);
+		return msScan;
+	}
+
+	/**
+	 * creates the scan from the header only (no peaks), the most abundant peak is the base peak of the header
+	 */
+	Scan getScan( ScanHeader jrapScanHeader, int iLastPrecursorScanNum) {
+		Scan msScan = new Scan();
+		msScan.setMostAbundantPeak((double) jrapScanHeader.getBasePeakIntensity());
 		int precursorScanNum = -1;
 		if (jrapScanHeader.getPrecursorScanNum() != -1) {
 			precursorScanNum = jrapScanHeader.getPrecursorScanNum();
@@ -1644,20 +1837,20 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		return msScan;
 	}
 
-	private Peak getPrecursorPeak( Scan parentScan, ScanHeader jrapScanHeader ) {
+	Peak getPrecursorPeak( Scan parentScan, ScanHeader jrapScanHeader, PrecursorPeakFinder precursorPeaks ) {
 		if( parentScan == null ) {
 			return null;
 		}
 		Peak peak = null;
 		List<Peak> lPeaks = parentScan.getPeaklist();
-		peak = findPeakInPeakList(lPeaks, (double) jrapScanHeader.getPrecursorMz());
+		peak = precursorPeaks.find(lPeaks, (double) jrapScanHeader.getPrecursorMz());
 		if( peak == null ) {
 			peak = new Peak();
 			peak.setId(parentScan.getPeaklist().size()+1);
 			peak.setMz((double) jrapScanHeader.getPrecursorMz());
 			peak.setIntensity(0.0);
 			peak.setCharge(jrapScanHeader.getPrecursorCharge());
-			parentScan.getPeaklist().add(peak); // adding it if it doesn't exist!
+			precursorPeaks.add(parentScan.getPeaklist(), peak); // adding it if it doesn't exist!
 		}
 		peak.setIsPrecursor(true);
 		peak.setPrecursorIntensity((double) jrapScanHeader.getPrecursorIntensity());
@@ -1667,45 +1860,26 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		return peak;
 	}
 
-	private void setPeakList(double[][] scanPeaks, Scan msScan, boolean bAddPeak) {
+	void setPeakList(double[][] scanPeaks, Scan msScan, boolean bAddPeak) {
 		// get all the peaks of this scan
 		if( scanPeaks != null ) {
-			double dLowMz = Double.MAX_VALUE;
-			double dHighMz = Double.MIN_VALUE;
-			double dTotalIntensity = 0.0;
-			for (int j = 0; j < scanPeaks[0].length; j++) {
-				if( isCanceled() ) {
-					return;
-				}
-				// ignore peaks w/ intensity = 0?
-				if( scanPeaks[1][j] <= 0.0 ) {
-					continue;
-				}
-				Peak peak = new Peak();
-				peak.setId(j + 1);
-				peak.setMz((double) scanPeaks[0][j]);
-				if( dLowMz > peak.getMz() ) {
-					dLowMz = peak.getMz();
-				}
-				if( dHighMz < peak.getMz() ) {
-					dHighMz = peak.getMz();
-				}
-				peak.setIntensity((double) scanPeaks[1][j]);
-				dTotalIntensity += peak.getIntensity();
-				double dRelInt = peak.getIntensity() / msScan.getMostAbundantPeak();
-				peak.setRelativeIntensity(dRelInt);
-				if( bAddPeak ) {
-					msScan.getPeaklist().add(peak);
+			PeakArray peakArray = PeakArray.fromMassIntensityList(scanPeaks);
+			if( bAddPeak ) {
+				// peak objects are only created when they are accessed
+				if( msScan.getPeaklist() == null || msScan.getPeaklist().isEmpty() ) {
+					msScan.setPeaklist(peakArray.asPeakList(msScan.getMostAbundantPeak()));
+				} else {
+					msScan.getPeaklist().addAll(peakArray.toPeakList(msScan.getMostAbundantPeak()));
 				}
-			}// for j
+			}
 			if( msScan.getScanStart() <= 0 ) {
-				msScan.setScanStart(dLowMz);
+				msScan.setScanStart(peakArray.getLowMz());
 			}
 			if( msScan.getScanEnd() <= 0 ) {
-				msScan.setScanEnd(dHighMz);
+				msScan.setScanEnd(peakArray.getHighMz());
 			}
 			msScan.setTotalNumPeaks(scanPeaks[0].length);
-			msScan.setTotalIntensity(dTotalIntensity);
+			msScan.setTotalIntensity(peakArray.getTotalIntensity());
 		}
 	}
 
@@ -1722,8 +1896,17 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 	 */
 	@Override
 	public Integer getMinScanNumber(MSFile file) {
-		MSXMLParser parser = new MSXMLParser(file.getFileName());
-		return getFirstScanNumber(parser);
+		try (MzXmlFileSession session = openSession(file)) {
+			return getMinScanNumber(session);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Integer getMinScanNumber(IMSFileSession session) {
+		return getSession(session).getFirstScanNumber();
 	}
 
 	/**
@@ -1734,38 +1917,291 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		return readMzXmlFile(file.getFileName(), msLevel, parentScanNum, scanNum);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
 	@Override
-	public boolean hasMS1Scan(MSFile file) {
-		MSXMLParser m_parser = new MSXMLParser(file.getFileName());
-		org.systemsbiology.jrap.grits.stax.Scan firstScan = null;
-		if ( m_parser != null ) {
-			for( int i = 1; firstScan == null && i < m_parser.getMaxScanNumber() + 1; i++ ) {
-				ScanHeader header = m_parser.rapHeader(i);
-				if ( header != null && header.getMsLevel() == 1 ) {
-					org.systemsbiology.jrap.grits.stax.Scan s = m_parser.rap(i);
-					if( s.getMassIntensityList() != null && s.getMassIntensityList()[0].length > 0 ) {
-						firstScan = m_parser.rap(i);
-						if (firstScan != null)
-							return true;
+	public List<Scan> readMSFile(IMSFileSession session, int msLevel, int parentScanNum, int scanNum) {
+		return readMzXmlFile(getSession(session), msLevel, parentScanNum, scanNum);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Scan> readMSFile(MSFile file, ScanSelection selection) {
+		try (MzXmlFileSession session = openSession(file)) {
+			return readMSFile(session, selection);
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Scan> readMSFile(IMSFileSession session, ScanSelection selection) {
+		IScanIterator iterator = null;
+		try {
+			iterator = new SelectedScanIterator(getSession(session), selection, false, this::isCanceled);
+			List<Scan> scans = new ArrayList<>();
+			while( iterator.hasNext() ) {
+				scans.add(iterator.next());
+			}
+			if( isCanceled() ) {
+				return new ArrayList<>();
+			}
+			return scans;
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			return null;
+		} finally {
+			if( iterator != null ) {
+				iterator.close();
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public IScanIterator iterateMSFile(MSFile file, ScanSelection selection) {
+		return iterateMSFile(file, selection, this::isCanceled);
+	}
+
+	private IScanIterator iterateMSFile(MSFile file, ScanSelection selection, BooleanSupplier canceled) {
+		MzXmlFileSession session = openSession(file);
+		try {
+			return new SelectedScanIterator(session, selection, true, canceled);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+			session.close();
+		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public IScanIterator iterateMSFile(IMSFileSession session, ScanSelection selection) {
+		return iterateMSFile(session, selection, this::isCanceled);
+	}
+
+	private IScanIterator iterateMSFile(IMSFileSession session, ScanSelection selection, BooleanSupplier canceled) {
+		try {
+			return new SelectedScanIterator(getSession(session), selection, false, canceled);
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		return null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Stream<Scan> streamMSFile(MSFile file, ScanSelection selection) {
+		return getStream(iterateMSFile(file, selection));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Stream<Scan> streamMSFile(IMSFileSession session, ScanSelection selection) {
+		return getStream(iterateMSFile(session, selection));
+	}
+
+	private Stream<Scan> getStream(IScanIterator iterator) {
+		if( iterator == null ) {
+			return null;
+		}
+		Spliterator<Scan> spliterator = Spliterators.spliteratorUnknownSize(iterator, 
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(iterator::close);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public IPublisher<Scan> publishMSFile(MSFile file, ScanSelection selection) {
+		return getPublisher(canceled -> iterateMSFile(file, selection, canceled));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public IPublisher<Scan> publishMSFile(IMSFileSession session, ScanSelection selection) {
+		return getPublisher(canceled -> iterateMSFile(session, selection, canceled));
+	}
+
+	/**
+	 * reads the scans of a selection one after another. A scan is only kept once it has been returned 
+	 * while some of its selected sub scans have not been read yet (its peak list gets their precursor peaks).
+	 */
+	private class SelectedScanIterator implements IScanIterator {
+		private final MzXmlFileSession session;
+		private final boolean closeSession;
+		private final ScanTree tree;
+		private final int[] scanNumbers; // selected scans, ascending
+		private final IMzXmlScanSource scanSource;
+		private final BooleanSupplier canceled;
+		private final HashMap<Integer, Scan> msScanMap = new HashMap<Integer, Scan>();
+		private final HashMap<Integer, Integer> remainingSubScans = new HashMap<Integer, Integer>();
+		private final PrecursorPeakFinder precursorPeaks = newPrecursorPeakFinder();
+		private int position = 0;
+		private Scan nextScan = null;
+		private boolean closed = false;
+
+		/**
+		 * @param session the session of the file
+		 * @param selection criteria for the scans to be read
+		 * @param closeSession true if the session has been opened for this iterator
+		 * @param canceled true once the reading is canceled
+		 */
+		private SelectedScanIterator(MzXmlFileSession session, ScanSelection selection, boolean closeSession, BooleanSupplier canceled) {
+			this.session = session;
+			this.closeSession = closeSession;
+			this.canceled = canceled;
+			ScanHeaderIndex index = session.getIndex();
+			this.tree = session.getScanTree();
+			int[] iRows = index.select(selection);
+			this.scanNumbers = new int[iRows.length];
+			for( int iInx = 0; iInx < iRows.length; iInx++ ) {
+				scanNumbers[iInx] = index.getScanNumber(iRows[iInx]);
+			}
+			this.scanSource = getScanSource(session, scanNumbers, canceled);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while( nextScan == null && ! closed && position < scanNumbers.length ) {
+				if( canceled.getAsBoolean() ) {
+					position = scanNumbers.length;
+					break;
+				}
+				int i = scanNumbers[position];
+				if( (position % 10) == 0 ) {
+					updateListeners("Reading XML file. Scan: " + i, position);
+				}
+				position++;
+				nextScan = readScan(i);
+			}
+			return nextScan != null;
+		}
+
+		@Override
+		public Scan next() {
+			if( ! hasNext() ) {
+				throw new NoSuchElementException();
+			}
+			Scan scan = nextScan;
+			nextScan = null;
+			return scan;
+		}
+
+		private Scan readScan(int i) {
+			Scan msScan = null;
+			org.systemsbiology.jrap.grits.stax.Scan jrapScan = scanSource.get(i);
+			if( jrapScan == null ) {
+				logger.debug("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
+			} else {
+				ScanHeader jrapScanHeader = jrapScan.getHeader();
+				msScan = getScan(jrapScan, tree.getParentScanNumber(i));
+				if( msScan.getMsLevel() > 1 ) {
+					// the parent is only used if it is selected as well, its peaks are not read otherwise
+					Scan parentScan = msScanMap.get(msScan.getParentScan());
+					Peak peak = null;
+					if( parentScan != null ) {
+						peak = getPrecursorPeak(parentScan, jrapScanHeader, precursorPeaks);
+						parentScan.getSubScans().add(i);
+					} else {
+						peak = getNewPrecursorPeak(jrapScanHeader, false);
+						peak.setPrecursorMz((double) jrapScanHeader.getPrecursorMz());
+					}
+					msScan.setPrecursor(peak);
+				}
+				setPeakList(jrapScan.getMassIntensityList(), msScan, true);
+				int iNumSubScans = 0;
+				for( int iChild : tree.getChildren(i) ) {
+					if( iChild > i && Arrays.binarySearch(scanNumbers, iChild) >= 0 ) {
+						iNumSubScans++;
 					}
 				}
+				if( iNumSubScans > 0 ) {
+					msScanMap.put(i, msScan);
+					remainingSubScans.put(i, iNumSubScans);
+				}
+			}
+			// the parent is released once all its selected sub scans are read
+			int iParentScanNum = tree.getParentScanNumber(i);
+			Integer iRemaining = remainingSubScans.get(iParentScanNum);
+			if( iRemaining != null ) {
+				if( iRemaining > 1 ) {
+					remainingSubScans.put(iParentScanNum, iRemaining - 1);
+				} else {
+					remainingSubScans.remove(iParentScanNum);
+					msScanMap.remove(iParentScanNum);
+				}
+			}
+			return msScan;
+		}
+
+		@Override
+		public void close() {
+			if( closed ) {
+				return;
+			}
+			closed = true;
+			nextScan = null;
+			msScanMap.clear();
+			remainingSubScans.clear();
+			scanSource.close();
+			if( closeSession ) {
+				session.close();
 			}
 		}
-		return false;
+	}
+
+	@Override
+	public boolean hasMS1Scan(MSFile file) {
+		return MzXmlIndexBuilder.getIndex(file.getFileName()).getSummary().hasMS1Scan();
+	}
+
+	@Override
+	public boolean hasMS1Scan(IMSFileSession session) {
+		return getSession(session).getSummary().hasMS1Scan();
 	}
 
 	@Override
 	public List<ScanView> readMSFileForView(MSFile file, int msLevel, int parentScanNum, int scanNum) {
-		File mzXMLFile = new File(file.getFileName());
+		return readMSFileForView(file, msLevel, parentScanNum, scanNum, this::isCanceled);
+	}
+
+	private List<ScanView> readMSFileForView(MSFile file, int msLevel, int parentScanNum, int scanNum, BooleanSupplier canceled) {
+		try (MzXmlFileSession session = openSession(file)) {
+			return readMSFileForView(session, msLevel, parentScanNum, scanNum, canceled);
+		}
+	}
+
+	@Override
+	public List<ScanView> readMSFileForView(IMSFileSession session, int msLevel, int parentScanNum, int scanNum) {
+		return readMSFileForView(session, msLevel, parentScanNum, scanNum, this::isCanceled);
+	}
+
+	private List<ScanView> readMSFileForView(IMSFileSession session, int msLevel, int parentScanNum, int scanNum, BooleanSupplier canceled) {
 		try {			
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
+			MzXmlFileSession mzXmlSession = getSession(session);
 			updateListeners("Reading XML file", -1);
-			List<ScanView> scans = getScanViewData(parser, msLevel, parentScanNum, scanNum);
+			List<ScanView> scans = getScanViewData(mzXmlSession, msLevel, parentScanNum, scanNum, canceled);
 			if( scans != null ) {
 				Collections.sort(scans);
 			}
 			if( scans.isEmpty() ) {
-				if (!isCanceled())
+				if (!canceled.getAsBoolean())
 					updateErrorListener("Warning: no scan data read from MS file. The file may be invalid or incorrect type.");
 			}
 			return scans;
@@ -1775,19 +2211,42 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		return null;
 	}
 
-	private List<ScanView> getScanViewData(MSXMLParser parser, int msLevel, int parentScanNum, int scanNum) {
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public IPublisher<ScanView> publishMSFileForView(MSFile file, int msLevel, int parentScanNum, int scanNum) {
+		return getPublisher(canceled -> {
+			List<ScanView> scans = readMSFileForView(file, msLevel, parentScanNum, scanNum, canceled);
+			return scans == null ? null : scans.iterator();
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public IPublisher<ScanView> publishMSFileForView(IMSFileSession session, int msLevel, int parentScanNum, int scanNum) {
+		return getPublisher(canceled -> {
+			List<ScanView> scans = readMSFileForView(session, msLevel, parentScanNum, scanNum, canceled);
+			return scans == null ? null : scans.iterator();
+		});
+	}
+
+	private List<ScanView> getScanViewData(MzXmlFileSession session, int msLevel, int parentScanNum, int scanNum, BooleanSupplier canceled) {
 		try {
 			int precursorScanNum = 0;
 			List<ScanView> scans = new ArrayList<>();
 			HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
 			HashMap<Integer, ScanView> msScanMap = new HashMap<Integer, ScanView>();
-			int iStartScan = getFirstScanNumber(parser);
+			int iStartScan = session.getFirstScanNumber();
 			if( iStartScan == -1 ) {
 				return new ArrayList<>();
 			}
-			int iEndScan = parser.getMaxScanNumber();
+			int iEndScan = session.getMaxScanNumber();
+			ScanHeaderIndex index = session.getIndex(); // a scan view only needs the header
 
-			int iLastPossiblePrecursorMSLevel = parser.rapHeader(iStartScan).getMsLevel(); // can't assume we have MS1 scans. Keep track of possible precursors
+			int iLastPossiblePrecursorMSLevel = session.getMSLevel(iStartScan); // can't assume we have MS1 scans. Keep track of possible precursors
 			int iMinMSLevel = iLastPossiblePrecursorMSLevel; // can't assume we have MS1 scans. Keep track of possible precursors
 			ScanView firstParentScan = null;
 			if( iLastPossiblePrecursorMSLevel > 1 ) { // no parent scan. Create one so everything jives
@@ -1805,11 +2264,11 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 			ScanView parentScan = null;
 			for (int i = iStartScan; i <= iEndScan; i++) {
 				try {
-					if( isCanceled() ) {
+					if( canceled.getAsBoolean() ) {
 						return new ArrayList<>();
 					}
 					if( (i % 10) == 0 ) {
-						if (!isCanceled())
+						if (!canceled.getAsBoolean())
 							updateListeners("Reading XML file. Scan: " + i + " of " + iEndScan, i);
 					}
 					/*	if( scanNum != -1 && i != scanNum) { // if scan number is specified, we don't need to rap every scan!
@@ -1821,13 +2280,11 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 					if( parentScanNum != -1 && (i < parentScanNum || i > (parentScanNum+1000) ) ) {
 						continue;
 					}
-					org.systemsbiology.jrap.grits.stax.Scan jrapScan = getJrapScan(parser, i);
-					if( jrapScan == null ) {
-						//	if (!isCanceled())
-						//		updateErrorListener("Call to getJrapScan for scan number " + i + " returned null. Skipping.");
+					int iRow = index.getRow(i);
+					if( iRow == -1 ) {
 						continue;
 					}
-					org.systemsbiology.jrap.grits.stax.ScanHeader jrapScanHeader = jrapScan.getHeader();
+					org.systemsbiology.jrap.grits.stax.ScanHeader jrapScanHeader = index.getScanHeader(iRow);
 
 					// Create a peak for the precursor to be added to MS1 scan
 					int iCurMSLevel = jrapScanHeader.getMsLevel();
@@ -1846,14 +2303,17 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 						precursorScanNum = parentScanNum; // what else can we do??
 					}
 
-					msScan = getScanView(jrapScan, precursorScanNum);
+					msScan = getScanView(jrapScanHeader, precursorScanNum);
 					int iParentScanNum = msScan.getParentScan();
 					if( iParentScanNum != -1 ) {
 						if( msScanMap.containsKey(iParentScanNum) ) {
 							parentScan = msScanMap.get(iParentScanNum);
 						} else {
-							org.systemsbiology.jrap.grits.stax.Scan jrapParentScan = getJrapScan(parser, iParentScanNum);
-							parentScan = getScanView(jrapParentScan, -1);
+							int iParentRow = index.getRow(iParentScanNum);
+							if( iParentRow == -1 ) {
+								continue;
+							}
+							parentScan = getScanView(index.getScanHeader(iParentRow), -1);
 							if( parentScan == null ) {
 								continue;
 							}
@@ -1891,11 +2351,10 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 		}
 	}
 
-	private ScanView getScanView(org.systemsbiology.jrap.grits.stax.Scan jrapScan, int iLastPrecursorScanNum) {
-		if( jrapScan == null ) {
+	ScanView getScanView(ScanHeader jrapScanHeader, int iLastPrecursorScanNum) {
+		if( jrapScanHeader == null ) {
 			return null;
 		}
-		ScanHeader jrapScanHeader = jrapScan.getHeader();
 		ScanView msScan = new ScanView();
 		int precursorScanNum = -1;
 		if (jrapScanHeader.getPrecursorScanNum() != -1) {
@@ -1919,44 +2378,22 @@ public class MzXmlReader extends NotifyingProcess implements IMSAnnotationFileRe
 
 	@Override
 	public Map<Integer, List<Integer>> readMSFileForSubscans(MSFile file) {
-		Map<Integer, List<Integer>> subScanMap = new HashMap<>();
-		File mzXMLFile = new File(file.getFileName());	
 		try {
-			MSXMLParser parser = new MSXMLParser(mzXMLFile.getAbsolutePath());
-			int iStartScan = getFirstScanNumber(parser);
-			int iEndScan = parser.getMaxScanNumber();
-			for (int i=iStartScan; i < iEndScan; i++) {
-				List<Integer> subScans = new ArrayList<>();
-				subScanMap.put(i, subScans);
-			}
-			HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
-			for (int i=iStartScan; i < iEndScan; i++) {
-				org.systemsbiology.jrap.grits.stax.Scan jrapScan = parser.rap(i);
-				ScanHeader jrapHeader = jrapScan.getHeader();
-				lastParentOfEachLevel.put(jrapHeader.getMsLevel(), jrapHeader.getNum());
-				if (jrapHeader != null && jrapHeader.getMsLevel() > 1) {
-					Integer parentScan = jrapHeader.getPrecursorScanNum();
-					if (parentScan == -1) {
-						int iParentLevel = jrapHeader.getMsLevel() - 1;
-						while( iParentLevel > 1 && ! lastParentOfEachLevel.containsKey(iParentLevel) ) {
-							iParentLevel--;
-						}
-						parentScan = lastParentOfEachLevel.get(iParentLevel);
-					}
-					
-					List<Integer> subscans = subScanMap.get(parentScan);
-					if (subscans == null) {
-						logger.error ("Invalid! Precursor scan for scan " + i + " is " + parentScan + " and cannot be found in the map");
-					} else {
-						subScanMap.get(parentScan).add(i);
-					}
-					
-				}
-			}
+			return MzXmlIndexBuilder.getTree(file.getFileName()).getSubScanMap();
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		}
+		return new HashMap<>();
+	}
+
+	@Override
+	public Map<Integer, List<Integer>> readMSFileForSubscans(IMSFileSession session) {
+		try {
+			return getSession(session).getScanTree().getSubScanMap();
 		} catch (Exception e) {
 			logger.error(e.getMessage(), e);
 		}
-		return subScanMap;
+		return new HashMap<>();
 	}
 
 }
@@ -0,0 +1,573 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+import org.systemsbiology.jrap.grits.stax.Base64;
+import org.systemsbiology.jrap.grits.stax.Scan;
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Decodes a scan of an mzXML file directly from the bytes at its indexed offset, without the StAX parser of jrap.
+ *
+ * The file is kept open (or read from its {@link MzXmlMappedFile}) and the read, base64 and inflate buffers are reused
+ * from one scan to the next, only the resulting mass/intensity arrays are allocated for each scan. The result is the
+ * same as {@link org.systemsbiology.jrap.grits.stax.MSXMLParser#rap(int)}: same header attributes (missing numbers are -1, missing
+ * strings are empty), peaks read in network byte order as 32 bit floats or 64 bit doubles, zlib compressed or not.
+ * Whenever the scan does not look like what is expected, null is returned and the caller should use jrap instead.
+ *
+ * A decoder is not thread-safe.
+ */
+public class MzXmlScanDecoder implements Closeable {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MzXmlScanDecoder.class);
+
+	private static final int READ_SIZE = 64 * 1024;
+	private static final byte[] PEAKS_END = "</peaks>".getBytes(StandardCharsets.ISO_8859_1);
+
+	private static final String[] SCAN_ATTRIBUTES = { "num", "msLevel", "peaksCount", "polarity", "scanType", "centroided",
+			"deisotoped", "chargeDeconvoluted", "retentionTime", "startMz", "endMz", "lowMz", "highMz", "basePeakMz",
+			"basePeakIntensity", "totIonCurrent", "filterLine" };
+	private static final String[] PRECURSOR_ATTRIBUTES = { "precursorScanNum", "precursorCharge", "collisionEnergy",
+			"ionisationEnergy", "precursorIntensity", "activationMethod" };
+	private static final String[] PEAKS_ATTRIBUTES = { "precision", "byteOrder", "contentType", "compressionType", "compressedLen" };
+
+	private final String fileName;
+	private final MzXmlMappedFile mapped;
+	private RandomAccessFile in = null;
+	private byte[] buffer = new byte[READ_SIZE];
+	private int length = 0; // number of valid bytes in buffer
+	private byte[] decoded = new byte[0];
+	private byte[] inflated = new byte[0];
+	private final Inflater inflater = new Inflater();
+
+	// position of the parser in the buffer
+	private int pos = 0;
+	private boolean headerOnly = false; // parse stops before the peaks
+
+	/**
+	 * @param fileName path to the mzXML file
+	 */
+	public MzXmlScanDecoder(String fileName) {
+		this(fileName, null);
+	}
+
+	/**
+	 * @param fileName path to the mzXML file
+	 * @param mapped memory mapping of the file the scans are read from, null to read them with a {@link RandomAccessFile}
+	 */
+	public MzXmlScanDecoder(String fileName, MzXmlMappedFile mapped) {
+		this.fileName = fileName;
+		this.mapped = mapped;
+	}
+
+	/**
+	 * decodes the scan starting at the given offset
+	 *
+	 * @param lOffset offset of the &lt;scan&gt; element in the file
+	 * @return the scan (header and peaks) or null if the scan could not be decoded
+	 */
+	public Scan decode(long lOffset) {
+		try {
+			if( ! read(lOffset) ) {
+				return null;
+			}
+			return parse();
+		} catch (IOException e) {
+			logger.debug("Unable to decode scan at " + lOffset + " in " + fileName + ": " + e.getMessage());
+		} catch (RuntimeException e) {
+			logger.debug("Unable to decode scan at " + lOffset + " in " + fileName, e);
+		}
+		return null;
+	}
+
+	/**
+	 * reads the raw record of the scan starting at the given offset (the bytes up to the end of its peaks),
+	 * to be decoded later with {@link #decode(byte[])}
+	 *
+	 * @param lOffset offset of the &lt;scan&gt; element in the file
+	 * @return the record or null if it could not be read
+	 */
+	public byte[] readRecord(long lOffset) {
+		try {
+			if( read(lOffset) ) {
+				return Arrays.copyOf(buffer, length);
+			}
+		} catch (IOException e) {
+			logger.debug("Unable to read scan at " + lOffset + " in " + fileName + ": " + e.getMessage());
+		}
+		return null;
+	}
+
+	/**
+	 * decodes a record read with {@link #readRecord(long)}
+	 *
+	 * @param record the raw record
+	 * @return the scan (header and peaks) or null if the scan could not be decoded
+	 */
+	public Scan decode(byte[] record) {
+		byte[] ownBuffer = buffer;
+		buffer = record;
+		length = record.length;
+		try {
+			return parse();
+		} catch (RuntimeException e) {
+			logger.debug("Unable to decode scan record in " + fileName, e);
+		} finally {
+			buffer = ownBuffer;
+		}
+		return null;
+	}
+
+	/**
+	 * decodes only the header of a scan record. Unlike {@link #decode(byte[])}, the record does not need to contain
+	 * the peaks: the header is also returned for a scan without peaks or followed by its sub scans.
+	 *
+	 * @param record the raw record, starting with the &lt;scan&gt; element
+	 * @param iLength number of valid bytes in the record
+	 * @return the header or null if it could not be decoded
+	 */
+	public ScanHeader decodeHeader(byte[] record, int iLength) {
+		byte[] ownBuffer = buffer;
+		buffer = record;
+		length = iLength;
+		headerOnly = true;
+		try {
+			Scan scan = parse();
+			return scan != null ? scan.getHeader() : null;
+		} catch (RuntimeException e) {
+			logger.debug("Unable to decode scan header in " + fileName, e);
+		} finally {
+			buffer = ownBuffer;
+			headerOnly = false;
+		}
+		return null;
+	}
+
+	/**
+	 * reads the bytes from the offset up to the end of the first &lt;/peaks&gt; into the buffer
+	 */
+	private boolean read(long lOffset) throws IOException {
+		long lFileLength;
+		if( mapped != null ) {
+			lFileLength = mapped.length();
+		} else {
+			if( in == null ) {
+				in = new RandomAccessFile(new File(fileName), "r");
+			}
+			lFileLength = in.length();
+		}
+		if( lOffset < 0 || lOffset >= lFileLength ) {
+			return false;
+		}
+		if( mapped == null ) {
+			in.seek(lOffset);
+		}
+		length = 0;
+		int iSearchFrom = 0;
+		while( true ) {
+			if( length == buffer.length ) {
+				buffer = Arrays.copyOf(buffer, buffer.length * 2);
+			}
+			int iRead = mapped != null ? mapped.read(lOffset + length, buffer, length, buffer.length - length)
+					: in.read(buffer, length, buffer.length - length);
+			if( iRead <= 0 ) {
+				return false;
+			}
+			length += iRead;
+			int iEnd = indexOf(PEAKS_END, iSearchFrom, length);
+			if( iEnd != -1 ) {
+				length = iEnd + PEAKS_END.length;
+				return true;
+			}
+			iSearchFrom = Math.max(0, length - PEAKS_END.length + 1);
+		}
+	}
+
+	private int indexOf(byte[] pattern, int iFrom, int iTo) {
+		outer: for( int i = iFrom; i <= iTo - pattern.length; i++ ) {
+			for( int j = 0; j < pattern.length; j++ ) {
+				if( buffer[i + j] != pattern[j] ) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	private Scan parse() {
+		pos = 0;
+		skipWhitespace();
+		ScanHeader header = null;
+		int iPrecursorStart = -1;
+		while( pos < length ) {
+			if( buffer[pos] != '<' ) {
+				pos++; // text (only the text of precursorMz and peaks is used)
+				continue;
+			}
+			if( pos + 1 < length && buffer[pos + 1] == '/' ) {
+				int iEndTag = pos;
+				String sName = readName(pos + 2);
+				if( sName == null || (pos = indexOf('>', pos)) == -1 ) {
+					return null;
+				}
+				pos++;
+				if( "precursorMz".equals(sName) && header != null && iPrecursorStart != -1 ) {
+					String sMz = new String(buffer, iPrecursorStart, iEndTag - iPrecursorStart, StandardCharsets.ISO_8859_1);
+					header.setPrecursorMz(Float.parseFloat(sMz));
+					iPrecursorStart = -1;
+				} else if( "scan".equals(sName) ) {
+					return headerOnly ? toScan(header) : null; // scan without peaks
+				}
+				continue;
+			}
+			if( pos + 1 < length && (buffer[pos + 1] == '!' || buffer[pos + 1] == '?') ) {
+				return null;
+			}
+			String sName = readName(pos + 1);
+			if( sName == null ) {
+				return null;
+			}
+			if( "scan".equals(sName) ) {
+				if( header != null ) {
+					return headerOnly ? toScan(header) : null; // nested scan before the peaks
+				}
+				header = new ScanHeader();
+				if( ! readAttributes(header, sName) ) {
+					return null;
+				}
+			} else if( header == null ) {
+				return null; // the offset does not point to a scan
+			} else if( "precursorMz".equals(sName) ) {
+				boolean bEmpty = ! readAttributes(header, sName);
+				if( bEmpty ) {
+					return null;
+				}
+				iPrecursorStart = pos;
+			} else if( "peaks".equals(sName) ) {
+				if( headerOnly ) {
+					return toScan(header);
+				}
+				boolean bHasContent = readAttributes(header, sName);
+				int iStart = pos;
+				int iEnd = iStart;
+				if( bHasContent ) {
+					iEnd = indexOf(PEAKS_END, iStart, length);
+					if( iEnd == -1 ) {
+						return null;
+					}
+				} else if( pos >= length ) { // malformed tag
+					return null;
+				}
+				double[][] massIntensityList = decodePeaks(header, iStart, iEnd);
+				if( massIntensityList == null ) {
+					return null;
+				}
+				Scan scan = new Scan();
+				scan.setHeader(header);
+				scan.setMassIntensityList(massIntensityList);
+				return scan;
+			} else if( (pos = indexOf('>', pos)) == -1 ) { // other elements are skipped
+				return null;
+			} else {
+				pos++;
+			}
+		}
+		return headerOnly ? toScan(header) : null;
+	}
+
+	private Scan toScan(ScanHeader header) {
+		if( header == null ) {
+			return null;
+		}
+		Scan scan = new Scan();
+		scan.setHeader(header);
+		return scan;
+	}
+
+	private int indexOf(char c, int iFrom) {
+		for( int i = iFrom; i < length; i++ ) {
+			if( buffer[i] == c ) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void skipWhitespace() {
+		while( pos < length && isWhitespace(buffer[pos]) ) {
+			pos++;
+		}
+	}
+
+	private static boolean isWhitespace(byte b) {
+		return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+	}
+
+	/**
+	 * reads the element or attribute name starting at the given position, pos is moved after the name
+	 */
+	private String readName(int iFrom) {
+		int i = iFrom;
+		while( i < length && ! isWhitespace(buffer[i]) && buffer[i] != '>' && buffer[i] != '/' && buffer[i] != '=' ) {
+			i++;
+		}
+		if( i == iFrom || i == length ) {
+			return null;
+		}
+		pos = i;
+		String sName = new String(buffer, iFrom, i - iFrom, StandardCharsets.ISO_8859_1);
+		int iColon = sName.indexOf(':');
+		return iColon == -1 ? sName : sName.substring(iColon + 1);
+	}
+
+	/**
+	 * reads the attributes of the current start tag into the header (the same attributes as jrap),
+	 * pos is moved after the tag.
+	 *
+	 * @return true if the element has content, false if the tag is empty (or malformed)
+	 */
+	private boolean readAttributes(ScanHeader header, String sElement) {
+		setDefaults(header, sElement);
+		while( true ) {
+			skipWhitespace();
+			if( pos >= length ) {
+				return false;
+			}
+			if( buffer[pos] == '>' ) {
+				pos++;
+				return true;
+			}
+			if( buffer[pos] == '/' ) {
+				pos = indexOf('>', pos);
+				if( pos == -1 ) {
+					pos = length;
+					return false;
+				}
+				pos++;
+				return false;
+			}
+			String sName = readName(pos);
+			if( sName == null ) {
+				pos = length;
+				return false;
+			}
+			skipWhitespace();
+			if( pos >= length || buffer[pos] != '=' ) {
+				pos = length;
+				return false;
+			}
+			pos++;
+			skipWhitespace();
+			if( pos >= length || (buffer[pos] != '"' && buffer[pos] != '\'') ) {
+				pos = length;
+				return false;
+			}
+			byte bQuote = buffer[pos];
+			int iStart = pos + 1;
+			int iEnd = indexOf((char) bQuote, iStart);
+			if( iEnd == -1 ) {
+				pos = length;
+				return false;
+			}
+			pos = iEnd + 1;
+			String sValue = unescape(new String(buffer, iStart, iEnd - iStart, StandardCharsets.ISO_8859_1));
+			setAttribute(header, sElement, sName, sValue);
+		}
+	}
+
+	private static String unescape(String sValue) {
+		if( sValue.indexOf('&') == -1 && sValue.indexOf('\t') == -1 && sValue.indexOf('\n') == -1 && sValue.indexOf('\r') == -1 ) {
+			return sValue;
+		}
+		StringBuilder sb = new StringBuilder(sValue.length());
+		for( int i = 0; i < sValue.length(); i++ ) {
+			char c = sValue.charAt(i);
+			if( c == '\t' || c == '\n' || c == '\r' ) {
+				sb.append(' ');
+			} else if( c == '&' ) {
+				int iEnd = sValue.indexOf(';', i);
+				if( iEnd == -1 ) {
+					throw new IllegalArgumentException("Invalid entity in attribute value: " + sValue);
+				}
+				String sEntity = sValue.substring(i + 1, iEnd);
+				if( sEntity.equals("amp") ) {
+					sb.append('&');
+				} else if( sEntity.equals("lt") ) {
+					sb.append('<');
+				} else if( sEntity.equals("gt") ) {
+					sb.append('>');
+				} else if( sEntity.equals("quot") ) {
+					sb.append('"');
+				} else if( sEntity.equals("apos") ) {
+					sb.append('\'');
+				} else if( sEntity.startsWith("#x") ) {
+					sb.appendCodePoint(Integer.parseInt(sEntity.substring(2), 16));
+				} else if( sEntity.startsWith("#") ) {
+					sb.appendCodePoint(Integer.parseInt(sEntity.substring(1)));
+				} else {
+					throw new IllegalArgumentException("Unknown entity in attribute value: " + sValue);
+				}
+				i = iEnd;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int getIntValue(String sValue) {
+		try {
+			return Integer.parseInt(sValue);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static float getFloatValue(String sValue) {
+		try {
+			return Float.parseFloat(sValue);
+		} catch (NumberFormatException e) {
+			return -1f;
+		}
+	}
+
+	/**
+	 * jrap sets all the attributes it knows of an element, -1 or an empty string if they are missing
+	 */
+	private static void setDefaults(ScanHeader header, String sElement) {
+		String[] sNames = null;
+		if( sElement.equals("scan") ) {
+			sNames = SCAN_ATTRIBUTES;
+		} else if( sElement.equals("precursorMz") ) {
+			sNames = PRECURSOR_ATTRIBUTES;
+		} else if( sElement.equals("peaks") ) {
+			sNames = PEAKS_ATTRIBUTES;
+		}
+		if( sNames != null ) {
+			for( String sName : sNames ) {
+				setAttribute(header, sElement, sName, "");
+			}
+		}
+	}
+
+	private static void setAttribute(ScanHeader header, String sElement, String sName, String sValue) {
+		if( sElement.equals("scan") ) {
+			switch( sName ) {
+			case "num": header.setNum(getIntValue(sValue)); break;
+			case "msLevel": header.setMsLevel(getIntValue(sValue)); break;
+			case "peaksCount": header.setPeaksCount(getIntValue(sValue)); break;
+			case "polarity": header.setPolarity(sValue); break;
+			case "scanType": header.setScanType(sValue); break;
+			case "centroided": header.setCentroided(getIntValue(sValue)); break;
+			case "deisotoped": header.setDeisotoped(getIntValue(sValue)); break;
+			case "chargeDeconvoluted": header.setChargeDeconvoluted(getIntValue(sValue)); break;
+			case "retentionTime": header.setRetentionTime(sValue); break;
+			case "startMz": header.setStartMz(getFloatValue(sValue)); break;
+			case "endMz": header.setEndMz(getFloatValue(sValue)); break;
+			case "lowMz": header.setLowMz(getFloatValue(sValue)); break;
+			case "highMz": header.setHighMz(getFloatValue(sValue)); break;
+			case "basePeakMz": header.setBasePeakMz(getFloatValue(sValue)); break;
+			case "basePeakIntensity": header.setBasePeakIntensity(getFloatValue(sValue)); break;
+			case "totIonCurrent": header.setTotIonCurrent(getFloatValue(sValue)); break;
+			case "filterLine": header.setFilterLine(sValue); break;
+			}
+		} else if( sElement.equals("precursorMz") ) {
+			switch( sName ) {
+			case "precursorScanNum": header.setPrecursorScanNum(getIntValue(sValue)); break;
+			case "precursorCharge": header.setPrecursorCharge(getIntValue(sValue)); break;
+			case "collisionEnergy": header.setCollisionEnergy(getFloatValue(sValue)); break;
+			case "ionisationEnergy": header.setIonisationEnergy(getFloatValue(sValue)); break;
+			case "precursorIntensity": header.setPrecursorIntensity(getFloatValue(sValue)); break;
+			case "activationMethod": header.setActivationMethod(sValue); break;
+			}
+		} else if( sElement.equals("peaks") ) {
+			switch( sName ) {
+			case "precision": header.setPrecision(getIntValue(sValue)); break;
+			case "byteOrder": header.setByteOrder(sValue); break;
+			case "contentType": header.setContentType(sValue); break;
+			case "compressionType": header.setCompressionType(sValue); break;
+			case "compressedLen": header.setCompressedLen(getIntValue(sValue)); break;
+			}
+		}
+	}
+
+	/**
+	 * decodes the base64 text of the peaks element (buffer[iStart] .. buffer[iEnd - 1])
+	 *
+	 * @return m/z values ([0]) and intensities ([1]) or null if the peaks can't be decoded the same way as jrap
+	 */
+	private double[][] decodePeaks(ScanHeader header, int iStart, int iEnd) {
+		int iPrecision = header.getPrecision();
+		if( iPrecision != 32 && iPrecision != 64 ) {
+			return null;
+		}
+		int iValueSize = iPrecision / 8;
+		if( decoded.length < iEnd - iStart ) {
+			decoded = new byte[iEnd - iStart];
+		}
+		int iDecodedLen = Base64.decode(buffer, iStart, iEnd - iStart, decoded);
+		byte[] data = decoded;
+		int iDataLen = iDecodedLen;
+		if( "zlib".equals(header.getCompressionType()) ) {
+			int iPeaksCount = header.getPeaksCount();
+			if( iPeaksCount < 0 ) {
+				return null;
+			}
+			iDataLen = iPeaksCount * 2 * iValueSize;
+			if( inflated.length < iDataLen ) {
+				inflated = new byte[iDataLen];
+			}
+			inflater.reset();
+			inflater.setInput(decoded, 0, iDecodedLen);
+			try {
+				int iInflated = inflater.inflate(inflated, 0, iDataLen);
+				Arrays.fill(inflated, iInflated, iDataLen, (byte) 0); // jrap leaves missing bytes as 0
+			} catch (DataFormatException e) {
+				return null;
+			}
+			data = inflated;
+		}
+		if( iDataLen % (2 * iValueSize) != 0 ) {
+			return null;
+		}
+		int iNumPeaks = iDataLen / iValueSize / 2;
+		double[][] massIntensityList = new double[2][iNumPeaks];
+		ByteBuffer bytes = ByteBuffer.wrap(data, 0, iDataLen); // network byte order
+		for( int i = 0; i < iNumPeaks; i++ ) {
+			if( iPrecision == 32 ) {
+				massIntensityList[0][i] = bytes.getFloat();
+				massIntensityList[1][i] = bytes.getFloat();
+			} else {
+				massIntensityList[0][i] = bytes.getDouble();
+				massIntensityList[1][i] = bytes.getDouble();
+			}
+		}
+		return massIntensityList;
+	}
+
+	@Override
+	public void close() {
+		if( in != null ) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				logger.error(e.getMessage(), e);
+			}
+			in = null;
+		}
+		inflater.end();
+		buffer = new byte[0];
+		decoded = new byte[0];
+		inflated = new byte[0];
+	}
+}
@@ -0,0 +1,526 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.apache.log4j.Logger;
+import org.systemsbiology.jrap.grits.stax.Scan;
+
+/**
+ * Pipelined scan source with three stages:
+ * <ol>
+ * <li>an I/O task reads the raw records of the scans (bytes of the scan up to the end of its peaks) in
+ * ascending scan number order into a bounded queue</li>
+ * <li>up to {@link Settings#getNumWorkers()} tasks decode the records (base64, inflate, header attributes)</li>
+ * <li>the reader thread takes the decoded scans in order and attaches the precursors and sub scans as before</li>
+ * </ol>
+ * The tasks run on the executor of the {@link Settings}, which is shared by all the pipelines using them. They
+ * end whenever there is nothing to do: at most {@link Settings#getMaxScansInFlight()} scans are read ahead of the
+ * reader and the reading is only resumed when the reader takes scans, so a pipeline that is no longer used holds no
+ * thread. Queue depths and the throughput of each stage are available from {@link #getStatistics()} to tune the
+ * settings for the storage.
+ */
+public class MzXmlScanPipeline implements IMzXmlScanSource {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MzXmlScanPipeline.class);
+
+	private static final byte[] CACHED = new byte[0]; // marks records that are already in the spectrum cache
+
+	private final MzXmlFileSession session;
+	private final int[] scanNumbers;
+	private final BooleanSupplier canceled;
+	private final Statistics statistics = new Statistics();
+	private final ExecutorService executor;
+	private final int numWorkers;
+	private final ConcurrentLinkedQueue<Future<?>> tasks = new ConcurrentLinkedQueue<>(); // submitted, not known to be done
+
+	private final BlockingQueue<Integer> recordQueue; // positions of the records read
+	private final byte[][] records;
+	private final Scan[] results;
+	private final boolean[] ready;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition readyCondition = lock.newCondition();
+	private final Semaphore inFlight;
+	private int cursor = 0; // first position not taken by the reader
+	private volatile boolean closed = false;
+	private volatile boolean readerDone = false;
+	private volatile int produced = 0; // number of positions queued by the I/O task
+	private final AtomicBoolean reading = new AtomicBoolean(); // true while an I/O task is submitted or running
+	private final AtomicInteger decoding = new AtomicInteger(); // number of decoding tasks submitted or running
+	private long suspendedSince = 0; // when the I/O task last stopped for lack of room, only used by the I/O task
+
+	/**
+	 * settings of a pipeline
+	 */
+	public static class Settings {
+		private int numWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+		private int queueCapacity = 64;
+		private int maxScansInFlight = 256;
+		private ExecutorService executor = null;
+		private Consumer<Statistics> statisticsListener = null;
+
+		/**
+		 * @return maximum number of tasks decoding the scans at the same time
+		 */
+		public int getNumWorkers() {
+			return numWorkers;
+		}
+
+		public void setNumWorkers(int numWorkers) {
+			this.numWorkers = numWorkers;
+		}
+
+		/**
+		 * @return capacity of the queue between the I/O task and the decoding tasks
+		 */
+		public int getQueueCapacity() {
+			return queueCapacity;
+		}
+
+		public void setQueueCapacity(int queueCapacity) {
+			this.queueCapacity = queueCapacity;
+		}
+
+		/**
+		 * @return maximum number of scans read ahead of the reader (read, being decoded or decoded)
+		 */
+		public int getMaxScansInFlight() {
+			return maxScansInFlight;
+		}
+
+		public void setMaxScansInFlight(int maxScansInFlight) {
+			this.maxScansInFlight = maxScansInFlight;
+		}
+
+		/**
+		 * @return the executor running the reading and decoding tasks of all the pipelines using these settings.
+		 * A pool of daemon threads is created on first use if none was set.
+		 */
+		public synchronized ExecutorService getExecutor() {
+			if( executor == null ) {
+				AtomicInteger threadNumber = new AtomicInteger();
+				executor = Executors.newCachedThreadPool(r -> {
+					Thread thread = new Thread(r, "mzXML pipeline " + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+			}
+			return executor;
+		}
+
+		public synchronized void setExecutor(ExecutorService executor) {
+			this.executor = executor;
+		}
+
+		/**
+		 * @return called with the counters of each pipeline when it is created, null if none
+		 */
+		public Consumer<Statistics> getStatisticsListener() {
+			return statisticsListener;
+		}
+
+		/**
+		 * @param statisticsListener called with the counters of each pipeline when it is created. They are updated
+		 * while the pipeline runs.
+		 */
+		public void setStatisticsListener(Consumer<Statistics> statisticsListener) {
+			this.statisticsListener = statisticsListener;
+		}
+	}
+
+	/**
+	 * counters of a pipeline, updated while it runs. Times are in nanoseconds.
+	 */
+	public static class Statistics {
+		private final long startTime = System.nanoTime();
+		private final AtomicInteger queueDepth = new AtomicInteger();
+		private final AtomicInteger maxQueueDepth = new AtomicInteger();
+		private final AtomicInteger decodedDepth = new AtomicInteger();
+		private final AtomicLong recordsRead = new AtomicLong();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong readTime = new AtomicLong();
+		private final AtomicLong readBlockedTime = new AtomicLong();
+		private final AtomicLong scansDecoded = new AtomicLong();
+		private final AtomicLong decodeTime = new AtomicLong();
+		private final AtomicLong scansTaken = new AtomicLong();
+		private final AtomicLong takeWaitTime = new AtomicLong();
+
+		private void queued() {
+			int iDepth = queueDepth.incrementAndGet();
+			maxQueueDepth.accumulateAndGet(iDepth, Math::max);
+		}
+
+		/**
+		 * @return number of raw records waiting to be decoded
+		 */
+		public int getQueueDepth() {
+			return queueDepth.get();
+		}
+
+		public int getMaxQueueDepth() {
+			return maxQueueDepth.get();
+		}
+
+		/**
+		 * @return number of decoded scans waiting for the reader
+		 */
+		public int getDecodedDepth() {
+			return decodedDepth.get();
+		}
+
+		public long getRecordsRead() {
+			return recordsRead.get();
+		}
+
+		public long getBytesRead() {
+			return bytesRead.get();
+		}
+
+		/**
+		 * @return time spent by the I/O task reading
+		 */
+		public long getReadTime() {
+			return readTime.get();
+		}
+
+		/**
+		 * @return time the reading was suspended because the queue was full or too many scans were in flight
+		 */
+		public long getReadBlockedTime() {
+			return readBlockedTime.get();
+		}
+
+		public long getScansDecoded() {
+			return scansDecoded.get();
+		}
+
+		/**
+		 * @return time spent decoding, summed over all the decoding tasks
+		 */
+		public long getDecodeTime() {
+			return decodeTime.get();
+		}
+
+		public long getScansTaken() {
+			return scansTaken.get();
+		}
+
+		/**
+		 * @return time the reader waited for decoded scans
+		 */
+		public long getTakeWaitTime() {
+			return takeWaitTime.get();
+		}
+
+		/**
+		 * @return records read per second of I/O time
+		 */
+		public double getReadThroughput() {
+			return perSecond(recordsRead.get(), readTime.get());
+		}
+
+		/**
+		 * @return scans decoded per second of decoding time (per decoding task)
+		 */
+		public double getDecodeThroughput() {
+			return perSecond(scansDecoded.get(), decodeTime.get());
+		}
+
+		/**
+		 * @return scans taken by the reader per second since the pipeline started
+		 */
+		public double getThroughput() {
+			return perSecond(scansTaken.get(), System.nanoTime() - startTime);
+		}
+
+		private static double perSecond(long lCount, long lNanos) {
+			return lNanos <= 0 ? 0.0 : lCount * 1.0e9 / lNanos;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("read %d records (%d bytes, %.1f/s, blocked %d ms), decoded %d (%.1f/s per task), "
+					+ "taken %d (%.1f/s, waited %d ms), queue %d (max %d), decoded waiting %d",
+					getRecordsRead(), getBytesRead(), getReadThroughput(), TimeUnit.NANOSECONDS.toMillis(getReadBlockedTime()),
+					getScansDecoded(), getDecodeThroughput(), getScansTaken(), getThroughput(),
+					TimeUnit.NANOSECONDS.toMillis(getTakeWaitTime()), getQueueDepth(), getMaxQueueDepth(), getDecodedDepth());
+		}
+	}
+
+	/**
+	 * creates and starts the pipeline
+	 *
+	 * @param session the session of the file
+	 * @param iScanNumbers scan numbers that will be read
+	 * @param canceled tells if the reading was canceled
+	 * @param settings the settings of the pipeline
+	 */
+	public MzXmlScanPipeline(MzXmlFileSession session, int[] iScanNumbers, BooleanSupplier canceled, Settings settings) {
+		this.session = session;
+		int[] iSorted = iScanNumbers.clone();
+		Arrays.sort(iSorted);
+		int iNum = 0;
+		for( int i = 0; i < iSorted.length; i++ ) {
+			if( iNum == 0 || iSorted[i] != iSorted[iNum - 1] ) {
+				iSorted[iNum++] = iSorted[i];
+			}
+		}
+		this.scanNumbers = Arrays.copyOf(iSorted, iNum);
+		this.canceled = canceled;
+		this.records = new byte[iNum][];
+		this.results = new Scan[iNum];
+		this.ready = new boolean[iNum];
+		this.recordQueue = new ArrayBlockingQueue<>(Math.max(1, settings.getQueueCapacity()));
+		this.inFlight = new Semaphore(Math.max(1, settings.getMaxScansInFlight()));
+		session.getIndex(); // created before the tasks start
+		this.executor = settings.getExecutor();
+		this.numWorkers = Math.max(1, settings.getNumWorkers());
+		if( settings.getStatisticsListener() != null ) {
+			settings.getStatisticsListener().accept(statistics);
+		}
+		scheduleRead();
+	}
+
+	/**
+	 * @return the counters of the pipeline
+	 */
+	public Statistics getStatistics() {
+		return statistics;
+	}
+
+	private boolean isStopped() {
+		return closed || (canceled != null && canceled.getAsBoolean());
+	}
+
+	private void submit(Runnable task) {
+		tasks.removeIf(Future::isDone);
+		tasks.add(executor.submit(task));
+	}
+
+	/**
+	 * submits the I/O task unless it is running or the reading has ended
+	 */
+	private void scheduleRead() {
+		if( ! readerDone && ! isStopped() && reading.compareAndSet(false, true) ) {
+			try {
+				submit(this::readRecords);
+			} catch (RejectedExecutionException e) {
+				logger.error(e.getMessage(), e);
+				reading.set(false);
+				endReading();
+			}
+		}
+	}
+
+	/**
+	 * submits a decoding task unless {@link Settings#getNumWorkers()} of them are running
+	 */
+	private void scheduleDecode() {
+		int iRunning;
+		do {
+			iRunning = decoding.get();
+			if( iRunning >= numWorkers ) {
+				return;
+			}
+		} while( ! decoding.compareAndSet(iRunning, iRunning + 1) );
+		try {
+			submit(this::decodeRecords);
+		} catch (RejectedExecutionException e) {
+			logger.error(e.getMessage(), e);
+			decoding.decrementAndGet();
+		}
+	}
+
+	private void endReading() {
+		lock.lock();
+		try {
+			readerDone = true;
+			readyCondition.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * first stage: reads the raw records in order as long as the queue and the number of scans in flight allow
+	 */
+	private void readRecords() {
+		boolean bEnded = true;
+		MzXmlScanDecoder reader = session.getDecoder();
+		try {
+			if( suspendedSince != 0 ) {
+				statistics.readBlockedTime.addAndGet(System.nanoTime() - suspendedSince);
+				suspendedSince = 0;
+			}
+			for( int iPos = produced; iPos < scanNumbers.length && ! isStopped(); iPos++ ) {
+				// only this task adds to the queue, its remaining capacity can't decrease meanwhile
+				if( recordQueue.remainingCapacity() == 0 || ! inFlight.tryAcquire() ) {
+					suspendedSince = System.nanoTime();
+					bEnded = false;
+					break;
+				}
+				long lRead = System.nanoTime();
+				byte[] record = null;
+				if( session.getCachedScan(scanNumbers[iPos]) != null ) {
+					record = CACHED;
+				} else {
+					long lOffset = session.getOffset(scanNumbers[iPos]);
+					if( lOffset != -1 ) {
+						record = reader.readRecord(lOffset);
+					}
+					if( record != null ) {
+						statistics.bytesRead.addAndGet(record.length);
+					}
+				}
+				statistics.readTime.addAndGet(System.nanoTime() - lRead);
+				statistics.recordsRead.incrementAndGet();
+				records[iPos] = record;
+				statistics.queued();
+				recordQueue.add(iPos);
+				produced = iPos + 1;
+				scheduleDecode();
+			}
+		} catch (Exception e) {
+			logger.error(e.getMessage(), e);
+		} finally {
+			session.releaseDecoder(reader);
+			if( bEnded ) {
+				endReading();
+			}
+			reading.set(false);
+		}
+		// the reader or a decoding task may have made room while this task was ending
+		if( ! bEnded && recordQueue.remainingCapacity() > 0 && inFlight.availablePermits() > 0 ) {
+			scheduleRead();
+		}
+	}
+
+	/**
+	 * second stage: decodes the records until the queue is empty
+	 */
+	private void decodeRecords() {
+		try {
+			Integer iPos;
+			while( ! isStopped() && (iPos = recordQueue.poll()) != null ) {
+				statistics.queueDepth.decrementAndGet();
+				scheduleRead(); // there is room in the queue
+				long lStart = System.nanoTime();
+				byte[] record = records[iPos];
+				records[iPos] = null;
+				Scan scan;
+				try {
+					scan = record == CACHED ? session.rap(scanNumbers[iPos]) : session.decodeRecord(scanNumbers[iPos], record);
+				} catch (Exception e) {
+					logger.error(e.getMessage(), e);
+					scan = null;
+				}
+				statistics.decodeTime.addAndGet(System.nanoTime() - lStart);
+				statistics.scansDecoded.incrementAndGet();
+				lock.lock();
+				try {
+					if( iPos >= cursor ) { // otherwise the reader skipped it
+						results[iPos] = scan;
+						statistics.decodedDepth.incrementAndGet();
+					}
+					ready[iPos] = true;
+					readyCondition.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		} finally {
+			decoding.decrementAndGet();
+		}
+		// the I/O task may have queued a record while this task was ending
+		if( ! isStopped() && ! recordQueue.isEmpty() ) {
+			scheduleDecode();
+		}
+	}
+
+	/**
+	 * third stage: the reader takes the scans in order
+	 */
+	@Override
+	public Scan get(int iScanNumber) {
+		int iPos = Arrays.binarySearch(scanNumbers, iScanNumber);
+		if( iPos < 0 || closed ) {
+			return session.rap(iScanNumber);
+		}
+		Scan scan = null;
+		boolean bReady = false;
+		long lStart = System.nanoTime();
+		lock.lock();
+		try {
+			if( iPos < cursor ) { // already taken (or skipped)
+				return session.rap(iScanNumber);
+			}
+			// the scans skipped by the reader are no longer needed
+			for( int i = cursor; i < iPos; i++ ) {
+				if( ready[i] && results[i] != null ) {
+					statistics.decodedDepth.decrementAndGet();
+				}
+				results[i] = null;
+			}
+			inFlight.release(iPos - cursor);
+			cursor = iPos;
+			scheduleRead(); // there may be room for more scans in flight
+			// stops waiting if the reading ended before the scan was read
+			while( ! ready[iPos] && ! isStopped() && ! (readerDone && iPos >= produced) ) {
+				readyCondition.await(100, TimeUnit.MILLISECONDS);
+			}
+			bReady = ready[iPos];
+			if( bReady && results[iPos] != null ) {
+				scan = results[iPos];
+				results[iPos] = null;
+				statistics.decodedDepth.decrementAndGet();
+			}
+			inFlight.release();
+			cursor = iPos + 1;
+			scheduleRead();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+		statistics.takeWaitTime.addAndGet(System.nanoTime() - lStart);
+		statistics.scansTaken.incrementAndGet();
+		if( scan == null ) { // not read (canceled) or not readable
+			return bReady ? null : session.rap(iScanNumber);
+		}
+		return scan;
+	}
+
+	@Override
+	public void close() {
+		if( closed ) {
+			return;
+		}
+		closed = true;
+		Future<?> task;
+		while( (task = tasks.poll()) != null ) {
+			task.cancel(true);
+		}
+		lock.lock();
+		try {
+			Arrays.fill(results, null);
+		} finally {
+			lock.unlock();
+		}
+		logger.debug("Pipeline closed: " + statistics);
+	}
+}
@@ -0,0 +1,77 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.util.Arrays;
+import java.util.function.BooleanSupplier;
+
+import org.systemsbiology.jrap.grits.stax.Scan;
+
+/**
+ * Reads ahead the scans a reader is going to process. The scans are decoded in parallel by windows of
+ * {@link #WINDOW_SIZE} scans (see {@link MzXmlFileSession#rap(int[], BooleanSupplier)}) while the reader
+ * keeps processing them one after another in scan order, so the parent/child structure and the precursor peaks
+ * are built exactly as before.
+ *
+ * Only the current window is kept in memory. Scans that are not in the list given to the prefetcher are read
+ * directly from the session.
+ */
+class MzXmlScanPrefetcher implements IMzXmlScanSource {
+	static final int WINDOW_SIZE = 256;
+
+	private final MzXmlFileSession session;
+	private final int[] scanNumbers;
+	private final BooleanSupplier canceled;
+	private final boolean parallel;
+	private int windowStart = 0;
+	private Scan[] window = new Scan[0];
+	private boolean[] taken = new boolean[0];
+
+	/**
+	 * @param session the session of the file
+	 * @param iScanNumbers scan numbers that will be read
+	 * @param canceled tells if the reading was canceled
+	 * @param parallel false to read every scan on the calling thread
+	 */
+	MzXmlScanPrefetcher(MzXmlFileSession session, int[] iScanNumbers, BooleanSupplier canceled, boolean parallel) {
+		this.session = session;
+		int[] iSorted = iScanNumbers.clone();
+		Arrays.sort(iSorted);
+		int iNum = 0;
+		for( int i = 0; i < iSorted.length; i++ ) {
+			if( iNum == 0 || iSorted[i] != iSorted[iNum - 1] ) {
+				iSorted[iNum++] = iSorted[i];
+			}
+		}
+		this.scanNumbers = Arrays.copyOf(iSorted, iNum);
+		this.canceled = canceled;
+		this.parallel = parallel;
+	}
+
+	@Override
+	public Scan get(int iScanNumber) {
+		int iPos = parallel ? Arrays.binarySearch(scanNumbers, iScanNumber) : -1;
+		if( iPos < 0 ) {
+			return session.rap(iScanNumber);
+		}
+		int iInx = iPos - windowStart;
+		if( iInx < 0 || iInx >= window.length || taken[iInx] ) {
+			int iEnd = Math.min(iPos + WINDOW_SIZE, scanNumbers.length);
+			windowStart = iPos;
+			window = session.rap(Arrays.copyOfRange(scanNumbers, iPos, iEnd), canceled);
+			taken = new boolean[window.length];
+			iInx = 0;
+		}
+		Scan scan = window[iInx];
+		window[iInx] = null; // the reader keeps what it needs
+		taken[iInx] = true;
+		if( scan == null && canceled != null && canceled.getAsBoolean() ) {
+			return session.rap(iScanNumber); // not read because of the cancellation
+		}
+		return scan;
+	}
+
+	@Override
+	public void close() {
+		window = new Scan[0];
+		taken = new boolean[0];
+	}
+}
@@ -0,0 +1,404 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+import org.grits.toolbox.ms.file.MSFile;
+import org.grits.toolbox.ms.file.scan.data.ScanView;
+import org.grits.toolbox.ms.om.data.Peak;
+import org.grits.toolbox.ms.om.data.Scan;
+import org.grits.toolbox.widgets.tools.NotifyingProcess;
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Follows an mzXML file that is still being written (e.g. during the acquisition) and reads the scans as they are
+ * appended to the file. A scan is read once its peaks are complete, the file does not need an index.
+ *
+ * The scans are given to the listeners in file order, as {@link Scan} (with its peaks) and {@link ScanView}. Parents
+ * and precursors are found as in {@link MzXmlReader#readMSFile(MSFile)}: the state (last parent scan of each MS level,
+ * possible precursor MS levels) is kept from one increment to the next. A parent scan is given to the listeners before
+ * its sub scans, the sub scans (and the precursor peaks) are added to it while they are read.
+ *
+ * The file is read by {@link #poll()}, or by {@link #follow(long)} which polls until the end of the run
+ * (&lt;/msRun&gt;), an error or the cancellation.
+ */
+public class MzXmlTailReader extends NotifyingProcess {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(MzXmlTailReader.class);
+
+	private static final int READ_SIZE = 1 << 20;
+	private static final int MAX_PARENT_SCANS = 1000; // scans kept as possible parents of the next scans
+	private static final byte[] SCAN_START = "<scan".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] PEAKS_END = "</peaks>".getBytes(StandardCharsets.ISO_8859_1);
+	private static final byte[] MSRUN_END = "</msRun>".getBytes(StandardCharsets.ISO_8859_1);
+
+	/**
+	 * gets the scans read from the file
+	 */
+	public interface IScanListener {
+		/**
+		 * a new scan was read
+		 *
+		 * @param scan the scan with its peaks
+		 * @param scanView the view of the scan
+		 */
+		void scanAdded(Scan scan, ScanView scanView);
+
+		/**
+		 * the end of the run was reached, no more scans will be read
+		 */
+		void runFinished();
+	}
+
+	private final MSFile file;
+	private final MzXmlReader converter = new MzXmlReader(); // creates the scans from the jrap scans
+	private PrecursorPeakFinder precursorPeaks = converter.newPrecursorPeakFinder();
+	private final List<IScanListener> scanListeners = new ArrayList<>();
+	private MzXmlScanDecoder decoder = null;
+	private RandomAccessFile in = null;
+	private byte[] buffer = new byte[READ_SIZE];
+	private long position = 0; // offset of the first byte that has not been read completely
+	private boolean finished = false;
+	private int numScans = 0;
+
+	// state of the parent/precursor lookup, kept between increments
+	private final HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
+	private final Map<Integer, Scan> msScanMap = new LinkedHashMap<Integer, Scan>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, Scan> eldest) {
+			return size() > MAX_PARENT_SCANS;
+		}
+	};
+	private final Map<Integer, ScanView> msScanViewMap = new LinkedHashMap<Integer, ScanView>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, ScanView> eldest) {
+			return size() > MAX_PARENT_SCANS;
+		}
+	};
+	private int iLastPossiblePrecursorMSLevel = -1;
+	private int iMinMSLevel = -1;
+	private Scan firstParentScan = null;
+	private ScanView firstParentScanView = null;
+	private double dMinMz = Double.MAX_VALUE;
+	private double dMaxMz = Double.MIN_VALUE;
+
+	/**
+	 * @param file the mzXML file, read from its beginning
+	 */
+	public MzXmlTailReader(MSFile file) {
+		this.file = file;
+	}
+
+	public void addScanListener(IScanListener listener) {
+		scanListeners.add(listener);
+	}
+
+	public void removeScanListener(IScanListener listener) {
+		scanListeners.remove(listener);
+	}
+
+	/**
+	 * @see MzXmlReader#setPrecursorTolerance(double, boolean)
+	 */
+	public void setPrecursorTolerance(double precursorTolerance, boolean precursorTolerancePpm) {
+		converter.setPrecursorTolerance(precursorTolerance, precursorTolerancePpm);
+		precursorPeaks = converter.newPrecursorPeakFinder();
+	}
+
+	/**
+	 * @return true if the end of the run was reached
+	 */
+	public boolean isFinished() {
+		return finished;
+	}
+
+	/**
+	 * @return number of scans read so far
+	 */
+	public int getNumScans() {
+		return numScans;
+	}
+
+	/**
+	 * reads the scans appended to the file since the last call
+	 *
+	 * @return number of new scans, -1 if the file can't be read (anymore)
+	 */
+	public int poll() {
+		if( finished ) {
+			return 0;
+		}
+		int iNumScans = numScans;
+		try {
+			if( in == null ) {
+				in = new RandomAccessFile(new File(file.getFileName()), "r");
+				decoder = new MzXmlScanDecoder(new File(file.getFileName()).getAbsolutePath());
+			}
+			while( ! finished && ! isCanceled() ) {
+				long lLength = in.length();
+				if( lLength < position ) {
+					throw new IOException(file.getFileName() + " was truncated while reading it");
+				}
+				if( lLength == position ) {
+					break;
+				}
+				int iLength = (int) Math.min(buffer.length, lLength - position);
+				in.seek(position);
+				in.readFully(buffer, 0, iLength);
+				int iConsumed = readScans(iLength);
+				position += iConsumed;
+				if( iConsumed == 0 ) {
+					if( iLength < buffer.length ) {
+						break; // the next scan is not complete yet
+					}
+					buffer = Arrays.copyOf(buffer, buffer.length * 2); // scan larger than the buffer
+				}
+			}
+		} catch (IOException e) {
+			logger.error(e.getMessage(), e);
+			updateErrorListener("Unable to read " + file.getFileName(), e);
+			close();
+			return -1;
+		}
+		if( finished ) {
+			close();
+			for( IScanListener listener : scanListeners ) {
+				listener.runFinished();
+			}
+		}
+		return numScans - iNumScans;
+	}
+
+	/**
+	 * polls the file until the end of the run is reached, the reading is canceled or fails
+	 *
+	 * @param lPollInterval time in milliseconds to wait before reading the file again when there are no new scans
+	 * @return true if the end of the run was reached
+	 */
+	public boolean follow(long lPollInterval) {
+		while( ! isCanceled() ) {
+			int iNew = poll();
+			if( iNew == -1 ) {
+				return false;
+			}
+			if( finished ) {
+				return true;
+			}
+			if( iNew == 0 ) {
+				try {
+					Thread.sleep(lPollInterval);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					setCanceled(true);
+				}
+			}
+		}
+		close();
+		return false;
+	}
+
+	/**
+	 * releases the file, a later {@link #poll()} opens it again and continues where the reading stopped
+	 */
+	public void close() {
+		if( decoder != null ) {
+			decoder.close();
+			decoder = null;
+		}
+		if( in != null ) {
+			try {
+				in.close();
+			} catch (IOException e) {
+				logger.error(e.getMessage(), e);
+			}
+			in = null;
+		}
+	}
+
+	/**
+	 * reads the complete scans at the beginning of the buffer
+	 *
+	 * @return number of bytes of the buffer that don't have to be read again
+	 */
+	private int readScans(int iLength) {
+		int iPos = 0;
+		int iRunEnd = indexOf(MSRUN_END, 0, iLength);
+		while( ! isCanceled() ) {
+			int iScan = indexOfScan(iPos, iLength);
+			if( iRunEnd != -1 && (iScan == -1 || iRunEnd < iScan) ) {
+				finished = true;
+				return iRunEnd + MSRUN_END.length;
+			}
+			if( iScan == -1 ) { // only keep what may be the beginning of the next element
+				return Math.max(iPos, iLength - MSRUN_END.length);
+			}
+			int iPeaksEnd = indexOf(PEAKS_END, iScan, iLength);
+			int iNextScan = indexOfScan(iScan + SCAN_START.length, iLength);
+			int iEnd = min(min(iPeaksEnd, iNextScan), iRunEnd);
+			if( iEnd == -1 ) {
+				return iScan; // wait for the rest of the scan
+			}
+			if( iEnd == iPeaksEnd ) {
+				iEnd += PEAKS_END.length;
+				org.systemsbiology.jrap.grits.stax.Scan jrapScan = decoder.decode(Arrays.copyOfRange(buffer, iScan, iEnd));
+				if( jrapScan != null ) {
+					addScan(jrapScan.getHeader(), jrapScan);
+				} else {
+					logger.debug("Unable to read the scan at " + (position + iScan) + " in " + file.getFileName());
+				}
+			} else { // scan without peaks or followed by its sub scans
+				ScanHeader header = decoder.decodeHeader(Arrays.copyOfRange(buffer, iScan, iEnd), iEnd - iScan);
+				if( header != null ) {
+					addScan(header, null);
+				}
+			}
+			iPos = iEnd;
+		}
+		return iPos;
+	}
+
+	private static int min(int i1, int i2) {
+		if( i1 == -1 ) {
+			return i2;
+		}
+		return i2 == -1 ? i1 : Math.min(i1, i2);
+	}
+
+	private int indexOfScan(int iFrom, int iTo) {
+		int i = iFrom;
+		while( (i = indexOf(SCAN_START, i, iTo)) != -1 ) {
+			int iNext = i + SCAN_START.length;
+			if( iNext >= iTo ) {
+				return -1; // not known yet if this is a scan
+			}
+			byte b = buffer[iNext];
+			if( b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '>' ) {
+				return i;
+			}
+			i = iNext;
+		}
+		return -1;
+	}
+
+	private int indexOf(byte[] pattern, int iFrom, int iTo) {
+		outer: for( int i = iFrom; i <= iTo - pattern.length; i++ ) {
+			for( int j = 0; j < pattern.length; j++ ) {
+				if( buffer[i + j] != pattern[j] ) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * creates the scan and its view (same rules as the reader for the whole file) and gives them to the listeners
+	 */
+	private void addScan(ScanHeader jrapScanHeader, org.systemsbiology.jrap.grits.stax.Scan jrapScan) {
+		try {
+			int iCurMSLevel = jrapScanHeader.getMsLevel();
+			if( iLastPossiblePrecursorMSLevel == -1 ) { // first scan
+				iLastPossiblePrecursorMSLevel = iCurMSLevel; // can't assume we have MS1 scans
+				iMinMSLevel = iCurMSLevel;
+				if( iLastPossiblePrecursorMSLevel > 1 ) { // no parent scan. Create one so everything jives
+					firstParentScan = new Scan();
+					firstParentScan.setScanNo(0);
+					firstParentScan.setMsLevel(1);
+					firstParentScan.setPolarity(null);
+					firstParentScan.setRetentionTime(0.0);
+					firstParentScanView = new ScanView();
+					firstParentScanView.setScanNo(0);
+					firstParentScanView.setMsLevel(1);
+					firstParentScanView.setRetentionTime(0.0);
+					msScanMap.put(0, firstParentScan);
+					msScanViewMap.put(0, firstParentScanView);
+					iLastPossiblePrecursorMSLevel = 1;
+					lastParentOfEachLevel.put(1, 0);
+					fireScanAdded(firstParentScan, firstParentScanView);
+				}
+			}
+			if( iLastPossiblePrecursorMSLevel < iCurMSLevel - 1 ) {
+				iLastPossiblePrecursorMSLevel = iCurMSLevel - 1;
+			} else if( iLastPossiblePrecursorMSLevel == iCurMSLevel && iCurMSLevel - 1 >= iMinMSLevel ) {
+				iLastPossiblePrecursorMSLevel = iCurMSLevel - 1;
+			}
+			int precursorScanNum = -1;
+			if( jrapScanHeader.getPrecursorScanNum() != -1 ) {
+				precursorScanNum = jrapScanHeader.getPrecursorScanNum();
+			} else if( iCurMSLevel > iLastPossiblePrecursorMSLevel && lastParentOfEachLevel.containsKey(iCurMSLevel - 1) ) { // has precursor
+				precursorScanNum = lastParentOfEachLevel.get(iCurMSLevel - 1);
+			}
+
+			Scan msScan = jrapScan != null ? converter.getScan(jrapScan, precursorScanNum) : converter.getScan(jrapScanHeader, precursorScanNum);
+			ScanView msScanView = converter.getScanView(jrapScanHeader, precursorScanNum);
+			int iScanNumber = msScan.getScanNo();
+			Scan parentScan = null;
+			ScanView parentScanView = null;
+			int iParentScanNum = msScan.getParentScan();
+			if( iParentScanNum != -1 ) {
+				parentScan = msScanMap.get(iParentScanNum);
+				parentScanView = msScanViewMap.get(iParentScanNum);
+				if( parentScan == null && firstParentScan != null ) {
+					parentScan = firstParentScan;
+					parentScanView = firstParentScanView;
+					iLastPossiblePrecursorMSLevel = firstParentScan.getMsLevel();
+				}
+			}
+			lastParentOfEachLevel.put(iCurMSLevel, iScanNumber);
+			msScanMap.put(iScanNumber, msScan);
+			msScanViewMap.put(iScanNumber, msScanView);
+
+			if( msScan.getMsLevel() > iLastPossiblePrecursorMSLevel && parentScan != null ) { // precursor peak is built on fly
+				Peak peak = converter.getPrecursorPeak(parentScan, jrapScanHeader, precursorPeaks);
+				msScan.setPrecursor(peak);
+				parentScan.getSubScans().add(iScanNumber);
+				if( parentScanView != null ) {
+					parentScanView.getSubScans().add(msScanView);
+				}
+				if( firstParentScan != null ) {
+					dMinMz = Math.min(dMinMz, peak.getMz());
+					dMaxMz = Math.max(dMaxMz, peak.getMz());
+					firstParentScan.setScanStart(dMinMz);
+					firstParentScan.setScanEnd(dMaxMz);
+					if( firstParentScan.getPolarity() == null && msScan.getPolarity() != null ) {
+						firstParentScan.setPolarity(msScan.getPolarity());
+					}
+				}
+			}
+			if( jrapScan != null ) {
+				converter.setPeakList(jrapScan.getMassIntensityList(), msScan, true);
+			}
+			if( iCurMSLevel < iMinMSLevel ) {
+				iMinMSLevel = iCurMSLevel;
+			}
+			numScans++;
+			if( (numScans % 10) == 0 ) {
+				updateListeners("Reading XML file. Scan: " + iScanNumber, numScans);
+			}
+			fireScanAdded(msScan, msScanView);
+		} catch( Exception ex ) {
+			logger.error(ex.getMessage(), ex);
+			updateErrorListener("Error parsing scan number: " + jrapScanHeader.getNum(), ex);
+		}
+	}
+
+	private void fireScanAdded(Scan scan, ScanView scanView) {
+		for( IScanListener listener : scanListeners ) {
+			listener.scanAdded(scan, scanView);
+		}
+	}
+}
@@ -0,0 +1,211 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.grits.toolbox.ms.om.data.Peak;
+
+/**
+ * Map from precursor m/z values to the peak of the phony MS1 scan in the TIM and direct infusion modes. Precursor m/z
+ * values within the tolerance of each other are one cluster (with one peak): a value belongs to the cluster whose
+ * first m/z is the closest one within the tolerance, or starts a new cluster. With a tolerance of 0 only equal
+ * values are one cluster, as with a map with Double keys.
+ *
+ * The m/z values are kept in primitive arrays, the clusters are found with a hash table of m/z buckets as wide as
+ * the tolerance (in ln(m/z) for a ppm tolerance), so a value is compared with the clusters of 2 or 3 buckets only.
+ */
+class PrecursorClusterMap {
+	private static final long INVALID_BUCKET = Long.MIN_VALUE; // m/z values that can't be bucketed, compared exactly
+
+	private final double tolerance;
+	private final boolean ppm;
+	private final double bucketWidth;
+
+	// clusters, in the order they were created
+	private double[] mzs = new double[64];
+	private Peak[] peaks = new Peak[64];
+	private int[] next = new int[64]; // next cluster of the same bucket, -1 for none
+	private int size = 0;
+
+	// open addressing hash table: bucket -> first cluster of the bucket
+	private long[] buckets = new long[128];
+	private int[] heads = new int[128];
+	private int numBuckets = 0;
+
+	/**
+	 * @param tolerance maximum distance (exclusive) of the values of a cluster to its first value, 0 for equal values only
+	 * @param ppm true if the tolerance is in ppm, false if in Da
+	 */
+	PrecursorClusterMap(double tolerance, boolean ppm) {
+		this.tolerance = tolerance > 0.0 ? tolerance : 0.0;
+		this.ppm = ppm;
+		this.bucketWidth = this.tolerance == 0.0 ? 0.0 : (ppm ? Math.log1p(this.tolerance / 1000000.0) : this.tolerance);
+		Arrays.fill(heads, -1);
+	}
+
+	/**
+	 * @param dMz precursor m/z
+	 * @return the peak of the cluster of the m/z, null if it has none
+	 */
+	Peak get(double dMz) {
+		int iCluster = find(dMz);
+		return iCluster == -1 ? null : peaks[iCluster];
+	}
+
+	/**
+	 * sets the peak of the cluster of the m/z, a new cluster is created if it has none
+	 *
+	 * @param dMz precursor m/z
+	 * @param peak the peak
+	 */
+	void put(double dMz, Peak peak) {
+		int iCluster = find(dMz);
+		if( iCluster == -1 ) {
+			iCluster = addCluster(dMz);
+		}
+		peaks[iCluster] = peak;
+	}
+
+	/**
+	 * sets the peak of the cluster of the m/z only if the m/z has no cluster yet, the peak of an existing cluster is kept
+	 *
+	 * @param dMz precursor m/z
+	 * @param peak the peak
+	 * @return the peak of the existing cluster, null if a new cluster was created
+	 */
+	Peak putIfAbsent(double dMz, Peak peak) {
+		int iCluster = find(dMz);
+		if( iCluster != -1 ) {
+			return peaks[iCluster];
+		}
+		iCluster = addCluster(dMz);
+		peaks[iCluster] = peak;
+		return null;
+	}
+
+	/**
+	 * @return number of clusters
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the peaks of the clusters, by m/z of the clusters
+	 */
+	List<Peak> values() {
+		Integer[] iOrder = new Integer[size];
+		for( int i = 0; i < size; i++ ) {
+			iOrder[i] = i;
+		}
+		Arrays.sort(iOrder, (i1, i2) -> Double.compare(mzs[i1], mzs[i2])); // stable
+		List<Peak> lPeaks = new ArrayList<>(size);
+		for( Integer i : iOrder ) {
+			lPeaks.add(peaks[i]);
+		}
+		return lPeaks;
+	}
+
+	private long getBucket(double dMz) {
+		if( tolerance == 0.0 ) {
+			return Double.doubleToLongBits(dMz);
+		}
+		if( Double.isNaN(dMz) || Double.isInfinite(dMz) || (ppm && dMz <= 0.0) ) {
+			return INVALID_BUCKET;
+		}
+		long lBucket = (long) Math.floor((ppm ? Math.log(dMz) : dMz) / bucketWidth);
+		return lBucket == INVALID_BUCKET ? INVALID_BUCKET + 1 : lBucket;
+	}
+
+	private int find(double dMz) {
+		long lBucket = getBucket(dMz);
+		if( tolerance == 0.0 || lBucket == INVALID_BUCKET ) {
+			for( int i = getHead(lBucket); i != -1; i = next[i] ) {
+				if( Double.doubleToLongBits(mzs[i]) == Double.doubleToLongBits(dMz) ) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		double dTolerance = ppm ? dMz * tolerance / 1000000.0 : tolerance;
+		long lFirst = getBucket(ppm ? Math.max(dMz - dTolerance, Double.MIN_VALUE) : dMz - dTolerance);
+		long lLast = getBucket(dMz + dTolerance);
+		if( lFirst == INVALID_BUCKET || lFirst > lBucket ) {
+			lFirst = lBucket;
+		}
+		if( lLast == INVALID_BUCKET || lLast < lBucket ) {
+			lLast = lBucket;
+		}
+		int iBest = -1;
+		double dMinDelta = Double.MAX_VALUE;
+		for( long lCur = lFirst; lCur <= lLast && lCur >= lFirst; lCur++ ) {
+			for( int i = getHead(lCur); i != -1; i = next[i] ) {
+				double dDelta = Math.abs(mzs[i] - dMz);
+				if( dDelta < dTolerance && (dDelta < dMinDelta || (dDelta == dMinDelta && i < iBest)) ) {
+					dMinDelta = dDelta;
+					iBest = i;
+				}
+			}
+		}
+		return iBest;
+	}
+
+	private int addCluster(double dMz) {
+		if( size == mzs.length ) {
+			mzs = Arrays.copyOf(mzs, size * 2);
+			peaks = Arrays.copyOf(peaks, size * 2);
+			next = Arrays.copyOf(next, size * 2);
+		}
+		long lBucket = getBucket(dMz);
+		int iSlot = getSlot(lBucket);
+		if( heads[iSlot] == -1 ) {
+			if( (numBuckets + 1) * 2 > buckets.length ) {
+				rehash();
+				iSlot = getSlot(lBucket);
+			}
+			buckets[iSlot] = lBucket;
+			numBuckets++;
+		}
+		mzs[size] = dMz;
+		next[size] = heads[iSlot];
+		heads[iSlot] = size;
+		return size++;
+	}
+
+	private int getHead(long lBucket) {
+		return heads[getSlot(lBucket)];
+	}
+
+	/**
+	 * @return the slot of the bucket in the hash table, or the empty slot where it would be added
+	 */
+	private int getSlot(long lBucket) {
+		int iMask = buckets.length - 1;
+		int iSlot = hash(lBucket) & iMask;
+		while( heads[iSlot] != -1 && buckets[iSlot] != lBucket ) {
+			iSlot = (iSlot + 1) & iMask;
+		}
+		return iSlot;
+	}
+
+	private static int hash(long lBucket) {
+		long h = lBucket * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private void rehash() {
+		long[] oldBuckets = buckets;
+		int[] oldHeads = heads;
+		buckets = new long[oldBuckets.length * 2];
+		heads = new int[oldHeads.length * 2];
+		Arrays.fill(heads, -1);
+		for( int i = 0; i < oldBuckets.length; i++ ) {
+			if( oldHeads[i] != -1 ) {
+				int iSlot = getSlot(oldBuckets[i]);
+				buckets[iSlot] = oldBuckets[i];
+				heads[iSlot] = oldHeads[i];
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package org.grits.toolbox.ms.file.reader.impl;
+
+import java.util.List;
+
+import org.grits.toolbox.ms.file.scan.data.PeakMzIndex;
+import org.grits.toolbox.ms.om.data.Peak;
+
+/**
+ * Finds the peak of a parent scan matching the precursor m/z of a scan. The m/z index of a parent peak list
+ * ({@link PeakMzIndex}) is built when a precursor is first looked up in it and kept while the parent is among
+ * the most recently used ones.
+ *
+ * A finder belongs to one read (it is not thread-safe), the indexes are released with it.
+ */
+class PrecursorPeakFinder {
+	private static final int CACHE_SIZE = 8;
+
+	private final double tolerance;
+	private final boolean ppm;
+	private final PeakMzIndex[] indexes = new PeakMzIndex[CACHE_SIZE]; // most recently used first
+
+	/**
+	 * @param tolerance the distance of the peak to the precursor m/z must be less than the tolerance
+	 * @param ppm true if the tolerance is in ppm, false if in Da
+	 */
+	PrecursorPeakFinder(double tolerance, boolean ppm) {
+		this.tolerance = tolerance;
+		this.ppm = ppm;
+	}
+
+	/**
+	 * @param peaks peak list of the parent scan
+	 * @param dPrecursorMz precursor m/z
+	 * @return the closest peak within the tolerance (the first of the list if more than one), null if there is none
+	 */
+	Peak find(List<Peak> peaks, double dPrecursorMz) {
+		double dTolerance = ppm ? dPrecursorMz * tolerance / 1000000.0 : tolerance;
+		return getIndex(peaks).findClosest(dPrecursorMz, dTolerance);
+	}
+
+	/**
+	 * adds a peak to the end of the peak list of a parent scan
+	 *
+	 * @param peaks peak list of the parent scan
+	 * @param peak the new peak
+	 */
+	void add(List<Peak> peaks, Peak peak) {
+		getIndex(peaks).add(peak);
+	}
+
+	private PeakMzIndex getIndex(List<Peak> peaks) {
+		int iFound = CACHE_SIZE - 1;
+		for( int i = 0; i < CACHE_SIZE; i++ ) {
+			if( indexes[i] != null && indexes[i].getPeaks() == peaks ) {
+				iFound = i;
+				break;
+			}
+		}
+		PeakMzIndex index = indexes[iFound];
+		if( index == null || index.getPeaks() != peaks || ! index.isCurrent() ) {
+			index = new PeakMzIndex(peaks);
+		}
+		System.arraycopy(indexes, 0, indexes, 1, iFound);
+		indexes[0] = index;
+		return index;
+	}
+}
@@ -0,0 +1,287 @@
+package org.grits.toolbox.ms.file.scan.cache;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.systemsbiology.jrap.grits.stax.Scan;
+
+/**
+ * Process-wide cache of decoded spectra, shared by all the readers.
+ *
+ * Spectra are identified by the file (path, size and modification time, so a modified file never returns stale
+ * spectra) and the scan number. The cache is bounded by a byte budget: when it is exceeded the least recently used
+ * spectra are evicted. The cache is split into stripes, each with its own lock and share of the budget, so
+ * concurrent readers do not serialize on a single lock.
+ */
+public class SpectrumCache {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(SpectrumCache.class);
+
+	private static final int NUM_STRIPES = 16;
+	private static final long ENTRY_OVERHEAD = 256; // header, arrays and map entry
+
+	private static final SpectrumCache instance = new SpectrumCache(getDefaultMaxBytes());
+
+	private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+	private volatile long maxBytes;
+	private final AtomicLong hitCount = new AtomicLong();
+	private final AtomicLong missCount = new AtomicLong();
+	private final AtomicLong evictionCount = new AtomicLong();
+
+	/**
+	 * identity of an MS file: absolute path, size and modification time
+	 */
+	public static final class FileKey {
+		private final String path;
+		private final long length;
+		private final long lastModified;
+
+		public FileKey(String path, long length, long lastModified) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+		}
+
+		/**
+		 * @param fileName path to the MS file
+		 * @return the identity of the file in its current state
+		 */
+		public static FileKey forFile(String fileName) {
+			File file = new File(fileName);
+			return new FileKey(file.getAbsolutePath(), file.length(), file.lastModified());
+		}
+
+		@Override
+		public int hashCode() {
+			return path.hashCode() * 31 + Long.hashCode(length ^ lastModified);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if( ! (obj instanceof FileKey) ) {
+				return false;
+			}
+			FileKey other = (FileKey) obj;
+			return length == other.length && lastModified == other.lastModified && path.equals(other.path);
+		}
+	}
+
+	private static final class Key {
+		private final FileKey file;
+		private final int scanNumber;
+
+		private Key(FileKey file, int scanNumber) {
+			this.file = file;
+			this.scanNumber = scanNumber;
+		}
+
+		@Override
+		public int hashCode() {
+			return file.hashCode() * 31 + scanNumber;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if( ! (obj instanceof Key) ) {
+				return false;
+			}
+			Key other = (Key) obj;
+			return scanNumber == other.scanNumber && file.equals(other.file);
+		}
+	}
+
+	private static final class Entry {
+		private final Scan scan;
+		private final long size;
+
+		private Entry(Scan scan, long size) {
+			this.scan = scan;
+			this.size = size;
+		}
+	}
+
+	private static final class Stripe {
+		private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+		private long bytes = 0;
+	}
+
+	/**
+	 * @param maxBytes byte budget of the cache
+	 */
+	public SpectrumCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for( int i = 0; i < NUM_STRIPES; i++ ) {
+			stripes[i] = new Stripe();
+		}
+	}
+
+	/**
+	 * @return the cache shared by all readers
+	 */
+	public static SpectrumCache getInstance() {
+		return instance;
+	}
+
+	private static long getDefaultMaxBytes() {
+		return Math.min(256L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 8);
+	}
+
+	private Stripe getStripe(Key key) {
+		int iHash = key.hashCode();
+		iHash ^= (iHash >>> 16);
+		return stripes[(iHash & 0x7fffffff) % NUM_STRIPES];
+	}
+
+	/**
+	 * @param file the MS file
+	 * @param iScanNumber scan number
+	 * @return the cached spectrum or null if not in the cache
+	 */
+	public Scan get(FileKey file, int iScanNumber) {
+		Key key = new Key(file, iScanNumber);
+		Stripe stripe = getStripe(key);
+		Entry entry;
+		synchronized (stripe) {
+			entry = stripe.entries.get(key);
+		}
+		if( entry == null ) {
+			missCount.incrementAndGet();
+			return null;
+		}
+		hitCount.incrementAndGet();
+		return entry.scan;
+	}
+
+	/**
+	 * adds the spectrum to the cache, evicting the least recently used spectra if the budget is exceeded.
+	 * Spectra larger than the share of the budget of a stripe are not cached.
+	 *
+	 * @param file the MS file
+	 * @param iScanNumber scan number
+	 * @param scan the decoded spectrum
+	 */
+	public void put(FileKey file, int iScanNumber, Scan scan) {
+		long lSize = estimateSize(scan);
+		long lStripeBudget = maxBytes / NUM_STRIPES;
+		if( lSize > lStripeBudget ) {
+			return;
+		}
+		Key key = new Key(file, iScanNumber);
+		Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			Entry previous = stripe.entries.put(key, new Entry(scan, lSize));
+			if( previous != null ) {
+				stripe.bytes -= previous.size;
+			}
+			stripe.bytes += lSize;
+			evict(stripe, lStripeBudget);
+		}
+	}
+
+	private void evict(Stripe stripe, long lStripeBudget) {
+		Iterator<Map.Entry<Key, Entry>> itr = stripe.entries.entrySet().iterator();
+		while( stripe.bytes > lStripeBudget && itr.hasNext() ) {
+			Entry eldest = itr.next().getValue();
+			itr.remove();
+			stripe.bytes -= eldest.size;
+			evictionCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @param scan decoded spectrum
+	 * @return approximate size of the spectrum in memory
+	 */
+	public static long estimateSize(Scan scan) {
+		long lSize = ENTRY_OVERHEAD;
+		double[][] massIntensityList = scan.getMassIntensityList();
+		if( massIntensityList != null ) {
+			for( double[] values : massIntensityList ) {
+				if( values != null ) {
+					lSize += 16 + 8L * values.length;
+				}
+			}
+		}
+		if( scan.getDoubleMassList() != null ) {
+			lSize += 16 + 8L * scan.getDoubleMassList().length;
+		}
+		if( scan.getDoubleIntensityList() != null ) {
+			lSize += 16 + 8L * scan.getDoubleIntensityList().length;
+		}
+		return lSize;
+	}
+
+	/**
+	 * changes the byte budget of the cache, spectra are evicted if needed
+	 *
+	 * @param maxBytes the byte budget
+	 */
+	public void setMaxBytes(long maxBytes) {
+		this.maxBytes = maxBytes;
+		long lStripeBudget = maxBytes / NUM_STRIPES;
+		for( Stripe stripe : stripes ) {
+			synchronized (stripe) {
+				evict(stripe, lStripeBudget);
+			}
+		}
+		logger.debug("Spectrum cache budget set to " + maxBytes + " bytes");
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return approximate size of all cached spectra
+	 */
+	public long getSizeInBytes() {
+		long lBytes = 0;
+		for( Stripe stripe : stripes ) {
+			synchronized (stripe) {
+				lBytes += stripe.bytes;
+			}
+		}
+		return lBytes;
+	}
+
+	/**
+	 * @return number of cached spectra
+	 */
+	public int size() {
+		int iSize = 0;
+		for( Stripe stripe : stripes ) {
+			synchronized (stripe) {
+				iSize += stripe.entries.size();
+			}
+		}
+		return iSize;
+	}
+
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+	public long getMissCount() {
+		return missCount.get();
+	}
+
+	public long getEvictionCount() {
+		return evictionCount.get();
+	}
+
+	/**
+	 * removes all spectra from the cache (the counters are kept)
+	 */
+	public void clear() {
+		for( Stripe stripe : stripes ) {
+			synchronized (stripe) {
+				stripe.entries.clear();
+				stripe.bytes = 0;
+			}
+		}
+	}
+}
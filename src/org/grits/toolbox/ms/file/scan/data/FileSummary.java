@@ -0,0 +1,231 @@
+package org.grits.toolbox.ms.file.scan.data;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summary of an MS file computed from a single header-only pass over all the scans.
+ * Answers the typical questions asked when a file is opened (number of scans per MS level,
+ * first/last scans, ranges, ...) without reading the file again.
+ */
+public class FileSummary {
+	private int numScans = 0;
+	private int maxScanNumber = -1;
+	private int firstScanNumber = -1;
+	private int lastScanNumber = -1;
+	private int firstMS1ScanNumber = -1;
+	private int minMSLevel = -1;
+	private int maxMSLevel = -1;
+	private Map<Integer, Integer> scanCountByMSLevel = new TreeMap<>();
+	private Double minRetentionTime = null;
+	private Double maxRetentionTime = null;
+	private Double minMz = null;
+	private Double maxMz = null;
+	private int numPositiveScans = 0;
+	private int numNegativeScans = 0;
+	private int numUnknownPolarityScans = 0;
+	private int numCentroidedScans = 0;
+	private int numProfileScans = 0;
+
+	/**
+	 * @return number of scans in the file
+	 */
+	public int getNumScans() {
+		return numScans;
+	}
+
+	public void setNumScans(int numScans) {
+		this.numScans = numScans;
+	}
+
+	/**
+	 * @return the last scan number as reported by the index of the file
+	 */
+	public int getMaxScanNumber() {
+		return maxScanNumber;
+	}
+
+	public void setMaxScanNumber(int maxScanNumber) {
+		this.maxScanNumber = maxScanNumber;
+	}
+
+	/**
+	 * @return the lowest scan number, -1 if there are no scans
+	 */
+	public int getFirstScanNumber() {
+		return firstScanNumber;
+	}
+
+	public void setFirstScanNumber(int firstScanNumber) {
+		this.firstScanNumber = firstScanNumber;
+	}
+
+	/**
+	 * @return the highest scan number, -1 if there are no scans
+	 */
+	public int getLastScanNumber() {
+		return lastScanNumber;
+	}
+
+	public void setLastScanNumber(int lastScanNumber) {
+		this.lastScanNumber = lastScanNumber;
+	}
+
+	/**
+	 * @return the first MS1 scan with a non-empty peak list, -1 if there is none
+	 */
+	public int getFirstMS1ScanNumber() {
+		return firstMS1ScanNumber;
+	}
+
+	public void setFirstMS1ScanNumber(int firstMS1ScanNumber) {
+		this.firstMS1ScanNumber = firstMS1ScanNumber;
+	}
+
+	/**
+	 * @return true if the file has an MS1 scan with a non-empty peak list
+	 */
+	public boolean hasMS1Scan() {
+		return firstMS1ScanNumber != -1;
+	}
+
+	/**
+	 * @return the minimum MS level, -1 if there are no scans
+	 */
+	public int getMinMSLevel() {
+		return minMSLevel;
+	}
+
+	public void setMinMSLevel(int minMSLevel) {
+		this.minMSLevel = minMSLevel;
+	}
+
+	/**
+	 * @return the maximum MS level, -1 if there are no scans
+	 */
+	public int getMaxMSLevel() {
+		return maxMSLevel;
+	}
+
+	public void setMaxMSLevel(int maxMSLevel) {
+		this.maxMSLevel = maxMSLevel;
+	}
+
+	/**
+	 * @return number of scans for each MS level (sorted by MS level)
+	 */
+	public Map<Integer, Integer> getScanCountByMSLevel() {
+		return scanCountByMSLevel;
+	}
+
+	public void setScanCountByMSLevel(Map<Integer, Integer> scanCountByMSLevel) {
+		this.scanCountByMSLevel = scanCountByMSLevel;
+	}
+
+	/**
+	 * @param iMSLevel MS level
+	 * @return number of scans with the given MS level
+	 */
+	public int getScanCount(int iMSLevel) {
+		Integer iCount = scanCountByMSLevel.get(iMSLevel);
+		return iCount == null ? 0 : iCount;
+	}
+
+	/**
+	 * @return the lowest retention time, null if no scan has a retention time
+	 */
+	public Double getMinRetentionTime() {
+		return minRetentionTime;
+	}
+
+	public void setMinRetentionTime(Double minRetentionTime) {
+		this.minRetentionTime = minRetentionTime;
+	}
+
+	/**
+	 * @return the highest retention time, null if no scan has a retention time
+	 */
+	public Double getMaxRetentionTime() {
+		return maxRetentionTime;
+	}
+
+	public void setMaxRetentionTime(Double maxRetentionTime) {
+		this.maxRetentionTime = maxRetentionTime;
+	}
+
+	/**
+	 * @return the lowest m/z of all scans, null if not available
+	 */
+	public Double getMinMz() {
+		return minMz;
+	}
+
+	public void setMinMz(Double minMz) {
+		this.minMz = minMz;
+	}
+
+	/**
+	 * @return the highest m/z of all scans, null if not available
+	 */
+	public Double getMaxMz() {
+		return maxMz;
+	}
+
+	public void setMaxMz(Double maxMz) {
+		this.maxMz = maxMz;
+	}
+
+	public int getNumPositiveScans() {
+		return numPositiveScans;
+	}
+
+	public void setNumPositiveScans(int numPositiveScans) {
+		this.numPositiveScans = numPositiveScans;
+	}
+
+	public int getNumNegativeScans() {
+		return numNegativeScans;
+	}
+
+	public void setNumNegativeScans(int numNegativeScans) {
+		this.numNegativeScans = numNegativeScans;
+	}
+
+	public int getNumUnknownPolarityScans() {
+		return numUnknownPolarityScans;
+	}
+
+	public void setNumUnknownPolarityScans(int numUnknownPolarityScans) {
+		this.numUnknownPolarityScans = numUnknownPolarityScans;
+	}
+
+	/**
+	 * @return true if the file has both positive and negative scans
+	 */
+	public boolean isMixedPolarity() {
+		return numPositiveScans > 0 && numNegativeScans > 0;
+	}
+
+	public int getNumCentroidedScans() {
+		return numCentroidedScans;
+	}
+
+	public void setNumCentroidedScans(int numCentroidedScans) {
+		this.numCentroidedScans = numCentroidedScans;
+	}
+
+	public int getNumProfileScans() {
+		return numProfileScans;
+	}
+
+	public void setNumProfileScans(int numProfileScans) {
+		this.numProfileScans = numProfileScans;
+	}
+
+	/**
+	 * @return true if the file has both centroided and profile scans
+	 */
+	public boolean isMixedCentroided() {
+		return numCentroidedScans > 0 && numProfileScans > 0;
+	}
+}
@@ -0,0 +1,349 @@
+package org.grits.toolbox.ms.file.scan.data;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.grits.toolbox.ms.om.data.Peak;
+
+/**
+ * Compact representation of the peaks of a spectrum as parallel primitive arrays (m/z and intensity,
+ * sorted by m/z). {@link Peak} objects are only created for the points that are actually accessed.
+ *
+ * The arrays are not copied, a PeakArray must be treated as read-only.
+ */
+public class PeakArray {
+	private final double[] mzs;
+	private final double[] intensities;
+	private final int[] ids; // id of each point (position in the original spectrum + 1), null if i + 1
+
+	/**
+	 * @param mzs m/z values (ascending)
+	 * @param intensities intensity values
+	 */
+	public PeakArray(double[] mzs, double[] intensities) {
+		this(mzs, intensities, null);
+	}
+
+	private PeakArray(double[] mzs, double[] intensities, int[] ids) {
+		this.mzs = mzs;
+		this.intensities = intensities;
+		this.ids = ids;
+	}
+
+	/**
+	 * creates the peak array for a jrap mass/intensity list. If the m/z values are not sorted, the points are
+	 * copied and sorted (the ids of the points still refer to their position in the list).
+	 *
+	 * @param massIntensityList m/z values ([0]) and intensities ([1]) as returned by jrap
+	 * @return the peak array (empty if the list is null)
+	 */
+	public static PeakArray fromMassIntensityList(double[][] massIntensityList) {
+		if( massIntensityList == null || massIntensityList.length < 2 ) {
+			return new PeakArray(new double[0], new double[0]);
+		}
+		double[] mzs = massIntensityList[0];
+		double[] intensities = massIntensityList[1];
+		for( int i = 1; i < mzs.length; i++ ) {
+			if( mzs[i] < mzs[i - 1] ) {
+				return sorted(mzs, intensities);
+			}
+		}
+		return new PeakArray(mzs, intensities);
+	}
+
+	private static PeakArray sorted(double[] mzs, double[] intensities) {
+		Integer[] iOrder = new Integer[mzs.length];
+		for( int i = 0; i < iOrder.length; i++ ) {
+			iOrder[i] = i;
+		}
+		Arrays.sort(iOrder, (i1, i2) -> Double.compare(mzs[i1], mzs[i2]));
+		double[] sortedMzs = new double[mzs.length];
+		double[] sortedIntensities = new double[mzs.length];
+		int[] ids = new int[mzs.length];
+		for( int i = 0; i < iOrder.length; i++ ) {
+			sortedMzs[i] = mzs[iOrder[i]];
+			sortedIntensities[i] = intensities[iOrder[i]];
+			ids[i] = iOrder[i] + 1;
+		}
+		return new PeakArray(sortedMzs, sortedIntensities, ids);
+	}
+
+	/**
+	 * @return number of points (including points with intensity <= 0)
+	 */
+	public int size() {
+		return mzs.length;
+	}
+
+	public double getMz(int i) {
+		return mzs[i];
+	}
+
+	public double getIntensity(int i) {
+		return intensities[i];
+	}
+
+	/**
+	 * @param i position in the array
+	 * @return id of the point (its position in the original spectrum + 1)
+	 */
+	public int getId(int i) {
+		return ids == null ? i + 1 : ids[i];
+	}
+
+	/**
+	 * @return number of points with intensity > 0
+	 */
+	public int getNumPeaks() {
+		int iNum = 0;
+		for( int i = 0; i < intensities.length; i++ ) {
+			if( intensities[i] > 0.0 ) {
+				iNum++;
+			}
+		}
+		return iNum;
+	}
+
+	/**
+	 * @return highest intensity, Double.MIN_VALUE if empty
+	 */
+	public double getMaxIntensity() {
+		double dMaxInt = Double.MIN_VALUE;
+		for( int i = 0; i < intensities.length; i++ ) {
+			if( intensities[i] > dMaxInt ) {
+				dMaxInt = intensities[i];
+			}
+		}
+		return dMaxInt;
+	}
+
+	/**
+	 * @return sum of the intensities of the points with intensity > 0
+	 */
+	public double getTotalIntensity() {
+		double dTotalIntensity = 0.0;
+		for( int i = 0; i < intensities.length; i++ ) {
+			if( intensities[i] > 0.0 ) {
+				dTotalIntensity += intensities[i];
+			}
+		}
+		return dTotalIntensity;
+	}
+
+	/**
+	 * @return lowest m/z of the points with intensity > 0, Double.MAX_VALUE if there are none
+	 */
+	public double getLowMz() {
+		for( int i = 0; i < mzs.length; i++ ) {
+			if( intensities[i] > 0.0 ) {
+				return mzs[i];
+			}
+		}
+		return Double.MAX_VALUE;
+	}
+
+	/**
+	 * @return highest m/z of the points with intensity > 0, Double.MIN_VALUE if there are none
+	 */
+	public double getHighMz() {
+		for( int i = mzs.length - 1; i >= 0; i-- ) {
+			if( intensities[i] > 0.0 ) {
+				return mzs[i];
+			}
+		}
+		return Double.MIN_VALUE;
+	}
+
+	/**
+	 * finds the point closest to the given m/z (binary search)
+	 *
+	 * @param dMz m/z value
+	 * @param dTolerance maximum distance in Da
+	 * @return position of the closest point with intensity > 0 within the tolerance, -1 if there is none
+	 */
+	public int findClosest(double dMz, double dTolerance) {
+		int iInx = Arrays.binarySearch(mzs, dMz);
+		if( iInx < 0 ) {
+			iInx = -iInx - 1;
+		}
+		int iBest = -1;
+		double dBestDelta = Double.MAX_VALUE;
+		for( int i = iInx; i < mzs.length && mzs[i] - dMz <= dTolerance; i++ ) {
+			if( intensities[i] > 0.0 ) {
+				iBest = i;
+				dBestDelta = mzs[i] - dMz;
+				break; // m/z ascending, the following points are further away
+			}
+		}
+		for( int i = iInx - 1; i >= 0 && dMz - mzs[i] <= dTolerance; i-- ) {
+			if( intensities[i] > 0.0 ) {
+				if( dMz - mzs[i] <= dBestDelta ) {
+					iBest = i;
+				}
+				break;
+			}
+		}
+		return iBest;
+	}
+
+	/**
+	 * creates the peak object for a point
+	 *
+	 * @param i position in the array
+	 * @param dMostAbundant intensity of the most abundant peak, used for the relative intensity
+	 * @return the new peak
+	 */
+	public Peak getPeak(int i, double dMostAbundant) {
+		Peak peak = new Peak();
+		peak.setId(getId(i));
+		peak.setMz(mzs[i]);
+		peak.setIntensity(intensities[i]);
+		peak.setRelativeIntensity(intensities[i] / dMostAbundant);
+		return peak;
+	}
+
+	/**
+	 * @param dMostAbundant intensity of the most abundant peak, used for the relative intensity
+	 * @return list with a new peak object for each point with intensity > 0
+	 */
+	public List<Peak> toPeakList(double dMostAbundant) {
+		List<Peak> lPeaks = new ArrayList<>(getNumPeaks());
+		for( int i = 0; i < mzs.length; i++ ) {
+			if( intensities[i] > 0.0 ) {
+				lPeaks.add(getPeak(i, dMostAbundant));
+			}
+		}
+		return lPeaks;
+	}
+
+	/**
+	 * returns a list view of the points with intensity > 0. The peak objects are created the first time
+	 * they are accessed. Peaks can be appended to the list (e.g. precursor peaks) without creating the other peak
+	 * objects, the list is fully materialized on the first other modification.
+	 *
+	 * @param dMostAbundant intensity of the most abundant peak, used for the relative intensity
+	 * @return list of the peaks
+	 */
+	public List<Peak> asPeakList(double dMostAbundant) {
+		return new LazyPeakList(this, dMostAbundant);
+	}
+
+	/**
+	 * @param lPeaks a peak list
+	 * @return the m/z of each peak if the list was returned by {@link #asPeakList(double)} and not modified since
+	 * other than by appending peaks (without creating the peak objects, NaN for appended peaks without m/z),
+	 * null otherwise
+	 */
+	static double[] getPeakListMzs(List<Peak> lPeaks) {
+		if( ! (lPeaks instanceof LazyPeakList) ) {
+			return null;
+		}
+		return ((LazyPeakList) lPeaks).getMzs();
+	}
+
+	private static class LazyPeakList extends AbstractList<Peak> {
+		private final PeakArray peakArray;
+		private final double mostAbundant;
+		private int[] positions; // positions of the points with intensity > 0, null if all of them
+		private Peak[] peaks;
+		private List<Peak> appended = null; // peaks added after the points of the array
+		private List<Peak> materialized = null;
+
+		private LazyPeakList(PeakArray peakArray, double dMostAbundant) {
+			this.peakArray = peakArray;
+			this.mostAbundant = dMostAbundant;
+			int iNum = peakArray.getNumPeaks();
+			if( iNum != peakArray.size() ) {
+				positions = new int[iNum];
+				int iPos = 0;
+				for( int i = 0; i < peakArray.size(); i++ ) {
+					if( peakArray.getIntensity(i) > 0.0 ) {
+						positions[iPos++] = i;
+					}
+				}
+			}
+			peaks = new Peak[iNum];
+		}
+
+		@Override
+		public Peak get(int index) {
+			if( materialized != null ) {
+				return materialized.get(index);
+			}
+			if( index >= peaks.length && appended != null ) {
+				return appended.get(index - peaks.length);
+			}
+			Peak peak = peaks[index];
+			if( peak == null ) {
+				peak = peakArray.getPeak(positions == null ? index : positions[index], mostAbundant);
+				peaks[index] = peak;
+			}
+			return peak;
+		}
+
+		private double[] getMzs() {
+			if( materialized != null ) {
+				return null;
+			}
+			double[] mzs = new double[size()];
+			for( int i = 0; i < peaks.length; i++ ) {
+				mzs[i] = peakArray.getMz(positions == null ? i : positions[i]);
+			}
+			for( int i = peaks.length; i < mzs.length; i++ ) {
+				Peak peak = appended.get(i - peaks.length);
+				mzs[i] = peak != null && peak.getMz() != null ? peak.getMz() : Double.NaN;
+			}
+			return mzs;
+		}
+
+		@Override
+		public int size() {
+			if( materialized != null ) {
+				return materialized.size();
+			}
+			return appended == null ? peaks.length : peaks.length + appended.size();
+		}
+
+		private List<Peak> materialize() {
+			if( materialized == null ) {
+				List<Peak> lPeaks = new ArrayList<>(size() + 8);
+				for( int i = 0; i < peaks.length; i++ ) {
+					lPeaks.add(get(i));
+				}
+				if( appended != null ) {
+					lPeaks.addAll(appended);
+				}
+				materialized = lPeaks;
+				peaks = null;
+				appended = null;
+			}
+			return materialized;
+		}
+
+		@Override
+		public Peak set(int index, Peak element) {
+			return materialize().set(index, element);
+		}
+
+		@Override
+		public void add(int index, Peak element) {
+			modCount++;
+			if( materialized == null && index == size() ) {
+				if( appended == null ) {
+					appended = new ArrayList<>();
+				}
+				appended.add(element);
+			} else {
+				materialize().add(index, element);
+			}
+		}
+
+		@Override
+		public Peak remove(int index) {
+			modCount++;
+			return materialize().remove(index);
+		}
+	}
+}
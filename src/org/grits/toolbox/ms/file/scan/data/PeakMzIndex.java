@@ -0,0 +1,165 @@
+package org.grits.toolbox.ms.file.scan.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.grits.toolbox.ms.om.data.Peak;
+
+/**
+ * m/z-sorted index of a peak list, used to find the peak of a parent scan matching a precursor m/z with a binary
+ * search instead of a pass over the whole list.
+ *
+ * The index is built from the list when it is created and has to be used to add peaks to the list afterwards
+ * ({@link #add(Peak)}), so that it stays up to date. {@link #isCurrent()} is false if the list was changed otherwise.
+ * Peaks without m/z are not indexed.
+ */
+public class PeakMzIndex {
+	private final List<Peak> peaks;
+	private double[] mzs; // sorted m/z values
+	private int[] positions; // position in the list of each sorted m/z value
+	private int size = 0; // number of indexed values
+	private int listSize; // size of the list when it was last indexed
+
+	/**
+	 * @param peaks the peak list to index
+	 */
+	public PeakMzIndex(List<Peak> peaks) {
+		this.peaks = peaks;
+		this.listSize = peaks.size();
+		double[] listMzs = PeakArray.getPeakListMzs(peaks);
+		if( listMzs == null ) {
+			listMzs = new double[listSize];
+			for( int i = 0; i < listSize; i++ ) {
+				Peak peak = peaks.get(i);
+				listMzs[i] = peak != null && peak.getMz() != null ? peak.getMz() : Double.NaN;
+			}
+		}
+		mzs = new double[listSize + 8];
+		positions = new int[mzs.length];
+		boolean bSorted = true;
+		for( int i = 0; i < listSize; i++ ) {
+			if( Double.isNaN(listMzs[i]) ) {
+				continue;
+			}
+			if( size > 0 && listMzs[i] < mzs[size - 1] ) {
+				bSorted = false;
+			}
+			mzs[size] = listMzs[i];
+			positions[size] = i;
+			size++;
+		}
+		if( ! bSorted ) {
+			sort();
+		}
+	}
+
+	private void sort() {
+		Integer[] iOrder = new Integer[size];
+		for( int i = 0; i < size; i++ ) {
+			iOrder[i] = i;
+		}
+		double[] unsortedMzs = mzs;
+		Arrays.sort(iOrder, (i1, i2) -> Double.compare(unsortedMzs[i1], unsortedMzs[i2])); // stable
+		double[] sortedMzs = new double[mzs.length];
+		int[] sortedPositions = new int[mzs.length];
+		for( int i = 0; i < size; i++ ) {
+			sortedMzs[i] = mzs[iOrder[i]];
+			sortedPositions[i] = positions[iOrder[i]];
+		}
+		mzs = sortedMzs;
+		positions = sortedPositions;
+	}
+
+	/**
+	 * @return the indexed peak list
+	 */
+	public List<Peak> getPeaks() {
+		return peaks;
+	}
+
+	/**
+	 * @return false if the list was changed without {@link #add(Peak)} since the index was built
+	 */
+	public boolean isCurrent() {
+		return peaks.size() == listSize;
+	}
+
+	/**
+	 * finds the peak closest to the given m/z, same as a pass over the list keeping the first peak with the
+	 * smallest distance below the tolerance
+	 *
+	 * @param dMz m/z value
+	 * @param dTolerance the distance of the peak must be less than the tolerance (in Da)
+	 * @return the closest peak or null if there is none within the tolerance
+	 */
+	public Peak findClosest(double dMz, double dTolerance) {
+		int iBest = -1;
+		double dMinDelta = Double.MAX_VALUE;
+		for( int i = lowerBound(dMz, dTolerance); i < size; i++ ) {
+			double dDelta = Math.abs(mzs[i] - dMz);
+			if( dDelta >= dTolerance ) {
+				if( mzs[i] > dMz ) {
+					break; // the following peaks are further away
+				}
+				continue;
+			}
+			// a peak below and a peak above the m/z may have the same distance, keep the first of the list
+			if( dDelta < dMinDelta || (dDelta == dMinDelta && positions[i] < positions[iBest]) ) {
+				dMinDelta = dDelta;
+				iBest = i;
+			}
+		}
+		return iBest == -1 ? null : peaks.get(positions[iBest]);
+	}
+
+	/**
+	 * @return the first sorted position of a value that is above the m/z or within the tolerance of it
+	 */
+	private int lowerBound(double dMz, double dTolerance) {
+		int iLow = 0;
+		int iHigh = size;
+		while( iLow < iHigh ) {
+			int iMid = (iLow + iHigh) >>> 1;
+			if( mzs[iMid] > dMz || Math.abs(mzs[iMid] - dMz) < dTolerance ) {
+				iHigh = iMid;
+			} else {
+				iLow = iMid + 1;
+			}
+		}
+		return iLow;
+	}
+
+	/**
+	 * adds a peak to the end of the list and to the index
+	 *
+	 * @param peak the new peak
+	 */
+	public void add(Peak peak) {
+		peaks.add(peak);
+		int iPosition = listSize++;
+		if( peak == null || peak.getMz() == null || Double.isNaN(peak.getMz()) ) {
+			return;
+		}
+		double dMz = peak.getMz();
+		// after the equal values, they are all before the new peak in the list
+		int iLow = 0;
+		int iHigh = size;
+		while( iLow < iHigh ) {
+			int iMid = (iLow + iHigh) >>> 1;
+			if( mzs[iMid] > dMz ) {
+				iHigh = iMid;
+			} else {
+				iLow = iMid + 1;
+			}
+		}
+		if( size == mzs.length ) {
+			mzs = Arrays.copyOf(mzs, size * 2 + 8);
+			positions = Arrays.copyOf(positions, mzs.length);
+		}
+		System.arraycopy(mzs, iLow, mzs, iLow + 1, size - iLow);
+		System.arraycopy(positions, iLow, positions, iLow + 1, size - iLow);
+		mzs[iLow] = dMz;
+		positions[iLow] = iPosition;
+		size++;
+	}
+}
@@ -0,0 +1,211 @@
+package org.grits.toolbox.ms.file.scan.data;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.grits.toolbox.ms.om.data.Peak;
+import org.grits.toolbox.ms.om.data.Scan;
+
+/**
+ * Selection of scans to be read from an MS file. All the criteria that are set have to match (null/empty means
+ * the criterion is ignored). The selection is evaluated on the scan headers, before any peak data is read.
+ *
+ * e.g. all CID MS2 scans between retention time 1200 and 2100:
+ * <pre>
+ * ScanSelection selection = new ScanSelection();
+ * selection.addMsLevel(2);
+ * selection.setActivationMethod("CID");
+ * selection.setMinRetentionTime(1200.0);
+ * selection.setMaxRetentionTime(2100.0);
+ * </pre>
+ */
+public class ScanSelection {
+	private Double minRetentionTime = null;
+	private Double maxRetentionTime = null;
+	private Integer fromScanNumber = null;
+	private Integer toScanNumber = null;
+	private Set<Integer> msLevels = new HashSet<>();
+	private Boolean polarity = null;
+	private String activationMethod = null;
+	private Boolean centroided = null;
+	private Double minPrecursorMz = null;
+	private Double maxPrecursorMz = null;
+
+	public ScanSelection() {
+	}
+
+	/**
+	 * @param other selection to be copied
+	 */
+	public ScanSelection(ScanSelection other) {
+		this.minRetentionTime = other.minRetentionTime;
+		this.maxRetentionTime = other.maxRetentionTime;
+		this.fromScanNumber = other.fromScanNumber;
+		this.toScanNumber = other.toScanNumber;
+		this.msLevels = other.msLevels == null ? new HashSet<>() : new HashSet<>(other.msLevels);
+		this.polarity = other.polarity;
+		this.activationMethod = other.activationMethod;
+		this.centroided = other.centroided;
+		this.minPrecursorMz = other.minPrecursorMz;
+		this.maxPrecursorMz = other.maxPrecursorMz;
+	}
+
+	/**
+	 * @return lowest retention time (inclusive), same unit as {@link org.grits.toolbox.ms.om.data.Scan#getRetentionTime()}
+	 */
+	public Double getMinRetentionTime() {
+		return minRetentionTime;
+	}
+
+	public void setMinRetentionTime(Double minRetentionTime) {
+		this.minRetentionTime = minRetentionTime;
+	}
+
+	/**
+	 * @return highest retention time (inclusive), same unit as {@link org.grits.toolbox.ms.om.data.Scan#getRetentionTime()}
+	 */
+	public Double getMaxRetentionTime() {
+		return maxRetentionTime;
+	}
+
+	public void setMaxRetentionTime(Double maxRetentionTime) {
+		this.maxRetentionTime = maxRetentionTime;
+	}
+
+	/**
+	 * @return first scan number (inclusive)
+	 */
+	public Integer getFromScanNumber() {
+		return fromScanNumber;
+	}
+
+	public void setFromScanNumber(Integer fromScanNumber) {
+		this.fromScanNumber = fromScanNumber;
+	}
+
+	/**
+	 * @return last scan number (inclusive)
+	 */
+	public Integer getToScanNumber() {
+		return toScanNumber;
+	}
+
+	public void setToScanNumber(Integer toScanNumber) {
+		this.toScanNumber = toScanNumber;
+	}
+
+	/**
+	 * @return MS levels to be read, all levels if empty
+	 */
+	public Set<Integer> getMsLevels() {
+		return msLevels;
+	}
+
+	public void setMsLevels(Set<Integer> msLevels) {
+		this.msLevels = msLevels;
+	}
+
+	public void addMsLevel(int iMSLevel) {
+		this.msLevels.add(iMSLevel);
+	}
+
+	/**
+	 * @return true for positive scans, false for negative scans
+	 */
+	public Boolean getPolarity() {
+		return polarity;
+	}
+
+	public void setPolarity(Boolean polarity) {
+		this.polarity = polarity;
+	}
+
+	/**
+	 * @return activation method (e.g. CID, HCD, ETD), compared ignoring case
+	 */
+	public String getActivationMethod() {
+		return activationMethod;
+	}
+
+	public void setActivationMethod(String activationMethod) {
+		this.activationMethod = activationMethod;
+	}
+
+	public Boolean getCentroided() {
+		return centroided;
+	}
+
+	public void setCentroided(Boolean centroided) {
+		this.centroided = centroided;
+	}
+
+	/**
+	 * @return lowest precursor m/z (inclusive). Scans without precursor don't match if a precursor window is set
+	 */
+	public Double getMinPrecursorMz() {
+		return minPrecursorMz;
+	}
+
+	public void setMinPrecursorMz(Double minPrecursorMz) {
+		this.minPrecursorMz = minPrecursorMz;
+	}
+
+	/**
+	 * @return highest precursor m/z (inclusive). Scans without precursor don't match if a precursor window is set
+	 */
+	public Double getMaxPrecursorMz() {
+		return maxPrecursorMz;
+	}
+
+	public void setMaxPrecursorMz(Double maxPrecursorMz) {
+		this.maxPrecursorMz = maxPrecursorMz;
+	}
+
+	/**
+	 * evaluates the selection on a scan that has already been read (same criteria as on the scan headers)
+	 *
+	 * @param scan the scan
+	 * @return true if the scan matches all criteria of the selection
+	 */
+	public boolean matches(Scan scan) {
+		Integer iScanNumber = scan.getScanNo();
+		if( fromScanNumber != null && (iScanNumber == null || iScanNumber < fromScanNumber) ) {
+			return false;
+		}
+		if( toScanNumber != null && (iScanNumber == null || iScanNumber > toScanNumber) ) {
+			return false;
+		}
+		if( msLevels != null && ! msLevels.isEmpty() && ! msLevels.contains(scan.getMsLevel()) ) {
+			return false;
+		}
+		if( minRetentionTime != null || maxRetentionTime != null ) {
+			Double dRT = scan.getRetentionTime();
+			if( dRT == null || Double.isNaN(dRT) ) {
+				return false;
+			}
+			if( (minRetentionTime != null && dRT < minRetentionTime) || (maxRetentionTime != null && dRT > maxRetentionTime) ) {
+				return false;
+			}
+		}
+		if( polarity != null && ! polarity.equals(scan.getPolarity()) ) {
+			return false;
+		}
+		if( activationMethod != null && ! activationMethod.equalsIgnoreCase(scan.getActivationMethode()) ) {
+			return false;
+		}
+		if( centroided != null && ! centroided.equals(scan.getIsCentroided()) ) {
+			return false;
+		}
+		if( minPrecursorMz != null || maxPrecursorMz != null ) {
+			Peak precursor = scan.getPrecursor();
+			Double dMz = precursor == null ? null : (precursor.getPrecursorMz() != null ? precursor.getPrecursorMz() : precursor.getMz());
+			if( dMz == null || dMz <= 0 ) {
+				return false;
+			}
+			if( (minPrecursorMz != null && dMz < minPrecursorMz) || (maxPrecursorMz != null && dMz > maxPrecursorMz) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,118 @@
+package org.grits.toolbox.ms.file.scan.index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Helper for the binary index files that are written next to an MS file (e.g. "run.mzXML.gidx").
+ *
+ * Every sidecar starts with a small header holding the index kind, its format version and the size and
+ * modification time of the MS file it was built from. A sidecar is only used if all of these still match,
+ * otherwise it is considered stale and the caller rebuilds it.
+ */
+public class IndexSidecar {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(IndexSidecar.class);
+
+	private static final int MAGIC = 0x47524958; // "GRIX"
+
+	/**
+	 * writes the body of a sidecar file
+	 */
+	public interface ISidecarWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	/**
+	 * @param dataFile the MS file
+	 * @param extension extension of the sidecar (without the dot)
+	 * @return the sidecar file for the given MS file
+	 */
+	public static File getSidecarFile(File dataFile, String extension) {
+		return new File(dataFile.getAbsolutePath() + "." + extension);
+	}
+
+	/**
+	 * opens the sidecar for reading if it exists and still matches the MS file
+	 *
+	 * @param dataFile the MS file
+	 * @param sidecar the sidecar file
+	 * @param kind the kind of index stored in the sidecar
+	 * @param version format version of the index
+	 * @return stream positioned after the header or null if the sidecar is missing or stale
+	 */
+	public static DataInputStream openForRead(File dataFile, File sidecar, String kind, int version) {
+		if( ! sidecar.isFile() || ! dataFile.isFile() ) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 1 << 16));
+			if( in.readInt() == MAGIC && kind.equals(in.readUTF()) && in.readInt() == version
+					&& in.readLong() == dataFile.length() && in.readLong() == dataFile.lastModified() ) {
+				return in;
+			}
+			logger.debug("Sidecar " + sidecar.getName() + " is stale. Rebuilding.");
+		} catch (IOException e) {
+			logger.debug("Unable to read sidecar " + sidecar.getName() + ": " + e.getMessage());
+		}
+		close(in);
+		return null;
+	}
+
+	/**
+	 * writes the sidecar. The body is first written to a temporary file which then replaces the sidecar, so
+	 * concurrent readers never see a partial index.
+	 *
+	 * @param dataFile the MS file
+	 * @param sidecar the sidecar file
+	 * @param kind the kind of index stored in the sidecar
+	 * @param version format version of the index
+	 * @param body writes the index itself
+	 * @return true if the sidecar was written, false otherwise (e.g. read-only folder)
+	 */
+	public static boolean write(File dataFile, File sidecar, String kind, int version, ISidecarWriter body) {
+		File tmpFile = new File(sidecar.getAbsolutePath() + ".tmp" + Thread.currentThread().getId());
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeUTF(kind);
+			out.writeInt(version);
+			out.writeLong(dataFile.length());
+			out.writeLong(dataFile.lastModified());
+			body.write(out);
+			out.close();
+			out = null;
+			if( sidecar.exists() && ! sidecar.delete() ) {
+				tmpFile.delete();
+				return false;
+			}
+			return tmpFile.renameTo(sidecar);
+		} catch (IOException e) {
+			logger.debug("Unable to write sidecar " + sidecar.getName() + ": " + e.getMessage());
+			close(out);
+			tmpFile.delete();
+		}
+		return false;
+	}
+
+	public static void close(java.io.Closeable stream) {
+		if( stream == null ) {
+			return;
+		}
+		try {
+			stream.close();
+		} catch (IOException e) {
+			logger.debug(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package org.grits.toolbox.ms.file.scan.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.grits.toolbox.ms.file.extquant.data.QuantPeakMatch;
+
+/**
+ * Index of the precursor m/z values of all MSn scans of a file, sorted by m/z. Each entry holds the
+ * scan number, precursor charge and intensity, retention time, MS level and parent scan of the MSn scan.
+ *
+ * Queries use the same tolerance as {@link QuantPeakMatch#getDaTolerance(double, double, boolean)} (Da or ppm) and
+ * cost O(log n + k) where k is the number of entries in the m/z window.
+ */
+public class PrecursorIndex {
+	private int size = 0;
+	private double[] mzs = new double[0];
+	private int[] scanNumbers = new int[0];
+	private int[] charges = new int[0];
+	private float[] intensities = new float[0];
+	private double[] retentionTimes = new double[0];
+	private int[] msLevels = new int[0];
+	private int[] parentScanNumbers = new int[0];
+
+	private PrecursorIndex() {
+	}
+
+	/**
+	 * builds the index from the scan headers
+	 *
+	 * @param index header index of the MS file
+	 * @param tree scan tree of the MS file, used for the parent scans
+	 * @return the precursor index
+	 */
+	public static PrecursorIndex build(ScanHeaderIndex index, ScanTree tree) {
+		List<Integer> lRows = new ArrayList<>();
+		for( int iRow = 0; iRow < index.size(); iRow++ ) {
+			if( index.getMsLevel(iRow) > 1 && index.getPrecursorMz(iRow) > 0 ) {
+				lRows.add(iRow);
+			}
+		}
+		lRows.sort(Comparator.comparingDouble(index::getPrecursorMz));
+		PrecursorIndex precursorIndex = new PrecursorIndex();
+		int iSize = lRows.size();
+		precursorIndex.mzs = new double[iSize];
+		precursorIndex.scanNumbers = new int[iSize];
+		precursorIndex.charges = new int[iSize];
+		precursorIndex.intensities = new float[iSize];
+		precursorIndex.retentionTimes = new double[iSize];
+		precursorIndex.msLevels = new int[iSize];
+		precursorIndex.parentScanNumbers = new int[iSize];
+		for( int i = 0; i < iSize; i++ ) {
+			int iRow = lRows.get(i);
+			int iScanNumber = index.getScanNumber(iRow);
+			precursorIndex.mzs[i] = index.getPrecursorMz(iRow);
+			precursorIndex.scanNumbers[i] = iScanNumber;
+			precursorIndex.charges[i] = index.getPrecursorCharge(iRow);
+			precursorIndex.intensities[i] = index.getPrecursorIntensity(iRow);
+			precursorIndex.retentionTimes[i] = index.getRetentionTime(iRow);
+			precursorIndex.msLevels[i] = index.getMsLevel(iRow);
+			precursorIndex.parentScanNumbers[i] = tree.getParentScanNumber(iScanNumber);
+		}
+		precursorIndex.size = iSize;
+		return precursorIndex;
+	}
+
+	/**
+	 * @return number of precursors in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * finds the precursors within the tolerance of the given m/z
+	 *
+	 * @param dMz m/z to look for
+	 * @param dIntervalValue the tolerance
+	 * @param bPPM true if the tolerance is in ppm, false if in Da
+	 * @return entries of the matching precursors (ascending m/z)
+	 */
+	public int[] find(double dMz, double dIntervalValue, boolean bPPM) {
+		return find(dMz, dIntervalValue, bPPM, null, null);
+	}
+
+	/**
+	 * finds the precursors within the tolerance of the given m/z and in the retention time window
+	 *
+	 * @param dMz m/z to look for
+	 * @param dIntervalValue the tolerance
+	 * @param bPPM true if the tolerance is in ppm, false if in Da
+	 * @param dMinRetentionTime lowest retention time (inclusive), null if not restricted
+	 * @param dMaxRetentionTime highest retention time (inclusive), null if not restricted
+	 * @return entries of the matching precursors (ascending m/z)
+	 */
+	public int[] find(double dMz, double dIntervalValue, boolean bPPM, Double dMinRetentionTime, Double dMaxRetentionTime) {
+		double dTol = QuantPeakMatch.getDaTolerance(dMz, dIntervalValue, bPPM);
+		return collect(lowerBound(dMz - dTol, 0), dMz + dTol, dMinRetentionTime, dMaxRetentionTime);
+	}
+
+	/**
+	 * finds the precursors for many m/z values at once. The targets are processed in m/z order so the index
+	 * is only walked once.
+	 *
+	 * @param dMzs m/z values to look for
+	 * @param dIntervalValue the tolerance
+	 * @param bPPM true if the tolerance is in ppm, false if in Da
+	 * @return for each m/z (same order as dMzs), the entries of the matching precursors (ascending m/z)
+	 */
+	public int[][] find(double[] dMzs, double dIntervalValue, boolean bPPM) {
+		return find(dMzs, null, null, dIntervalValue, bPPM);
+	}
+
+	/**
+	 * finds the precursors for many m/z values (and retention time windows) at once. The targets are processed
+	 * in m/z order so the index is only walked once.
+	 *
+	 * @param dMzs m/z values to look for
+	 * @param dMinRetentionTimes lowest retention time for each m/z (inclusive), null if not restricted
+	 * @param dMaxRetentionTimes highest retention time for each m/z (inclusive), null if not restricted
+	 * @param dIntervalValue the tolerance
+	 * @param bPPM true if the tolerance is in ppm, false if in Da
+	 * @return for each m/z (same order as dMzs), the entries of the matching precursors (ascending m/z)
+	 */
+	public int[][] find(double[] dMzs, double[] dMinRetentionTimes, double[] dMaxRetentionTimes, double dIntervalValue, boolean bPPM) {
+		Integer[] iOrder = new Integer[dMzs.length];
+		for( int i = 0; i < iOrder.length; i++ ) {
+			iOrder[i] = i;
+		}
+		Arrays.sort(iOrder, Comparator.comparingDouble(i -> dMzs[i]));
+		int[][] iResults = new int[dMzs.length][];
+		int iStart = 0;
+		for( Integer iTarget : iOrder ) {
+			double dMz = dMzs[iTarget];
+			double dTol = QuantPeakMatch.getDaTolerance(dMz, dIntervalValue, bPPM);
+			// the lower bound only increases with the m/z, so the search continues from the previous one
+			iStart = lowerBound(dMz - dTol, iStart);
+			Double dMinRT = dMinRetentionTimes != null ? dMinRetentionTimes[iTarget] : null;
+			Double dMaxRT = dMaxRetentionTimes != null ? dMaxRetentionTimes[iTarget] : null;
+			iResults[iTarget] = collect(iStart, dMz + dTol, dMinRT, dMaxRT);
+		}
+		return iResults;
+	}
+
+	private int lowerBound(double dMz, int iFrom) {
+		int iLow = iFrom;
+		int iHigh = size;
+		while( iLow < iHigh ) {
+			int iMid = (iLow + iHigh) >>> 1;
+			if( mzs[iMid] < dMz ) {
+				iLow = iMid + 1;
+			} else {
+				iHigh = iMid;
+			}
+		}
+		return iLow;
+	}
+
+	private int[] collect(int iStart, double dMaxMz, Double dMinRetentionTime, Double dMaxRetentionTime) {
+		int[] iEntries = new int[8];
+		int iNum = 0;
+		for( int i = iStart; i < size && mzs[i] <= dMaxMz; i++ ) {
+			if( dMinRetentionTime != null && ! (retentionTimes[i] >= dMinRetentionTime) ) {
+				continue;
+			}
+			if( dMaxRetentionTime != null && ! (retentionTimes[i] <= dMaxRetentionTime) ) {
+				continue;
+			}
+			if( iNum == iEntries.length ) {
+				iEntries = Arrays.copyOf(iEntries, iNum * 2);
+			}
+			iEntries[iNum++] = i;
+		}
+		return Arrays.copyOf(iEntries, iNum);
+	}
+
+	/**
+	 * @param iEntries entries returned by a query
+	 * @return the scan numbers of the entries
+	 */
+	public List<Integer> getScanNumbers(int[] iEntries) {
+		List<Integer> lScans = new ArrayList<>(iEntries.length);
+		for( int iEntry : iEntries ) {
+			lScans.add(scanNumbers[iEntry]);
+		}
+		return lScans;
+	}
+
+	public double getMz(int iEntry) {
+		return mzs[iEntry];
+	}
+
+	public int getScanNumber(int iEntry) {
+		return scanNumbers[iEntry];
+	}
+
+	public int getCharge(int iEntry) {
+		return charges[iEntry];
+	}
+
+	public float getIntensity(int iEntry) {
+		return intensities[iEntry];
+	}
+
+	/**
+	 * @param iEntry entry in the index
+	 * @return the retention time or NaN if the scan does not have a valid retention time
+	 */
+	public double getRetentionTime(int iEntry) {
+		return retentionTimes[iEntry];
+	}
+
+	public int getMsLevel(int iEntry) {
+		return msLevels[iEntry];
+	}
+
+	/**
+	 * @param iEntry entry in the index
+	 * @return scan number of the parent scan, -1 if unknown
+	 */
+	public int getParentScanNumber(int iEntry) {
+		return parentScanNumbers[iEntry];
+	}
+}
@@ -0,0 +1,727 @@
+package org.grits.toolbox.ms.file.scan.index;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+import org.grits.toolbox.ms.file.scan.data.FileSummary;
+import org.grits.toolbox.ms.file.scan.data.ScanSelection;
+import org.systemsbiology.jrap.grits.stax.MSXMLParser;
+import org.systemsbiology.jrap.grits.stax.ScanHeader;
+
+/**
+ * Compact table of the scan headers of an mzXML file, stored as parallel primitive arrays (one row per scan,
+ * in ascending scan number order).
+ *
+ * The table is built with a single header-only pass over the file and persisted in a sidecar file
+ * (see {@link IndexSidecar}) so that subsequent opens of the same file only need to read the sidecar.
+ * All the header-only questions (scan numbers, MS levels, counts, parent scans) can be answered from it
+ * without touching the MS file.
+ */
+public class ScanHeaderIndex {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(ScanHeaderIndex.class);
+
+	public static final String SIDECAR_EXTENSION = "gidx";
+	private static final String SIDECAR_KIND = "ScanHeaderIndex";
+	private static final int SIDECAR_VERSION = 1;
+
+	public static final byte POLARITY_UNKNOWN = -1;
+	public static final byte POLARITY_NEGATIVE = 0;
+	public static final byte POLARITY_POSITIVE = 1;
+
+	// most recently used indexes, so that asking several questions about the same file does not reload the sidecar
+	private static final int CACHE_SIZE = 8;
+	private static final Map<String, ScanHeaderIndex> cache = new LinkedHashMap<String, ScanHeaderIndex>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ScanHeaderIndex> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private int maxScanNumber = -1;
+	private int size = 0;
+	private int[] scanNumbers = new int[0];
+	private long[] offsets = new long[0];
+	private int[] msLevels = new int[0];
+	private double[] retentionTimes = new double[0];
+	private int[] precursorScanNumbers = new int[0];
+	private float[] precursorMzs = new float[0];
+	private int[] precursorCharges = new int[0];
+	private float[] precursorIntensities = new float[0];
+	private byte[] polarities = new byte[0];
+	private byte[] centroided = new byte[0];
+	private int[] activationMethods = new int[0]; // index into activationMethodNames, -1 if not set
+	private String[] activationMethodNames = new String[0];
+	private float[] totIonCurrents = new float[0];
+	private float[] basePeakMzs = new float[0];
+	private float[] basePeakIntensities = new float[0];
+	private float[] lowMzs = new float[0];
+	private float[] highMzs = new float[0];
+	private int[] peaksCounts = new int[0];
+
+	private boolean consistent = true; // false if the mzXML index did not match the scans while building
+	private long fileLength = -1;
+	private long fileLastModified = -1;
+	private FileSummary summary = null;
+
+	private ScanHeaderIndex() {
+	}
+
+	/**
+	 * returns the index of the given mzXML file. The index is read from the sidecar file if it is still valid,
+	 * otherwise it is rebuilt from the file and the sidecar is (re)written.
+	 *
+	 * @param fileName full path to mzXML file
+	 * @param fallback builds the index without the mzXML index, if it is missing or does not match the scans (may be null)
+	 * @return the scan header index (empty if the file could not be parsed)
+	 */
+	public static ScanHeaderIndex getIndex(String fileName, Function<File, ScanHeaderIndex> fallback) {
+		File dataFile = new File(fileName);
+		String sKey = dataFile.getAbsolutePath();
+		long lLength = dataFile.length();
+		long lLastModified = dataFile.lastModified();
+		synchronized (cache) {
+			ScanHeaderIndex cached = cache.get(sKey);
+			if( cached != null && cached.fileLength == lLength && cached.fileLastModified == lLastModified ) {
+				return cached;
+			}
+		}
+		File sidecar = IndexSidecar.getSidecarFile(dataFile, SIDECAR_EXTENSION);
+		ScanHeaderIndex index = load(dataFile, sidecar);
+		if( index == null ) {
+			index = build(dataFile, fallback);
+			if( index == null ) {
+				// not persisted nor cached, the next call tries again (the error may be transient)
+				return new ScanHeaderIndex();
+			}
+			if( ! IndexSidecar.write(dataFile, sidecar, SIDECAR_KIND, SIDECAR_VERSION, index::write) ) {
+				logger.debug("Scan header index for " + fileName + " kept in memory only");
+			}
+		}
+		index.fileLength = lLength;
+		index.fileLastModified = lLastModified;
+		synchronized (cache) {
+			cache.put(sKey, index);
+		}
+		return index;
+	}
+
+	/**
+	 * builds the index with one header-only pass over the mzXML file
+	 *
+	 * @param dataFile the mzXML file
+	 * @param fallback builds the index without the mzXML index, if it is missing or does not match the scans (may be null)
+	 * @return the scan header index, null if the file could not be parsed or has no scans
+	 */
+	public static ScanHeaderIndex build(File dataFile, Function<File, ScanHeaderIndex> fallback) {
+		ScanHeaderIndex index = null;
+		try {
+			index = build(new MSXMLParser(dataFile.getAbsolutePath()));
+		} catch (Exception ex) {
+			logger.error(ex.getMessage(), ex);
+		}
+		if( fallback != null && (index == null || index.isEmpty() || ! index.consistent) ) {
+			// missing or stale mzXML index: find the scans in the file itself
+			logger.debug("mzXML index of " + dataFile.getName() + " is missing or does not match the file. Scanning the file.");
+			ScanHeaderIndex scanned = fallback.apply(dataFile);
+			if( scanned != null && ! scanned.isEmpty() ) {
+				return scanned;
+			}
+		}
+		// jrap logs most read errors and returns no scans, so an index without scans is not trusted
+		return index == null || index.isEmpty() ? null : index;
+	}
+
+	/**
+	 * builds the index with one header-only pass using the given parser
+	 *
+	 * @param parser parser of the mzXML file
+	 * @return the scan header index
+	 */
+	public static ScanHeaderIndex build(MSXMLParser parser) {
+		ScanHeaderIndex index = new ScanHeaderIndex();
+		int iMaxScan = parser.getMaxScanNumber();
+		index.maxScanNumber = iMaxScan;
+		index.allocate(Math.max(iMaxScan, 0));
+		List<String> activationNames = new ArrayList<>();
+		for( int i = 1; i <= iMaxScan; i++ ) {
+			long lOffset = parser.getScanOffset(i);
+			if( lOffset == -1 ) {
+				continue;
+			}
+			try {
+				ScanHeader header = parser.rapHeader(i);
+				if( header == null ) {
+					index.consistent = false;
+					continue;
+				}
+				if( header.getNum() != i ) {
+					index.consistent = false;
+				}
+				index.add(header, lOffset, activationNames);
+			} catch( Exception ex ) {
+				index.consistent = false;
+				logger.debug("Error parsing header of scan: " + i);
+				logger.error(ex.getMessage(), ex);
+			}
+		}
+		index.activationMethodNames = activationNames.toArray(new String[activationNames.size()]);
+		return index;
+	}
+
+	/**
+	 * builds the index from headers that were read without the mzXML index (e.g. by scanning the file for its scans)
+	 *
+	 * @param headers headers of the scans, in ascending scan number order
+	 * @param offsets offsets of the scans in the file
+	 * @param iCount number of scans
+	 * @return the scan header index
+	 */
+	public static ScanHeaderIndex build(ScanHeader[] headers, long[] offsets, int iCount) {
+		ScanHeaderIndex index = new ScanHeaderIndex();
+		index.allocate(iCount);
+		List<String> activationNames = new ArrayList<>();
+		for( int i = 0; i < iCount; i++ ) {
+			index.add(headers[i], offsets[i], activationNames);
+		}
+		index.maxScanNumber = iCount == 0 ? -1 : headers[iCount - 1].getNum();
+		index.activationMethodNames = activationNames.toArray(new String[activationNames.size()]);
+		return index;
+	}
+
+	private void allocate(int iCapacity) {
+		scanNumbers = new int[iCapacity];
+		offsets = new long[iCapacity];
+		msLevels = new int[iCapacity];
+		retentionTimes = new double[iCapacity];
+		precursorScanNumbers = new int[iCapacity];
+		precursorMzs = new float[iCapacity];
+		precursorCharges = new int[iCapacity];
+		precursorIntensities = new float[iCapacity];
+		polarities = new byte[iCapacity];
+		centroided = new byte[iCapacity];
+		activationMethods = new int[iCapacity];
+		totIonCurrents = new float[iCapacity];
+		basePeakMzs = new float[iCapacity];
+		basePeakIntensities = new float[iCapacity];
+		lowMzs = new float[iCapacity];
+		highMzs = new float[iCapacity];
+		peaksCounts = new int[iCapacity];
+	}
+
+	private void add(ScanHeader header, long lOffset, List<String> activationNames) {
+		int i = size;
+		if( i == scanNumbers.length ) {
+			grow(Math.max(16, i * 2));
+		}
+		scanNumbers[i] = header.getNum();
+		offsets[i] = lOffset;
+		msLevels[i] = header.getMsLevel();
+		double dRT = Double.NaN;
+		try {
+			dRT = header.getDoubleRetentionTime();
+		} catch( Exception e1 ) {
+			;
+		}
+		retentionTimes[i] = dRT;
+		precursorScanNumbers[i] = header.getPrecursorScanNum();
+		precursorMzs[i] = header.getPrecursorMz();
+		precursorCharges[i] = header.getPrecursorCharge();
+		precursorIntensities[i] = header.getPrecursorIntensity();
+		polarities[i] = getPolarity(header.getPolarity());
+		centroided[i] = (byte) header.getCentroided();
+		String sActivation = header.getActivationMethod();
+		int iActivation = -1;
+		if( sActivation != null ) {
+			iActivation = activationNames.indexOf(sActivation);
+			if( iActivation == -1 ) {
+				iActivation = activationNames.size();
+				activationNames.add(sActivation);
+			}
+		}
+		activationMethods[i] = iActivation;
+		totIonCurrents[i] = header.getTotIonCurrent();
+		basePeakMzs[i] = header.getBasePeakMz();
+		basePeakIntensities[i] = header.getBasePeakIntensity();
+		lowMzs[i] = header.getLowMz();
+		highMzs[i] = header.getHighMz();
+		peaksCounts[i] = header.getPeaksCount();
+		size++;
+	}
+
+	private void grow(int iCapacity) {
+		scanNumbers = Arrays.copyOf(scanNumbers, iCapacity);
+		offsets = Arrays.copyOf(offsets, iCapacity);
+		msLevels = Arrays.copyOf(msLevels, iCapacity);
+		retentionTimes = Arrays.copyOf(retentionTimes, iCapacity);
+		precursorScanNumbers = Arrays.copyOf(precursorScanNumbers, iCapacity);
+		precursorMzs = Arrays.copyOf(precursorMzs, iCapacity);
+		precursorCharges = Arrays.copyOf(precursorCharges, iCapacity);
+		precursorIntensities = Arrays.copyOf(precursorIntensities, iCapacity);
+		polarities = Arrays.copyOf(polarities, iCapacity);
+		centroided = Arrays.copyOf(centroided, iCapacity);
+		activationMethods = Arrays.copyOf(activationMethods, iCapacity);
+		totIonCurrents = Arrays.copyOf(totIonCurrents, iCapacity);
+		basePeakMzs = Arrays.copyOf(basePeakMzs, iCapacity);
+		basePeakIntensities = Arrays.copyOf(basePeakIntensities, iCapacity);
+		lowMzs = Arrays.copyOf(lowMzs, iCapacity);
+		highMzs = Arrays.copyOf(highMzs, iCapacity);
+		peaksCounts = Arrays.copyOf(peaksCounts, iCapacity);
+	}
+
+	private static byte getPolarity(String sPolarity) {
+		if( sPolarity == null || sPolarity.equals("") ) {
+			return POLARITY_UNKNOWN;
+		}
+		return sPolarity.equals("+") ? POLARITY_POSITIVE : POLARITY_NEGATIVE;
+	}
+
+	private static ScanHeaderIndex load(File dataFile, File sidecar) {
+		DataInputStream in = IndexSidecar.openForRead(dataFile, sidecar, SIDECAR_KIND, SIDECAR_VERSION);
+		if( in == null ) {
+			return null;
+		}
+		try {
+			ScanHeaderIndex index = new ScanHeaderIndex();
+			index.maxScanNumber = in.readInt();
+			int iNumActivations = in.readInt();
+			index.activationMethodNames = new String[iNumActivations];
+			for( int i = 0; i < iNumActivations; i++ ) {
+				index.activationMethodNames[i] = in.readUTF();
+			}
+			int iSize = in.readInt();
+			index.allocate(iSize);
+			for( int i = 0; i < iSize; i++ ) {
+				index.scanNumbers[i] = in.readInt();
+				index.offsets[i] = in.readLong();
+				index.msLevels[i] = in.readInt();
+				index.retentionTimes[i] = in.readDouble();
+				index.precursorScanNumbers[i] = in.readInt();
+				index.precursorMzs[i] = in.readFloat();
+				index.precursorCharges[i] = in.readInt();
+				index.precursorIntensities[i] = in.readFloat();
+				index.polarities[i] = in.readByte();
+				index.centroided[i] = in.readByte();
+				index.activationMethods[i] = in.readInt();
+				index.totIonCurrents[i] = in.readFloat();
+				index.basePeakMzs[i] = in.readFloat();
+				index.basePeakIntensities[i] = in.readFloat();
+				index.lowMzs[i] = in.readFloat();
+				index.highMzs[i] = in.readFloat();
+				index.peaksCounts[i] = in.readInt();
+			}
+			index.size = iSize;
+			return index;
+		} catch (IOException e) {
+			logger.debug("Unable to read sidecar " + sidecar.getName() + ": " + e.getMessage());
+		} finally {
+			IndexSidecar.close(in);
+		}
+		return null;
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		out.writeInt(maxScanNumber);
+		out.writeInt(activationMethodNames.length);
+		for( String sName : activationMethodNames ) {
+			out.writeUTF(sName);
+		}
+		out.writeInt(size);
+		for( int i = 0; i < size; i++ ) {
+			out.writeInt(scanNumbers[i]);
+			out.writeLong(offsets[i]);
+			out.writeInt(msLevels[i]);
+			out.writeDouble(retentionTimes[i]);
+			out.writeInt(precursorScanNumbers[i]);
+			out.writeFloat(precursorMzs[i]);
+			out.writeInt(precursorCharges[i]);
+			out.writeFloat(precursorIntensities[i]);
+			out.writeByte(polarities[i]);
+			out.writeByte(centroided[i]);
+			out.writeInt(activationMethods[i]);
+			out.writeFloat(totIonCurrents[i]);
+			out.writeFloat(basePeakMzs[i]);
+			out.writeFloat(basePeakIntensities[i]);
+			out.writeFloat(lowMzs[i]);
+			out.writeFloat(highMzs[i]);
+			out.writeInt(peaksCounts[i]);
+		}
+	}
+
+	/**
+	 * @return the last scan number of the file as reported by the mzXML index (-1 if the file could not be parsed)
+	 */
+	public int getMaxScanNumber() {
+		return maxScanNumber;
+	}
+
+	/**
+	 * @return number of scans in the index
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return true if the index does not contain any scans
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return the row of the given scan number or -1 if the scan is not in the index
+	 */
+	public int getRow(int iScanNumber) {
+		int iRow = Arrays.binarySearch(scanNumbers, 0, size, iScanNumber);
+		return iRow < 0 ? -1 : iRow;
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return true if the scan is in the index
+	 */
+	public boolean contains(int iScanNumber) {
+		return getRow(iScanNumber) != -1;
+	}
+
+	/**
+	 * @return the lowest scan number in the file or -1 if there are no scans
+	 */
+	public int getFirstScanNumber() {
+		return size == 0 ? -1 : scanNumbers[0];
+	}
+
+	/**
+	 * @return the highest scan number in the file or -1 if there are no scans
+	 */
+	public int getLastScanNumber() {
+		return size == 0 ? -1 : scanNumbers[size - 1];
+	}
+
+	/**
+	 * @return the minimum MS level of all scans or -1 if there are no scans
+	 */
+	public int getMinMSLevel() {
+		return getSummary().getMinMSLevel();
+	}
+
+	/**
+	 * @param iMSLevel MS level
+	 * @return number of scans with the given MS level or -1 if there are no scans
+	 */
+	public int countScansByMSLevel(int iMSLevel) {
+		if( size == 0 ) {
+			return -1;
+		}
+		return getSummary().getScanCount(iMSLevel);
+	}
+
+	/**
+	 * returns the summary of the file. The summary is computed with one pass over the index on the first call
+	 * and kept with the index afterwards.
+	 *
+	 * @return the summary of the file
+	 */
+	public synchronized FileSummary getSummary() {
+		if( summary == null ) {
+			summary = createSummary();
+		}
+		return summary;
+	}
+
+	private FileSummary createSummary() {
+		FileSummary fileSummary = new FileSummary();
+		fileSummary.setNumScans(size);
+		fileSummary.setMaxScanNumber(maxScanNumber);
+		fileSummary.setFirstScanNumber(getFirstScanNumber());
+		fileSummary.setLastScanNumber(getLastScanNumber());
+		if( size == 0 ) {
+			return fileSummary;
+		}
+		int iMinMSLevel = Integer.MAX_VALUE;
+		int iMaxMSLevel = Integer.MIN_VALUE;
+		int iFirstMS1Scan = -1;
+		double dMinRT = Double.MAX_VALUE;
+		double dMaxRT = -Double.MAX_VALUE;
+		double dMinMz = Double.MAX_VALUE;
+		double dMaxMz = -Double.MAX_VALUE;
+		int iNumPositive = 0;
+		int iNumNegative = 0;
+		int iNumCentroided = 0;
+		int iNumProfile = 0;
+		Map<Integer, Integer> scanCounts = new TreeMap<>();
+		for( int i = 0; i < size; i++ ) {
+			int iMSLevel = msLevels[i];
+			iMinMSLevel = Math.min(iMinMSLevel, iMSLevel);
+			iMaxMSLevel = Math.max(iMaxMSLevel, iMSLevel);
+			if( scanNumbers[i] > 0 ) {
+				Integer iCount = scanCounts.get(iMSLevel);
+				scanCounts.put(iMSLevel, iCount == null ? 1 : iCount + 1);
+			}
+			if( iFirstMS1Scan == -1 && iMSLevel == 1 && peaksCounts[i] > 0 ) {
+				iFirstMS1Scan = scanNumbers[i];
+			}
+			if( ! Double.isNaN(retentionTimes[i]) ) {
+				dMinRT = Math.min(dMinRT, retentionTimes[i]);
+				dMaxRT = Math.max(dMaxRT, retentionTimes[i]);
+			}
+			if( highMzs[i] > 0 ) { // low/high m/z not reported if 0
+				dMinMz = Math.min(dMinMz, lowMzs[i]);
+				dMaxMz = Math.max(dMaxMz, highMzs[i]);
+			}
+			if( polarities[i] == POLARITY_POSITIVE ) {
+				iNumPositive++;
+			} else if( polarities[i] == POLARITY_NEGATIVE ) {
+				iNumNegative++;
+			}
+			if( centroided[i] == 1 ) {
+				iNumCentroided++;
+			} else if( centroided[i] == 0 ) {
+				iNumProfile++;
+			}
+		}
+		fileSummary.setMinMSLevel(iMinMSLevel);
+		fileSummary.setMaxMSLevel(iMaxMSLevel);
+		fileSummary.setScanCountByMSLevel(scanCounts);
+		fileSummary.setFirstMS1ScanNumber(iFirstMS1Scan);
+		if( dMinRT <= dMaxRT ) {
+			fileSummary.setMinRetentionTime(dMinRT);
+			fileSummary.setMaxRetentionTime(dMaxRT);
+		}
+		if( dMinMz <= dMaxMz ) {
+			fileSummary.setMinMz(dMinMz);
+			fileSummary.setMaxMz(dMaxMz);
+		}
+		fileSummary.setNumPositiveScans(iNumPositive);
+		fileSummary.setNumNegativeScans(iNumNegative);
+		fileSummary.setNumUnknownPolarityScans(size - iNumPositive - iNumNegative);
+		fileSummary.setNumCentroidedScans(iNumCentroided);
+		fileSummary.setNumProfileScans(iNumProfile);
+		return fileSummary;
+	}
+
+	/**
+	 * @param iMSLevel MS level
+	 * @return the scan numbers of all scans with the given MS level
+	 */
+	public List<Integer> getScanNumbers(int iMSLevel) {
+		List<Integer> lScans = new ArrayList<>();
+		for( int i = 0; i < size; i++ ) {
+			if( msLevels[i] == iMSLevel ) {
+				lScans.add(scanNumbers[i]);
+			}
+		}
+		return lScans;
+	}
+
+	/**
+	 * evaluates the selection on the index
+	 *
+	 * @param selection the scan selection
+	 * @return rows of the matching scans (ascending)
+	 */
+	public int[] select(ScanSelection selection) {
+		int iFromRow = 0;
+		if( selection.getFromScanNumber() != null ) {
+			iFromRow = Arrays.binarySearch(scanNumbers, 0, size, selection.getFromScanNumber());
+			if( iFromRow < 0 ) {
+				iFromRow = -iFromRow - 1;
+			}
+		}
+		int iToScan = selection.getToScanNumber() != null ? selection.getToScanNumber() : Integer.MAX_VALUE;
+		int[] iRows = new int[16];
+		int iNum = 0;
+		for( int iRow = iFromRow; iRow < size && scanNumbers[iRow] <= iToScan; iRow++ ) {
+			if( ! matches(iRow, selection) ) {
+				continue;
+			}
+			if( iNum == iRows.length ) {
+				iRows = Arrays.copyOf(iRows, iNum * 2);
+			}
+			iRows[iNum++] = iRow;
+		}
+		return Arrays.copyOf(iRows, iNum);
+	}
+
+	/**
+	 * @param iRow row in the index
+	 * @param selection the scan selection
+	 * @return true if the scan matches all criteria of the selection
+	 */
+	public boolean matches(int iRow, ScanSelection selection) {
+		if( selection.getFromScanNumber() != null && scanNumbers[iRow] < selection.getFromScanNumber() ) {
+			return false;
+		}
+		if( selection.getToScanNumber() != null && scanNumbers[iRow] > selection.getToScanNumber() ) {
+			return false;
+		}
+		if( selection.getMsLevels() != null && ! selection.getMsLevels().isEmpty() 
+				&& ! selection.getMsLevels().contains(msLevels[iRow]) ) {
+			return false;
+		}
+		if( selection.getMinRetentionTime() != null || selection.getMaxRetentionTime() != null ) {
+			double dRT = retentionTimes[iRow];
+			if( Double.isNaN(dRT) ) {
+				return false;
+			}
+			if( selection.getMinRetentionTime() != null && dRT < selection.getMinRetentionTime() ) {
+				return false;
+			}
+			if( selection.getMaxRetentionTime() != null && dRT > selection.getMaxRetentionTime() ) {
+				return false;
+			}
+		}
+		if( selection.getPolarity() != null ) {
+			byte bPolarity = selection.getPolarity() ? POLARITY_POSITIVE : POLARITY_NEGATIVE;
+			if( polarities[iRow] != bPolarity ) {
+				return false;
+			}
+		}
+		if( selection.getActivationMethod() != null && ! selection.getActivationMethod().equalsIgnoreCase(getActivationMethod(iRow)) ) {
+			return false;
+		}
+		if( selection.getCentroided() != null && selection.getCentroided() != isCentroided(iRow) ) {
+			return false;
+		}
+		if( selection.getMinPrecursorMz() != null || selection.getMaxPrecursorMz() != null ) {
+			if( precursorMzs[iRow] <= 0 ) {
+				return false;
+			}
+			if( selection.getMinPrecursorMz() != null && precursorMzs[iRow] < selection.getMinPrecursorMz() ) {
+				return false;
+			}
+			if( selection.getMaxPrecursorMz() != null && precursorMzs[iRow] > selection.getMaxPrecursorMz() ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * creates a jrap header from the index, without reading the MS file
+	 *
+	 * @param iRow row in the index
+	 * @return the scan header
+	 */
+	public ScanHeader getScanHeader(int iRow) {
+		ScanHeader header = new ScanHeader();
+		header.setNum(scanNumbers[iRow]);
+		header.setMsLevel(msLevels[iRow]);
+		header.setPeaksCount(peaksCounts[iRow]);
+		if( polarities[iRow] == POLARITY_POSITIVE ) {
+			header.setPolarity("+");
+		} else if( polarities[iRow] == POLARITY_NEGATIVE ) {
+			header.setPolarity("-");
+		}
+		header.setCentroided(centroided[iRow]);
+		if( ! Double.isNaN(retentionTimes[iRow]) ) {
+			header.setRetentionTime("PT" + retentionTimes[iRow] + "S");
+		}
+		header.setLowMz(lowMzs[iRow]);
+		header.setHighMz(highMzs[iRow]);
+		header.setBasePeakMz(basePeakMzs[iRow]);
+		header.setBasePeakIntensity(basePeakIntensities[iRow]);
+		header.setTotIonCurrent(totIonCurrents[iRow]);
+		header.setPrecursorScanNum(precursorScanNumbers[iRow]);
+		header.setPrecursorMz(precursorMzs[iRow]);
+		header.setPrecursorCharge(precursorCharges[iRow]);
+		header.setPrecursorIntensity(precursorIntensities[iRow]);
+		header.setActivationMethod(getActivationMethod(iRow));
+		return header;
+	}
+
+	public int getScanNumber(int iRow) {
+		return scanNumbers[iRow];
+	}
+
+	public long getOffset(int iRow) {
+		return offsets[iRow];
+	}
+
+	public int getMsLevel(int iRow) {
+		return msLevels[iRow];
+	}
+
+	/**
+	 * @param iRow row in the index
+	 * @return the retention time or NaN if the scan does not have a valid retention time
+	 */
+	public double getRetentionTime(int iRow) {
+		return retentionTimes[iRow];
+	}
+
+	public int getPrecursorScanNumber(int iRow) {
+		return precursorScanNumbers[iRow];
+	}
+
+	public float getPrecursorMz(int iRow) {
+		return precursorMzs[iRow];
+	}
+
+	public int getPrecursorCharge(int iRow) {
+		return precursorCharges[iRow];
+	}
+
+	public float getPrecursorIntensity(int iRow) {
+		return precursorIntensities[iRow];
+	}
+
+	/**
+	 * @param iRow row in the index
+	 * @return one of POLARITY_POSITIVE, POLARITY_NEGATIVE or POLARITY_UNKNOWN
+	 */
+	public byte getPolarity(int iRow) {
+		return polarities[iRow];
+	}
+
+	public boolean isCentroided(int iRow) {
+		return centroided[iRow] == 1;
+	}
+
+	/**
+	 * @param iRow row in the index
+	 * @return the activation method or null if not set
+	 */
+	public String getActivationMethod(int iRow) {
+		int iActivation = activationMethods[iRow];
+		return iActivation == -1 ? null : activationMethodNames[iActivation];
+	}
+
+	public float getTotIonCurrent(int iRow) {
+		return totIonCurrents[iRow];
+	}
+
+	public float getBasePeakMz(int iRow) {
+		return basePeakMzs[iRow];
+	}
+
+	public float getBasePeakIntensity(int iRow) {
+		return basePeakIntensities[iRow];
+	}
+
+	public float getLowMz(int iRow) {
+		return lowMzs[iRow];
+	}
+
+	public float getHighMz(int iRow) {
+		return highMzs[iRow];
+	}
+
+	public int getPeaksCount(int iRow) {
+		return peaksCounts[iRow];
+	}
+}
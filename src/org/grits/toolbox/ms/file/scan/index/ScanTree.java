@@ -0,0 +1,368 @@
+package org.grits.toolbox.ms.file.scan.index;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Parent-children tree (MSn hierarchy) of the scans of an MS file, built from the scan headers only.
+ *
+ * The tree is stored as int arrays: one parent pointer per scan and, for the children, an offset array
+ * into a single children array (children of row r are children[childOffsets[r]] .. children[childOffsets[r+1]-1],
+ * in ascending scan number order). All values are rows of the scans (in ascending scan number order).
+ * The tree is persisted in a sidecar file next to the MS file (see {@link IndexSidecar}).
+ */
+public class ScanTree {
+	// log4J Logger
+	private static final Logger logger = Logger.getLogger(ScanTree.class);
+
+	public static final String SIDECAR_EXTENSION = "gtree";
+	private static final String SIDECAR_KIND = "ScanTree";
+	private static final int SIDECAR_VERSION = 1;
+
+	// most recently used trees, so that asking several questions about the same file does not reload the sidecar
+	private static final int CACHE_SIZE = 8;
+	private static final Map<String, ScanTree> cache = new LinkedHashMap<String, ScanTree>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, ScanTree> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private int size = 0;
+	private int[] scanNumbers = new int[0];
+	private int[] msLevels = new int[0];
+	private int[] parents = new int[0]; // row of the parent, -1 if none
+	private int[] childOffsets = new int[] { 0 };
+	private int[] children = new int[0];
+	private long fileLength = -1;
+	private long fileLastModified = -1;
+
+	private ScanTree() {
+	}
+
+	/**
+	 * returns the scan tree of the given MS file. The trees of the most recently used files are kept in memory
+	 * as long as the file is unchanged. Otherwise the tree is read from the sidecar file if it is still valid,
+	 * or it is built from the scan header index and the sidecar is (re)written.
+	 *
+	 * @param fileName full path to mzXML file
+	 * @param fallback builds the header index without the mzXML index (see {@link ScanHeaderIndex#getIndex(String, Function)})
+	 * @return the scan tree (empty if the file could not be parsed)
+	 */
+	public static ScanTree getTree(String fileName, Function<File, ScanHeaderIndex> fallback) {
+		File dataFile = new File(fileName);
+		String sKey = dataFile.getAbsolutePath();
+		long lLength = dataFile.length();
+		long lLastModified = dataFile.lastModified();
+		synchronized (cache) {
+			ScanTree cached = cache.get(sKey);
+			if( cached != null && cached.fileLength == lLength && cached.fileLastModified == lLastModified ) {
+				return cached;
+			}
+		}
+		File sidecar = IndexSidecar.getSidecarFile(dataFile, SIDECAR_EXTENSION);
+		ScanTree tree = load(dataFile, sidecar);
+		if( tree == null ) {
+			ScanHeaderIndex index = ScanHeaderIndex.getIndex(fileName, fallback);
+			tree = build(index);
+			if( index.isEmpty() ) {
+				return tree; // not persisted nor cached, the index may be empty because the file could not be read
+			}
+			if( ! IndexSidecar.write(dataFile, sidecar, SIDECAR_KIND, SIDECAR_VERSION, tree::write) ) {
+				logger.debug("Scan tree for " + fileName + " kept in memory only");
+			}
+		}
+		tree.fileLength = lLength;
+		tree.fileLastModified = lLastModified;
+		synchronized (cache) {
+			cache.put(sKey, tree);
+		}
+		return tree;
+	}
+
+	/**
+	 * builds the tree from the scan headers. The parent of a scan is its precursor scan if specified,
+	 * otherwise the last scan seen of the closest lower MS level.
+	 *
+	 * @param index header index of the MS file
+	 * @return the scan tree
+	 */
+	public static ScanTree build(ScanHeaderIndex index) {
+		ScanTree tree = new ScanTree();
+		int iSize = index.size();
+		tree.allocate(iSize);
+		HashMap<Integer, Integer> lastParentOfEachLevel = new HashMap<Integer, Integer>();
+		for( int iRow = 0; iRow < iSize; iRow++ ) {
+			int i = index.getScanNumber(iRow);
+			int iMSLevel = index.getMsLevel(iRow);
+			tree.scanNumbers[iRow] = i;
+			tree.msLevels[iRow] = iMSLevel;
+			tree.parents[iRow] = -1;
+			lastParentOfEachLevel.put(iMSLevel, i);
+			if( iMSLevel > 1 ) {
+				Integer parentScan = index.getPrecursorScanNumber(iRow);
+				if( parentScan == -1 ) {
+					int iParentLevel = iMSLevel - 1;
+					while( iParentLevel > 1 && ! lastParentOfEachLevel.containsKey(iParentLevel) ) {
+						iParentLevel--;
+					}
+					parentScan = lastParentOfEachLevel.get(iParentLevel);
+				}
+				int iParentRow = parentScan == null ? -1 : index.getRow(parentScan);
+				if( iParentRow == -1 || iParentRow == iRow ) {
+					logger.error ("Invalid! Precursor scan for scan " + i + " is " + parentScan + " and cannot be found in the map");
+				} else {
+					tree.parents[iRow] = iParentRow;
+				}
+			}
+		}
+		tree.size = iSize;
+		tree.buildChildren();
+		return tree;
+	}
+
+	private void allocate(int iSize) {
+		scanNumbers = new int[iSize];
+		msLevels = new int[iSize];
+		parents = new int[iSize];
+	}
+
+	private void buildChildren() {
+		childOffsets = new int[size + 1];
+		for( int iRow = 0; iRow < size; iRow++ ) {
+			if( parents[iRow] != -1 ) {
+				childOffsets[parents[iRow] + 1]++;
+			}
+		}
+		for( int iRow = 0; iRow < size; iRow++ ) {
+			childOffsets[iRow + 1] += childOffsets[iRow];
+		}
+		children = new int[childOffsets[size]];
+		int[] iNext = Arrays.copyOf(childOffsets, size);
+		for( int iRow = 0; iRow < size; iRow++ ) { // ascending rows, so children are sorted
+			if( parents[iRow] != -1 ) {
+				children[iNext[parents[iRow]]++] = iRow;
+			}
+		}
+	}
+
+	private static ScanTree load(File dataFile, File sidecar) {
+		DataInputStream in = IndexSidecar.openForRead(dataFile, sidecar, SIDECAR_KIND, SIDECAR_VERSION);
+		if( in == null ) {
+			return null;
+		}
+		try {
+			ScanTree tree = new ScanTree();
+			int iSize = in.readInt();
+			tree.allocate(iSize);
+			for( int i = 0; i < iSize; i++ ) {
+				tree.scanNumbers[i] = in.readInt();
+				tree.msLevels[i] = in.readInt();
+				tree.parents[i] = in.readInt();
+			}
+			tree.childOffsets = new int[iSize + 1];
+			for( int i = 0; i <= iSize; i++ ) {
+				tree.childOffsets[i] = in.readInt();
+			}
+			tree.children = new int[tree.childOffsets[iSize]];
+			for( int i = 0; i < tree.children.length; i++ ) {
+				tree.children[i] = in.readInt();
+			}
+			tree.size = iSize;
+			return tree;
+		} catch (IOException e) {
+			logger.debug("Unable to read sidecar " + sidecar.getName() + ": " + e.getMessage());
+		} finally {
+			IndexSidecar.close(in);
+		}
+		return null;
+	}
+
+	private void write(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		for( int i = 0; i < size; i++ ) {
+			out.writeInt(scanNumbers[i]);
+			out.writeInt(msLevels[i]);
+			out.writeInt(parents[i]);
+		}
+		for( int i = 0; i <= size; i++ ) {
+			out.writeInt(childOffsets[i]);
+		}
+		for( int i = 0; i < children.length; i++ ) {
+			out.writeInt(children[i]);
+		}
+	}
+
+	/**
+	 * @return number of scans in the tree
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return the row of the given scan number or -1 if the scan is not in the tree
+	 */
+	public int getRow(int iScanNumber) {
+		int iRow = Arrays.binarySearch(scanNumbers, 0, size, iScanNumber);
+		return iRow < 0 ? -1 : iRow;
+	}
+
+	public int getScanNumber(int iRow) {
+		return scanNumbers[iRow];
+	}
+
+	public int getMsLevel(int iRow) {
+		return msLevels[iRow];
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return the scan number of the parent scan, -1 if the scan has no parent or is not in the tree
+	 */
+	public int getParentScanNumber(int iScanNumber) {
+		int iRow = getRow(iScanNumber);
+		if( iRow == -1 || parents[iRow] == -1 ) {
+			return -1;
+		}
+		return scanNumbers[parents[iRow]];
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return scan numbers of the direct children of the scan (ascending)
+	 */
+	public int[] getChildren(int iScanNumber) {
+		int iRow = getRow(iScanNumber);
+		if( iRow == -1 ) {
+			return new int[0];
+		}
+		int[] iChildren = new int[childOffsets[iRow + 1] - childOffsets[iRow]];
+		for( int i = 0; i < iChildren.length; i++ ) {
+			iChildren[i] = scanNumbers[children[childOffsets[iRow] + i]];
+		}
+		return iChildren;
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return scan numbers of the ancestors of the scan, starting with its direct parent
+	 */
+	public int[] getAncestors(int iScanNumber) {
+		int iRow = getRow(iScanNumber);
+		if( iRow == -1 ) {
+			return new int[0];
+		}
+		int[] iAncestors = new int[8];
+		int iNum = 0;
+		// bounded by the size, in case the precursor information of the file is circular
+		for( int iParent = parents[iRow]; iParent != -1 && iNum < size; iParent = parents[iParent] ) {
+			if( iNum == iAncestors.length ) {
+				iAncestors = Arrays.copyOf(iAncestors, iNum * 2);
+			}
+			iAncestors[iNum++] = scanNumbers[iParent];
+		}
+		return Arrays.copyOf(iAncestors, iNum);
+	}
+
+	/**
+	 * @param iScanNumber scan number
+	 * @return scan numbers of all the scans under the given scan (children, their children, ...), ascending
+	 */
+	public int[] getDescendants(int iScanNumber) {
+		int iRow = getRow(iScanNumber);
+		if( iRow == -1 ) {
+			return new int[0];
+		}
+		int[] iRows = new int[Math.max(childOffsets[iRow + 1] - childOffsets[iRow], 8)];
+		int iNum = 0;
+		int iNextParent = -1;
+		int iParent = iRow;
+		// breadth first, bounded by the size in case the precursor information of the file is circular
+		while( iParent != -1 && iNum < size ) {
+			for( int i = childOffsets[iParent]; i < childOffsets[iParent + 1] && iNum < size; i++ ) {
+				if( iNum == iRows.length ) {
+					iRows = Arrays.copyOf(iRows, iNum * 2);
+				}
+				iRows[iNum++] = children[i];
+			}
+			iNextParent++;
+			iParent = iNextParent < iNum ? iRows[iNextParent] : -1;
+		}
+		int[] iScans = new int[iNum];
+		for( int i = 0; i < iNum; i++ ) {
+			iScans[i] = scanNumbers[iRows[i]];
+		}
+		Arrays.sort(iScans);
+		return iScans;
+	}
+
+	/**
+	 * returns the sub scans of all the scans of the given MS level in the given scan number range
+	 *
+	 * @param iFromScan first scan number of the range (inclusive)
+	 * @param iToScan last scan number of the range (inclusive)
+	 * @param iParentMSLevel MS level of the parent scans
+	 * @return scan numbers of the sub scans (ascending)
+	 */
+	public int[] getSubScans(int iFromScan, int iToScan, int iParentMSLevel) {
+		int iFromRow = Arrays.binarySearch(scanNumbers, 0, size, iFromScan);
+		if( iFromRow < 0 ) {
+			iFromRow = -iFromRow - 1;
+		}
+		int iNum = 0;
+		int[] iScans = new int[16];
+		for( int iRow = iFromRow; iRow < size && scanNumbers[iRow] <= iToScan; iRow++ ) {
+			if( msLevels[iRow] != iParentMSLevel ) {
+				continue;
+			}
+			for( int i = childOffsets[iRow]; i < childOffsets[iRow + 1]; i++ ) {
+				if( iNum == iScans.length ) {
+					iScans = Arrays.copyOf(iScans, iNum * 2);
+				}
+				iScans[iNum++] = scanNumbers[children[i]];
+			}
+		}
+		iScans = Arrays.copyOf(iScans, iNum);
+		Arrays.sort(iScans);
+		return iScans;
+	}
+
+	/**
+	 * @param iFromScan first MS1 scan number of the range (inclusive)
+	 * @param iToScan last MS1 scan number of the range (inclusive)
+	 * @return scan numbers of all MS2 scans under the MS1 scans in the range (ascending)
+	 */
+	public int[] getMS2Scans(int iFromScan, int iToScan) {
+		return getSubScans(iFromScan, iToScan, 1);
+	}
+
+	/**
+	 * @return map of all scans to their sub scan numbers
+	 */
+	public Map<Integer, List<Integer>> getSubScanMap() {
+		Map<Integer, List<Integer>> subScanMap = new HashMap<>();
+		for( int iRow = 0; iRow < size; iRow++ ) {
+			List<Integer> subScans = new ArrayList<>(childOffsets[iRow + 1] - childOffsets[iRow]);
+			for( int i = childOffsets[iRow]; i < childOffsets[iRow + 1]; i++ ) {
+				subScans.add(scanNumbers[children[i]]);
+			}
+			subScanMap.put(scanNumbers[iRow], subScans);
+		}
+		return subScanMap;
+	}
+}